@@ -11,10 +11,13 @@ import javafx.scene.Scene;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 
 public class AddAdmin {
 
     private TextField nameTextField, fatherNameTextField, timeTextField, branchTextField;
+    private Button addButton;
+    private BusyIndicator busy;
     private Conn conn; // Assuming the Conn class provides the MongoDB connection
 
     public AddAdmin() {
@@ -47,7 +50,7 @@ public class AddAdmin {
         formGrid.add(timeTextField, 1, 3);
 
         // Buttons
-        Button addButton = new Button("Add");
+        addButton = new Button("Add");
         Button cancelButton = new Button("Cancel");
 
         addButton.setOnAction(e -> handleAddAction());
@@ -56,7 +59,8 @@ public class AddAdmin {
         HBox buttonBox = new HBox(10, addButton, cancelButton);
         buttonBox.setAlignment(Pos.CENTER);
 
-        VBox formBox = new VBox(10, formGrid, buttonBox);
+        busy = new BusyIndicator();
+        VBox formBox = new VBox(10, formGrid, buttonBox, busy);
         formBox.setPadding(new Insets(20));
         formBox.setStyle("-fx-background-color: lightgray;");
 
@@ -89,11 +93,16 @@ public class AddAdmin {
         String username = generateUsername(name, role);
         String password = generatePassword();
 
-        if (addAdmin(name, fatherName, role, branch, time, username, password)) {
-            showAlert(Alert.AlertType.INFORMATION, "Success", "Admin added successfully! Username: " + username);
-        } else {
-            showAlert(Alert.AlertType.ERROR, "Error", "Error adding admin. Please try again.");
-        }
+        // The insert runs on the database pool
+        CompletableFuture<Boolean> add = busy.trackWrite("Adding admin...",
+                DatabaseExecutor.submit(() -> addAdmin(name, fatherName, role, branch, time, username, password)), addButton);
+        DatabaseExecutor.onFxThread(add, added -> {
+            if (added) {
+                showAlert(Alert.AlertType.INFORMATION, "Success", "Admin added successfully! Username: " + username);
+            } else {
+                showAlert(Alert.AlertType.ERROR, "Error", "Error adding admin. Please try again.");
+            }
+        }, error -> showAlert(Alert.AlertType.ERROR, "Error", "Error adding admin: " + error.getMessage()));
     }
 
     private String generateUsername(String name, String role) {
@@ -148,6 +157,7 @@ public class AddAdmin {
 
             // Add admin document to collection
             adminCollection.insertOne(adminDocument);
+            UserProfileCache.getInstance().invalidate(username);
 
             return true;
         } catch (Exception e) {
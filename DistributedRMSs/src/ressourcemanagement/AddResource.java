@@ -8,14 +8,20 @@ import javafx.scene.paint.Color;
 import org.bson.Document;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
 import javafx.scene.Scene;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 
+import java.util.concurrent.CompletableFuture;
+
 public class AddResource {
 
     private TextField resourceNameField, sizeField, typeField;
     private ComboBox<String> hourComboBox, minuteComboBox;
+    private Button addButton;
+    private BusyIndicator busy;
     private Conn conn; // Assuming the Conn class provides the MongoDB connection
 
     public AddResource() {
@@ -53,7 +59,7 @@ public class AddResource {
         formGrid.add(new HBox(10, hourComboBox, new Label(":"), minuteComboBox), 1, 3);
 
         // Buttons
-        Button addButton = new Button("Add");
+        addButton = new Button("Add");
         Button cancelButton = new Button("Cancel");
 
         addButton.setOnAction(e -> handleAddAction());
@@ -62,7 +68,8 @@ public class AddResource {
         HBox buttonBox = new HBox(10, addButton, cancelButton);
         buttonBox.setAlignment(Pos.CENTER);
 
-        VBox formBox = new VBox(10, formGrid, buttonBox);
+        busy = new BusyIndicator();
+        VBox formBox = new VBox(10, formGrid, buttonBox, busy);
         formBox.setPadding(new Insets(20));
         formBox.setStyle("-fx-background-color: lightgray;");
 
@@ -101,32 +108,34 @@ public class AddResource {
         return;
     }
 
-    // Fetch branch and add resource to the appropriate collection
-    String branch = fetchBranchForUser(loggedInUsername);
-    if (branch == null) {
-        showAlert(Alert.AlertType.ERROR, "Error", "Failed to determine the user's branch. Cannot add resource.");
-        return;
-    }
+    // The branch lookup and the writes run on the database pool; the result is an error message, or null
+    CompletableFuture<String> add = busy.trackWrite("Adding resource...", DatabaseExecutor.submit(() -> {
+        // Fetch branch and add resource to the appropriate collection
+        String branch = fetchBranchForUser(loggedInUsername);
+        if (branch == null) {
+            return "Failed to determine the user's branch. Cannot add resource.";
+        }
 
-    // Insert resource into dynamically named collection
-    if (insertResourceData(resourceName, size, type, time, branch)) {
-        showAlert(Alert.AlertType.INFORMATION, "Success", "Resource added successfully!\n" +
-                "Resource: " + resourceName + "\nSize: " + size + "\nType: " + type + "\nTime: " + time);
-    } else {
-        showAlert(Alert.AlertType.ERROR, "Error", "Error adding resource. Please try again.");
-    }
+        // Insert resource into dynamically named collection
+        return insertResourceData(resourceName, size, type, time, branch) ? null : "Error adding resource. Please try again.";
+    }), addButton);
+
+    DatabaseExecutor.onFxThread(add, error -> {
+        if (error == null) {
+            showAlert(Alert.AlertType.INFORMATION, "Success", "Resource added successfully!\n" +
+                    "Resource: " + resourceName + "\nSize: " + size + "\nType: " + type + "\nTime: " + time);
+        } else {
+            showAlert(Alert.AlertType.ERROR, "Error", error);
+        }
+    }, error -> showAlert(Alert.AlertType.ERROR, "Error", "Error adding resource: " + error.getMessage()));
 }
 private String fetchBranchForUser(String username) {
     try {
-        MongoDatabase database = conn.getDatabase();
-        MongoCollection<Document> usersCollection = database.getCollection("users");
-
-        // Query for the user document
-        Document query = new Document("username", username);
-        Document userDocument = usersCollection.find(query).first();
+        // Branches rarely change, so the profile usually comes from the cache
+        String branch = UserProfileCache.getInstance().getBranch(conn.getDatabase(), username);
 
-        if (userDocument != null && userDocument.containsKey("branch")) {
-            return userDocument.getString("branch");
+        if (branch != null) {
+            return branch;
         } else {
             System.err.println("Branch not found for user: " + username);
             return null; // Branch not found
@@ -152,10 +161,27 @@ private boolean insertResourceData(String resourceName, String size, String type
             String branchCollectionName = branch + "_resources";
             MongoCollection<Document> branchCollection = database.getCollection(branchCollectionName);
 
+            // Make sure a new branch collection gets its resource_name index and is known to the catalog
+            new IndexBootstrapper(database).ensureResourceIndex(branchCollectionName);
+            RegionCatalog.getInstance().register(branchCollectionName);
+
             // Create or update the resource in the branch-specific collection
             updateOrInsertResource(branchCollection, resourceName, size, type, time);
         }
 
+        // Keep the unified (resource_name, region) store in step when it is in use
+        if (UnifiedResourceStore.isEnabled()) {
+            MongoCollection<Document> unifiedCollection = new UnifiedResourceStore(database).getCollection();
+            updateOrInsertResource(unifiedCollection,
+                    UnifiedResourceStore.key(resourceName, UnifiedResourceStore.GLOBAL_REGION), size, type, time);
+            if (branch != null && !branch.isEmpty()) {
+                updateOrInsertResource(unifiedCollection, UnifiedResourceStore.key(resourceName, branch), size, type, time);
+            }
+        }
+
+        // The request dialog's type-ahead finds the new name straight away
+        ResourceNameIndex.getInstance().add(resourceName);
+
         System.out.println("Resource added or updated successfully.");
         return true;
     } catch (Exception e) {
@@ -167,34 +193,30 @@ private boolean insertResourceData(String resourceName, String size, String type
 
 private void updateOrInsertResource(MongoCollection<Document> collection, String resourceName, String size, String type, String time) {
     // Find the resource by name
-    Document query = new Document("resource_name", resourceName);
+    updateOrInsertResource(collection, new Document("resource_name", resourceName), size, type, time);
+}
 
-    // Check if the resource already exists
-    Document existingResource = collection.find(query).first();
+private void updateOrInsertResource(MongoCollection<Document> collection, Document query, String size, String type, String time) {
+    // Capacity is kept as a byte count, so adding to an existing resource is a server-side increment
+    long addedBytes = Quantity.parse(size, type).bytes();
 
-    if (existingResource != null) {
-        // Parse existing size and new size as integers and add them
-        int existingSize = Integer.parseInt(existingResource.getString("size"));
-        int newSize = Integer.parseInt(size);
-        int updatedSize = existingSize + newSize;
+    // A resource still in the legacy string layout is rewritten first so the increment adds to it
+    CapacityMigration.upgradeResource(collection, query);
 
-        // Update the size and other fields
-        Document updatedFields = new Document("size", String.valueOf(updatedSize))
-                .append("type", type)
-                .append("time", time);
-        Document update = new Document("$set", updatedFields);
+    Document update = new Document("$inc", new Document(Capacity.CAPACITY_BYTES, addedBytes))
+            .append("$set", new Document("type", type).append("time", time))
+            .append("$setOnInsert", new Document(Capacity.ALLOCATED_BYTES, 0L));
 
-        collection.updateOne(query, update);
-        System.out.println("Resource size updated (added) in collection: " + collection.getNamespace().getCollectionName());
-    } else {
-        // If the resource does not exist, insert a new document
-        Document resourceDocument = new Document("resource_name", resourceName)
-                .append("size", size)
-                .append("type", type)
-                .append("time", time);
-
-        collection.insertOne(resourceDocument);
+    UpdateResult result = collection.updateOne(query, update, new UpdateOptions().upsert(true));
+    AllocationJournal.getInstance().record(AllocationJournal.EventType.RESIZE,
+            collection.getNamespace().getCollectionName(), query, addedBytes);
+    if (AllocationLedger.isEnabled()) {
+        AllocationLedger.getInstance().refreshCapacity(collection.getNamespace().getCollectionName(), query);
+    }
+    if (result.getUpsertedId() != null) {
         System.out.println("Resource added to collection: " + collection.getNamespace().getCollectionName());
+    } else {
+        System.out.println("Resource size updated (added) in collection: " + collection.getNamespace().getCollectionName());
     }
 }
 
@@ -49,7 +49,9 @@ public class AdminDashboard extends Application {
             UserStatus status = new UserStatus();
             status.showUserStatusDialog();
         });
-        checkMenu.getItems().addAll(resourceStatusItem, userStatusItem);
+        MenuItem metricsItem = new MenuItem("System Metrics");
+        metricsItem.setOnAction(e -> showMessage(buildMetricsReport()));
+        checkMenu.getItems().addAll(resourceStatusItem, userStatusItem, metricsItem);
 
         // Delete Resource Menu
         Menu deleteMenu = createMenu("Delete Resource", Color.BLUE);
@@ -127,6 +129,30 @@ public class AdminDashboard extends Application {
         alert.showAndWait();
     }
 
+    // Helper method to collect runtime statistics for the System Metrics dialog
+    private String buildMetricsReport() {
+        StringBuilder report = new StringBuilder();
+        report.append(Conn.getPoolStats()).append("\n");
+        report.append(DatabaseExecutor.statistics()).append("\n");
+        report.append(ResourceAllocator.statistics()).append("\n");
+        report.append(ReleaseResource.statistics()).append("\n");
+        report.append(TransactionRunner.statistics()).append("\n");
+        if (AllocationPipeline.isEnabled()) {
+            report.append(AllocationPipeline.getInstance().statistics()).append("\n");
+        }
+        report.append(AllocationJournal.getInstance().statistics()).append("\n");
+        report.append(CapacityState.getInstance().statistics()).append("\n");
+        report.append(ResourceSummary.getInstance().statistics()).append("\n");
+        report.append(ExpiryScheduler.getInstance().statistics()).append("\n");
+        report.append(NotificationFeed.getInstance().statistics()).append("\n");
+        report.append(StatusWriteBuffer.getInstance().statistics()).append("\n");
+        report.append(UserProfileCache.getInstance().statistics());
+        if (AllocationLedger.isRequested()) {
+            report.append("\n").append(AllocationLedger.getInstance().statistics());
+        }
+        return report.toString();
+    }
+
     // Helper method to show a confirmation dialog
     private boolean confirmDialog(String message) {
         Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
@@ -0,0 +1,308 @@
+package ressourcemanagement;
+
+import org.bson.Document;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Durable history of every capacity event: allocations, releases, expiries, grant resets,
+ * admin resizes and deletions, written to a memory-mapped {@link SegmentedJournal}.
+ *
+ * Recording an event costs an in-memory copy plus a share of a group commit, no MongoDB write.
+ * Replaying the journal from the start rebuilds the capacity state of every resource created
+ * since journaling began, which {@link #main} prints for auditing. It is on by default; -Ddrms.journal=false turns it off and
+ * -Ddrms.journal.dir sets the location (default ~/.drms/journal). Listeners added with
+ * {@link #addListener} hear every recorded event, whether or not the journal is writing them.
+ */
+public class AllocationJournal {
+
+    private static final int SEGMENT_BYTES = 64 << 20;
+
+    public enum EventType {
+        ALLOCATE,
+        RELEASE,
+        // Release of an expired grant by the system rather than the user
+        EXPIRE,
+        // Allocation of every matching resource set back to zero (grant removal)
+        RESET,
+        // Same decrement applied to every region entry except the global one (unified store); no longer
+        // written, kept so journals recorded by older versions still replay
+        RELEASE_REGIONS,
+        // Capacity added (or removed, when negative) by an administrator
+        RESIZE,
+        REMOVE
+    }
+
+    private static AllocationJournal instance;
+
+    private final List<Consumer<Event>> listeners = new CopyOnWriteArrayList<>();
+    private SegmentedJournal journal;
+
+    private AllocationJournal() {
+    }
+
+    public static synchronized AllocationJournal getInstance() {
+        if (instance == null) {
+            instance = new AllocationJournal();
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("drms.journal", "true"));
+    }
+
+    private static Path directory() {
+        return Paths.get(System.getProperty("drms.journal.dir",
+                Paths.get(System.getProperty("user.home"), ".drms", "journal").toString()));
+    }
+
+    public synchronized void start() throws IOException {
+        if (journal == null && isEnabled()) {
+            SegmentedJournal opened = new SegmentedJournal(directory(), "events", SEGMENT_BYTES);
+            opened.open(0);
+            journal = opened;
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Calls the listener, on the recording thread, with every event recorded from now on.
+     * The listener must not block.
+     */
+    public void addListener(Consumer<Event> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Consumer<Event> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Appends the event and waits for the group commit that makes it durable. Failures are logged,
+     * never thrown: the database change the event describes has already happened.
+     */
+    public void record(Event event) {
+        for (Consumer<Event> listener : listeners) {
+            try {
+                listener.accept(event);
+            } catch (RuntimeException e) {
+                System.err.println("Allocation event listener failed: " + e.getMessage());
+            }
+        }
+
+        SegmentedJournal target;
+        synchronized (this) {
+            target = journal;
+        }
+        if (target == null) {
+            return;
+        }
+        try {
+            target.appendDurable(event.toBytes());
+        } catch (IOException e) {
+            System.err.println("Could not journal " + event + ": " + e.getMessage());
+        }
+    }
+
+    public void record(EventType type, String collection, Document key, long bytes) {
+        record(Event.of(type, collection, key, bytes));
+    }
+
+    /**
+     * Passes every event in the journal to the handler, oldest first.
+     */
+    public static void replay(SegmentedJournal.RecordHandler handler) throws IOException {
+        new SegmentedJournal(directory(), "events", SEGMENT_BYTES).read(0, handler);
+    }
+
+    /**
+     * Rebuilds capacity and allocated bytes per collection and resource key from the journal alone.
+     *
+     * @return "collection key" mapped to {capacity, allocated}
+     */
+    public static Map<String, long[]> rebuildState() throws IOException {
+        Map<String, long[]> state = new TreeMap<>();
+        replay((sequence, payload) -> apply(state, Event.fromBytes(payload)));
+        return state;
+    }
+
+    static void apply(Map<String, long[]> state, Event event) {
+        String id = event.getCollection() + " " + event.getKey().toJson();
+        switch (event.getType()) {
+            case RESIZE:
+                state.computeIfAbsent(id, k -> new long[2])[0] += event.getBytes();
+                break;
+            case ALLOCATE:
+                state.computeIfAbsent(id, k -> new long[2])[1] += event.getBytes();
+                break;
+            case RELEASE:
+            case EXPIRE:
+                state.computeIfAbsent(id, k -> new long[2])[1] -= event.getBytes();
+                break;
+            case REMOVE:
+                state.remove(id);
+                break;
+            case RESET:
+            case RELEASE_REGIONS:
+                // These events name a resource, not one document; apply them to every matching entry
+                String prefix = event.getCollection() + " ";
+                String resourceName = event.getKey().getString("resource_name");
+                for (Map.Entry<String, long[]> entry : state.entrySet()) {
+                    if (!entry.getKey().startsWith(prefix)) {
+                        continue;
+                    }
+                    Document key = Document.parse(entry.getKey().substring(prefix.length()));
+                    if (!resourceName.equals(key.getString("resource_name"))) {
+                        continue;
+                    }
+                    long[] values = entry.getValue();
+                    if (event.getType() == EventType.RESET) {
+                        values[1] = 0;
+                    } else if (!UnifiedResourceStore.GLOBAL_REGION.equals(key.getString("region")) && values[1] >= event.getBytes()) {
+                        values[1] -= event.getBytes();
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    public String statistics() {
+        SegmentedJournal target;
+        synchronized (this) {
+            target = journal;
+        }
+        return target == null ? "Journal: off" : "Journal: " + target.statistics();
+    }
+
+    /**
+     * Prints the state rebuilt from the journal, or every event with --events.
+     * Run it with: java -cp ... ressourcemanagement.AllocationJournal [--events]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && "--events".equals(args[0])) {
+            replay((sequence, payload) -> System.out.println(sequence + " " + Event.fromBytes(payload)));
+            return;
+        }
+        for (Map.Entry<String, long[]> entry : rebuildState().entrySet()) {
+            long[] values = entry.getValue();
+            System.out.println(entry.getKey() + " capacity=" + values[0] + " allocated=" + values[1]);
+        }
+    }
+
+    /**
+     * One capacity event. Byte amounts are positive except for a RESIZE that shrinks a resource.
+     */
+    public static final class Event {
+        private final EventType type;
+        private final long timestamp;
+        private final String collection;
+        private final Document key;
+        private final long bytes;
+        private final String username;
+        private final String requestId;
+
+        public Event(EventType type, long timestamp, String collection, Document key, long bytes,
+                     String username, String requestId) {
+            this.type = type;
+            this.timestamp = timestamp;
+            this.collection = collection;
+            this.key = key;
+            this.bytes = bytes;
+            this.username = username;
+            this.requestId = requestId;
+        }
+
+        public static Event of(EventType type, String collection, Document key, long bytes) {
+            return new Event(type, System.currentTimeMillis(), collection, key, bytes, null, null);
+        }
+
+        /**
+         * The same event attributed to a user and a resource_requests document.
+         */
+        public Event forRequest(String username, Object requestId) {
+            return new Event(type, timestamp, collection, key, bytes, username,
+                    requestId == null ? null : requestId.toString());
+        }
+
+        public EventType getType() {
+            return type;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        public Document getKey() {
+            return key;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeByte(type.ordinal());
+            out.writeLong(timestamp);
+            out.writeLong(bytes);
+            out.writeUTF(collection);
+            out.writeUTF(key.toJson());
+            out.writeUTF(username == null ? "" : username);
+            out.writeUTF(requestId == null ? "" : requestId);
+            out.flush();
+            return buffer.toByteArray();
+        }
+
+        static Event fromBytes(ByteBuffer payload) throws IOException {
+            DataInputStream in = SegmentedJournal.stream(payload);
+            EventType type = EventType.values()[in.readUnsignedByte()];
+            long timestamp = in.readLong();
+            long bytes = in.readLong();
+            String collection = in.readUTF();
+            Document key = Document.parse(in.readUTF());
+            String username = in.readUTF();
+            String requestId = in.readUTF();
+            return new Event(type, timestamp, collection, key, bytes,
+                    username.isEmpty() ? null : username, requestId.isEmpty() ? null : requestId);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder()
+                    .append(Instant.ofEpochMilli(timestamp)).append(' ')
+                    .append(type).append(' ')
+                    .append(collection).append(' ')
+                    .append(key.toJson()).append(' ')
+                    .append(bytes).append(" bytes");
+            if (username != null) {
+                text.append(" user=").append(username);
+            }
+            if (requestId != null) {
+                text.append(" request=").append(requestId);
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package ressourcemanagement;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * In-process copy of the capacity and allocation of every resource, keyed by collection and
+ * resource key, so admission decisions do not need a database round trip.
+ *
+ * The allocated byte count of each entry is changed with a compare-and-set loop, never above its
+ * capacity. Each accepted change is committed to the {@link LedgerJournal} and then written to MongoDB
+ * in batches by the {@link LedgerWriter}; after a crash the journal is replayed at the next start.
+ *
+ * The ledger assumes this process is the only one allocating, so it is off unless started with
+ * -Ddrms.ledger=true. Work is routed to it only once {@link #start} has succeeded. While a start
+ * announced with {@link #expectStart} is still loading, allocations wait for it (up to drms.ledger.startWaitSec, default 120)
+ * rather than change the documents it is reading; if it failed, they go to MongoDB directly.
+ * A change waits up to drms.ledger.queueTimeoutMs (default 2000) for room in the write-behind queue
+ * and is refused after that. Journal location: -Ddrms.ledger.dir (default ~/.drms/ledger).
+ */
+public class AllocationLedger {
+
+    // Stored on resource documents so a replayed delta is never applied twice
+    public static final String SEQUENCE_FIELD = "ledger_seq";
+    // The last batches (expiries) whose bytes were given back to a resource document, newest last
+    public static final String APPLIED_BATCHES_FIELD = "applied_batches";
+    public static final int MAX_APPLIED_BATCHES = 32;
+
+    private static final long START_WAIT_MS = TimeUnit.SECONDS.toMillis(Long.getLong("drms.ledger.startWaitSec", 120L));
+    private static final long QUEUE_TIMEOUT_MS = Long.getLong("drms.ledger.queueTimeoutMs", 2000L);
+
+    private static AllocationLedger instance;
+    private static volatile boolean started;
+    private static final Object startLock = new Object();
+    // A start is on its way and has not finished; guarded by startLock
+    private static boolean starting;
+
+    // Orders journal appends and queue submissions; never held while waiting for the queue
+    private final Object sequencer = new Object();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong reservations = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private MongoDatabase database;
+    private LedgerJournal journal;
+    private LedgerWriter writer;
+
+    private AllocationLedger() {
+    }
+
+    public static synchronized AllocationLedger getInstance() {
+        if (instance == null) {
+            instance = new AllocationLedger();
+        }
+        return instance;
+    }
+
+    /**
+     * True when the ledger was asked for with -Ddrms.ledger=true, whether or not it is running yet.
+     */
+    public static boolean isRequested() {
+        return Boolean.getBoolean("drms.ledger");
+    }
+
+    /**
+     * True when allocations should go through the ledger: it was requested and has been started.
+     * Waits while a requested ledger is still loading, so call it off the JavaFX Application Thread.
+     */
+    public static boolean isEnabled() {
+        if (!started && isRequested()) {
+            awaitStart();
+        }
+        return started;
+    }
+
+    /**
+     * Announces that {@link #start} will be called, so allocations made until it finishes wait for
+     * the ledger instead of changing the documents it is loading. Does nothing unless the ledger was requested.
+     */
+    public static void expectStart() {
+        if (isRequested()) {
+            synchronized (startLock) {
+                starting = true;
+            }
+        }
+    }
+
+    private static void awaitStart() {
+        synchronized (startLock) {
+            long deadline = System.currentTimeMillis() + START_WAIT_MS;
+            while (starting) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IllegalStateException("Allocation ledger is still loading, please try again.");
+                }
+                try {
+                    startLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for the allocation ledger", e);
+                }
+            }
+        }
+    }
+
+    private static void finishStarting() {
+        synchronized (startLock) {
+            starting = false;
+            startLock.notifyAll();
+        }
+    }
+
+    /**
+     * Replays deltas left in the journal by a previous run, loads every resource and starts the writer.
+     */
+    public synchronized void start(MongoDatabase database) throws IOException {
+        try {
+            if (writer != null) {
+                return;
+            }
+            this.database = database;
+            Path directory = Paths.get(System.getProperty("drms.ledger.dir",
+                    Paths.get(System.getProperty("user.home"), ".drms", "ledger").toString()));
+            journal = new LedgerJournal(directory);
+
+            long start = System.currentTimeMillis();
+            journal.open();
+            replay();
+
+            load();
+            writer = new LedgerWriter(database, journal);
+            writer.start();
+            started = isRequested();
+            System.out.println("Allocation ledger loaded " + entries.size() + " resources in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } finally {
+            // Successful or not, allocations waiting for the ledger can go on
+            finishStarting();
+        }
+    }
+
+    /**
+     * Flushes outstanding deltas to MongoDB and closes the journal.
+     */
+    public synchronized void shutdown() {
+        started = false;
+        finishStarting();
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private void replay() throws IOException {
+        List<Delta> pending = journal.readPending();
+        for (Delta delta : pending) {
+            LedgerWriter.applyOne(database, delta);
+        }
+        if (!pending.isEmpty()) {
+            journal.checkpoint(pending.get(pending.size() - 1).getSequence());
+            System.out.println("Allocation ledger replayed " + pending.size() + " journaled changes");
+        }
+    }
+
+    private void load() {
+        List<String> collections = new ArrayList<>();
+        collections.add("resources");
+        collections.addAll(RegionCatalog.getInstance().getRegionCollections());
+        if (UnifiedResourceStore.isEnabled()) {
+            collections.add(UnifiedResourceStore.COLLECTION);
+        }
+        CapacityState state = CapacityState.getInstance();
+        for (String collectionName : collections) {
+            if (state.isLive()) {
+                // The capacity snapshot already holds these documents
+                for (Document doc : state.getResources(collectionName)) {
+                    if (doc.getString("resource_name") != null) {
+                        put(collectionName, doc);
+                    }
+                }
+                continue;
+            }
+            MongoCollection<Document> collection = database.getCollection(collectionName);
+            try (MongoCursor<Document> cursor = collection.find()
+                    .projection(Projections.include("resource_name", "region", "type",
+                            Capacity.CAPACITY_BYTES, Capacity.ALLOCATED_BYTES, Capacity.LEGACY_SIZE, Capacity.LEGACY_ALLOCATED_SIZE))
+                    .iterator()) {
+                while (cursor.hasNext()) {
+                    Document doc = cursor.next();
+                    if (doc.getString("resource_name") != null) {
+                        put(collectionName, doc);
+                    }
+                }
+            }
+        }
+    }
+
+    private Entry put(String collectionName, Document doc) {
+        Document key = keyOf(collectionName, doc);
+        if (!doc.containsKey(Capacity.CAPACITY_BYTES)) {
+            // Deltas are $inc on allocated_bytes, so legacy documents are rewritten before first use
+            CapacityMigration.upgradeResource(database.getCollection(collectionName), key);
+        }
+        Entry entry = new Entry(collectionName, key, Capacity.capacityBytes(doc), Capacity.allocatedBytes(doc));
+        entries.put(id(collectionName, key), entry);
+        return entry;
+    }
+
+    private static Document keyOf(String collectionName, Document doc) {
+        if (UnifiedResourceStore.COLLECTION.equals(collectionName)) {
+            return UnifiedResourceStore.key(doc.getString("resource_name"), doc.getString("region"));
+        }
+        return new Document("resource_name", doc.getString("resource_name"));
+    }
+
+    private static String id(String collectionName, Document key) {
+        return collectionName + '|' + key.toJson();
+    }
+
+    /**
+     * The entry for a resource. Everything is loaded at startup and resources added later are put
+     * in by {@link #refreshCapacity}, so a missing entry means the collection does not hold the resource.
+     */
+    private Entry entry(String collectionName, Document key) {
+        Entry entry = entries.get(id(collectionName, key));
+        if (entry == null) {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Reserves bytes of the resource if it has that much free capacity.
+     *
+     * @return the reservation, or null when the resource does not exist or is too full
+     */
+    public Reservation tryReserve(String collectionName, Document key, long bytes) {
+        Entry entry = entry(collectionName, key);
+        if (entry == null) {
+            rejections.incrementAndGet();
+            return null;
+        }
+        // Counted before the closed check, so a delete that closes the entry waits for this reservation
+        entry.unsettled.incrementAndGet();
+        if (entry.closed || !entry.tryAdd(bytes)) {
+            entry.unsettled.decrementAndGet();
+            rejections.incrementAndGet();
+            return null;
+        }
+        try {
+            submit(entry, bytes, null);
+        } catch (RuntimeException e) {
+            entry.unsettled.decrementAndGet();
+            throw e;
+        }
+        reservations.incrementAndGet();
+        return new Reservation(entry, bytes);
+    }
+
+    /**
+     * Stops new reservations of the resource and waits until every reservation already made has been
+     * settled, i.e. its request is recorded or it was cancelled. Used while the resource is deleted.
+     *
+     * @return false if reservations were still unsettled after the timeout; the resource stays closed
+     */
+    public boolean close(String collectionName, Document key, long timeoutMs) throws InterruptedException {
+        Entry entry = entries.get(id(collectionName, key));
+        if (entry == null) {
+            return true;
+        }
+        entry.closed = true;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (entry.unsettled.get() > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    /**
+     * Accepts reservations of a closed resource again, e.g. because deleting it failed.
+     */
+    public void reopen(String collectionName, Document key) {
+        Entry entry = entries.get(id(collectionName, key));
+        if (entry != null) {
+            entry.closed = false;
+        }
+    }
+
+    /**
+     * Gives back bytes of the resource if at least that much is allocated.
+     */
+    public boolean tryRelease(String collectionName, Document key, long bytes) {
+        return tryRelease(collectionName, key, bytes, null);
+    }
+
+    /**
+     * Gives back bytes on behalf of a batch; the batch id is written to the resource document with
+     * the change, under {@link #APPLIED_BATCHES_FIELD}, so recovery can tell the batch was applied.
+     */
+    public boolean tryRelease(String collectionName, Document key, long bytes, String batch) {
+        Entry entry = entry(collectionName, key);
+        if (entry == null || !entry.trySubtract(bytes)) {
+            return false;
+        }
+        submit(entry, -bytes, batch);
+        return true;
+    }
+
+    /**
+     * Sets the allocation of a resource back to zero.
+     */
+    public void resetAllocated(String collectionName, Document key) {
+        resetAllocated(collectionName, key, null);
+    }
+
+    public void resetAllocated(String collectionName, Document key, String batch) {
+        Entry entry = entry(collectionName, key);
+        if (entry == null) {
+            return;
+        }
+        long previous = entry.reset();
+        if (previous > 0) {
+            submit(entry, -previous, batch);
+        }
+    }
+
+    /**
+     * Picks up a capacity change made directly in MongoDB (adding to a resource).
+     */
+    public void refreshCapacity(String collectionName, Document key) {
+        Document doc = database.getCollection(collectionName).find(key)
+                .projection(Projections.include(Capacity.CAPACITY_BYTES, Capacity.ALLOCATED_BYTES, "resource_name", "region", "type"))
+                .first();
+        if (doc == null) {
+            remove(collectionName, key);
+            return;
+        }
+        Entry entry = entries.get(id(collectionName, key));
+        if (entry == null) {
+            put(collectionName, doc);
+        } else {
+            entry.capacity = Capacity.capacityBytes(doc);
+        }
+    }
+
+    public void remove(String collectionName, Document key) {
+        entries.remove(id(collectionName, key));
+    }
+
+    private void submit(Entry entry, long bytes, String batch) {
+        // Wait for room in the write-behind queue before taking the sequencer, so a full queue holds up only this change
+        try {
+            if (!writer.reserveSlot(QUEUE_TIMEOUT_MS)) {
+                entry.undo(bytes);
+                throw new IllegalStateException("Allocation ledger is behind on writing to MongoDB, please try again.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            entry.undo(bytes);
+            throw new IllegalStateException("Interrupted while queueing allocation change", e);
+        }
+
+        long sequence;
+        // Journal order and queue order must agree for the checkpoint to be valid
+        synchronized (sequencer) {
+            try {
+                sequence = journal.append(entry.collection, entry.key, bytes, batch);
+            } catch (IOException e) {
+                writer.releaseSlot();
+                entry.undo(bytes);
+                throw new IllegalStateException("Could not journal allocation change: " + e.getMessage(), e);
+            }
+            writer.submit(new Delta(sequence, entry.collection, entry.key, bytes, batch));
+        }
+
+        // Concurrent changes share one flush of the journal
+        try {
+            journal.awaitDurable(sequence);
+        } catch (IOException e) {
+            throw new IllegalStateException("Allocation change was not made durable: " + e.getMessage(), e);
+        }
+    }
+
+    public String statistics() {
+        if (!started) {
+            return isRequested() ? "Ledger: requested but not started" : "Ledger: off";
+        }
+        String writerStats = writer == null ? "writer stopped" : writer.statistics();
+        return String.format("Ledger: %d resources, %d reservations, %d rejections, %d misses; %s; journal %s",
+                entries.size(), reservations.get(), rejections.get(), misses.get(), writerStats, journal.statistics());
+    }
+
+    /**
+     * Capacity and allocation of one resource document, in bytes.
+     */
+    static final class Entry {
+        private static final AtomicLongFieldUpdater<Entry> ALLOCATED =
+                AtomicLongFieldUpdater.newUpdater(Entry.class, "allocated");
+
+        final String collection;
+        final Document key;
+        volatile long capacity;
+        volatile long allocated;
+        // Set while the resource is being deleted; no reservation is accepted
+        volatile boolean closed;
+        // Reservations whose request has not been recorded or cancelled yet
+        final AtomicInteger unsettled = new AtomicInteger();
+
+        Entry(String collection, Document key, long capacity, long allocated) {
+            this.collection = collection;
+            this.key = key;
+            this.capacity = capacity;
+            this.allocated = allocated;
+        }
+
+        boolean tryAdd(long bytes) {
+            long current;
+            do {
+                current = allocated;
+                if (bytes > capacity - current) {
+                    return false;
+                }
+            } while (!ALLOCATED.compareAndSet(this, current, current + bytes));
+            return true;
+        }
+
+        boolean trySubtract(long bytes) {
+            long current;
+            do {
+                current = allocated;
+                if (current < bytes) {
+                    return false;
+                }
+            } while (!ALLOCATED.compareAndSet(this, current, current - bytes));
+            return true;
+        }
+
+        long reset() {
+            return ALLOCATED.getAndSet(this, 0);
+        }
+
+        void undo(long bytes) {
+            ALLOCATED.addAndGet(this, -bytes);
+        }
+    }
+
+    /**
+     * Bytes reserved by {@link #tryReserve}; cancel it if the request that needed it is not recorded,
+     * and settle it either way once that is decided.
+     */
+    public final class Reservation {
+        private final Entry entry;
+        private final long bytes;
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        private Reservation(Entry entry, long bytes) {
+            this.entry = entry;
+            this.bytes = bytes;
+        }
+
+        public String getCollection() {
+            return entry.collection;
+        }
+
+        public Document getKey() {
+            return entry.key;
+        }
+
+        public void cancel() {
+            if (entry.trySubtract(bytes)) {
+                submit(entry, -bytes, null);
+            }
+        }
+
+        /**
+         * Tells a delete waiting in {@link #close} that this reservation is recorded or cancelled.
+         */
+        public void settle() {
+            if (settled.compareAndSet(false, true)) {
+                entry.unsettled.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * One change of allocated_bytes, as journaled and written to MongoDB.
+     */
+    public static final class Delta {
+        private final long sequence;
+        private final String collection;
+        private final Document key;
+        private final long bytes;
+        private final String batch;
+        private final long createdNanos = System.nanoTime();
+
+        public Delta(long sequence, String collection, Document key, long bytes, String batch) {
+            this.sequence = sequence;
+            this.collection = collection;
+            this.key = key;
+            this.bytes = bytes;
+            this.batch = batch;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        public Document getKey() {
+            return key;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * The batch the change was made for, or null.
+         */
+        public String getBatch() {
+            return batch;
+        }
+
+        public long getCreatedNanos() {
+            return createdNanos;
+        }
+
+        /**
+         * Matches the resource only if this delta (or a later one) has not been applied yet.
+         */
+        Bson notYetApplied(long upToSequence) {
+            return Filters.and(key, Filters.not(Filters.gte(SEQUENCE_FIELD, upToSequence)));
+        }
+    }
+}
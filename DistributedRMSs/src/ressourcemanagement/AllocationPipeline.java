@@ -0,0 +1,160 @@
+package ressourcemanagement;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Future-based version of the candidate probes in the request flow.
+ *
+ * The sequential flow tries each candidate collection in turn (own region, resources, other
+ * regions) with a blocking write, so a miss costs one round trip per collection. Here every
+ * candidate is read concurrently first. The conditional write is then chained, in preference order,
+ * only over the candidates that showed enough room, so a typical request costs one parallel read
+ * and one write, and no caller thread waits on a probe.
+ *
+ * At most drms.pipeline.maxInFlight operations (default 1000) run at once. A caller that finds
+ * the limit reached gets a failed future at once rather than holding its own thread while it waits.
+ * Probes run on drms.pipeline.threads threads; by default half of drms.mongo.maxPoolSize, since each
+ * probe holds a connection and threads beyond the pool would only queue for one, and the other half
+ * is left for the rest of the application. Enabled with -Ddrms.pipeline=true.
+ */
+public class AllocationPipeline {
+
+    private static final Bson CAPACITY_FIELDS = Projections.include("type",
+            Capacity.CAPACITY_BYTES, Capacity.ALLOCATED_BYTES, Capacity.LEGACY_SIZE, Capacity.LEGACY_ALLOCATED_SIZE);
+
+    private static AllocationPipeline instance;
+
+    private final ExecutorService probes;
+    private final Semaphore inFlight;
+
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    private AllocationPipeline() {
+        int threads = Integer.getInteger("drms.pipeline.threads", Math.max(1, Conn.maxPoolSize() / 2));
+        probes = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "drms-pipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        inFlight = new Semaphore(Integer.getInteger("drms.pipeline.maxInFlight", 1000));
+    }
+
+    public static synchronized AllocationPipeline getInstance() {
+        if (instance == null) {
+            instance = new AllocationPipeline();
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("drms.pipeline", "false"));
+    }
+
+    /**
+     * Allocates the bytes from the first collection, in the given order, that has room for them.
+     *
+     * @return a future of the allocation made, or of null when no collection could fulfil the request
+     */
+    public CompletableFuture<AllocationJournal.Event> allocate(MongoDatabase database, List<String> collections,
+                                                              Document key, long bytes) {
+        return run(database, collections, key, bytes).thenApply(collectionName -> collectionName == null ? null
+                : AllocationJournal.Event.of(AllocationJournal.EventType.ALLOCATE, collectionName, key, bytes));
+    }
+
+    private CompletableFuture<String> run(MongoDatabase database, List<String> collections, Document key, long bytes) {
+        // Backpressure: when saturated, fail at once instead of queueing without limit or blocking the caller
+        if (!inFlight.tryAcquire()) {
+            rejected.incrementAndGet();
+            CompletableFuture<String> busy = new CompletableFuture<>();
+            busy.completeExceptionally(new RejectedExecutionException("Too many allocations in flight, please try again."));
+            return busy;
+        }
+        operations.incrementAndGet();
+        long start = System.nanoTime();
+
+        // Read every candidate at once
+        List<CompletableFuture<Document>> states = new ArrayList<>();
+        for (String collectionName : collections) {
+            MongoCollection<Document> collection = database.getCollection(collectionName);
+            states.add(CompletableFuture.supplyAsync(() -> {
+                reads.incrementAndGet();
+                return collection.find(key).projection(CAPACITY_FIELDS).first();
+            }, probes));
+        }
+
+        CompletableFuture<String> result = CompletableFuture.allOf(states.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(ignored -> writeInOrder(database, collections, states, 0, key, bytes));
+        result.whenComplete((collectionName, error) -> {
+            inFlight.release();
+            record(System.nanoTime() - start);
+        });
+        return result;
+    }
+
+    /**
+     * Tries the conditional write on candidate i, moving on to the next one only if it fails.
+     * Candidates whose state shows they cannot succeed are skipped without a round trip.
+     */
+    private CompletableFuture<String> writeInOrder(MongoDatabase database, List<String> collections,
+                                                   List<CompletableFuture<Document>> states, int i,
+                                                   Document key, long bytes) {
+        if (i >= collections.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Document state = states.get(i).join();
+        boolean worthTrying = state != null && Capacity.capacityBytes(state) - Capacity.allocatedBytes(state) >= bytes;
+        if (!worthTrying) {
+            skipped.incrementAndGet();
+            return writeInOrder(database, collections, states, i + 1, key, bytes);
+        }
+
+        String collectionName = collections.get(i);
+        MongoCollection<Document> collection = database.getCollection(collectionName);
+        return CompletableFuture.supplyAsync(() -> {
+            writes.incrementAndGet();
+            // The conditional writes only match documents in the byte layout
+            if (!state.containsKey(Capacity.CAPACITY_BYTES)) {
+                CapacityMigration.upgradeResource(collection, key);
+            }
+            return ResourceAllocator.allocate(collection, key, bytes).isAllocated();
+        }, probes).thenCompose(done -> done
+                ? CompletableFuture.completedFuture(collectionName)
+                : writeInOrder(database, collections, states, i + 1, key, bytes));
+    }
+
+    private void record(long nanos) {
+        totalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+            // retry until the maximum is recorded
+        }
+    }
+
+    public String statistics() {
+        long count = operations.get();
+        long averageMs = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / count);
+        return String.format("Pipeline: %d operations (%d rejected), %d reads, %d writes, %d candidates skipped; avg %d ms, max %d ms",
+                count, rejected.get(), reads.get(), writes.get(), skipped.get(),
+                averageMs, TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+    }
+}
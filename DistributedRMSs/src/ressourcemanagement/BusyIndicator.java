@@ -0,0 +1,81 @@
+package ressourcemanagement;
+
+import javafx.application.Platform;
+import javafx.geometry.Pos;
+import javafx.scene.Node;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressIndicator;
+import javafx.scene.layout.HBox;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Spinner, status text and Cancel button shown in a dialog while it waits for {@link DatabaseExecutor}.
+ * Hidden (and taking no space) the rest of the time. Stop is only offered for loads: interrupting a
+ * write could leave it half done, so writes are tracked with {@link #trackWrite}.
+ */
+public class BusyIndicator extends HBox {
+
+    private final Label message = new Label();
+    private final Button cancelButton = new Button("Stop");
+    private CompletableFuture<?> current;
+
+    public BusyIndicator() {
+        super(10);
+        ProgressIndicator spinner = new ProgressIndicator();
+        spinner.setPrefSize(24, 24);
+        cancelButton.setOnAction(e -> {
+            if (current != null) {
+                current.cancel(true);
+            }
+        });
+        getChildren().addAll(spinner, message, cancelButton);
+        setAlignment(Pos.CENTER);
+        setShowing(false);
+    }
+
+    /**
+     * Shows the indicator and disables the given controls until the future completes. Stop cancels
+     * the future, so only use it for work that can safely be cut off, i.e. reads.
+     * Must be called on the JavaFX Application Thread.
+     *
+     * @return the same future
+     */
+    public <T> CompletableFuture<T> track(String text, CompletableFuture<T> future, Node... controls) {
+        return track(text, future, true, controls);
+    }
+
+    /**
+     * Like {@link #track}, without Stop: the write runs to the end.
+     */
+    public <T> CompletableFuture<T> trackWrite(String text, CompletableFuture<T> future, Node... controls) {
+        return track(text, future, false, controls);
+    }
+
+    private <T> CompletableFuture<T> track(String text, CompletableFuture<T> future, boolean cancellable, Node... controls) {
+        current = future;
+        message.setText(text);
+        cancelButton.setVisible(cancellable);
+        cancelButton.setManaged(cancellable);
+        setShowing(true);
+        for (Node control : controls) {
+            control.setDisable(true);
+        }
+        future.whenComplete((result, error) -> Platform.runLater(() -> {
+            for (Node control : controls) {
+                control.setDisable(false);
+            }
+            if (current == future) {
+                current = null;
+                setShowing(false);
+            }
+        }));
+        return future;
+    }
+
+    private void setShowing(boolean showing) {
+        setVisible(showing);
+        setManaged(showing);
+    }
+}
@@ -0,0 +1,88 @@
+package ressourcemanagement;
+
+import org.bson.Document;
+
+import java.math.BigDecimal;
+
+/**
+ * Names and helpers for the numeric capacity fields.
+ *
+ * Resource documents store capacity_bytes and allocated_bytes, request documents store size_bytes,
+ * all as int64 byte counts. The "type" field only keeps the unit the value is displayed in.
+ * Documents written before this layout still carry the string "size" and the TB-based
+ * "allocated_size"; they are read through the fallbacks below until {@link CapacityMigration}
+ * has rewritten them.
+ */
+public final class Capacity {
+
+    public static final String CAPACITY_BYTES = "capacity_bytes";
+    public static final String ALLOCATED_BYTES = "allocated_bytes";
+    public static final String SIZE_BYTES = "size_bytes";
+
+    // Legacy fields
+    public static final String LEGACY_SIZE = "size";
+    public static final String LEGACY_ALLOCATED_SIZE = "allocated_size";
+
+    private Capacity() {
+    }
+
+    /**
+     * Formats a byte count as a plain number in the given unit, e.g. 536870912000 bytes in GB gives "500".
+     * Falls back to the raw byte count when the unit is unknown.
+     */
+    public static String format(long bytes, String unit) {
+        Quantity.Unit displayUnit = Quantity.Unit.lookup(unit);
+        if (displayUnit == null) {
+            return String.valueOf(bytes);
+        }
+        return Quantity.ofBytes(bytes, displayUnit).formatAmount();
+    }
+
+    /**
+     * The quantity of a request document, shown in the unit it was requested in.
+     */
+    public static Quantity requestQuantity(Document request) {
+        Quantity.Unit unit = Quantity.Unit.lookup(request.getString("type"));
+        return Quantity.ofBytes(requestBytes(request), unit == null ? Quantity.Unit.GB : unit);
+    }
+
+    public static long capacityBytes(Document resource) {
+        Object value = resource.get(CAPACITY_BYTES);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return legacyBytes(resource.get(LEGACY_SIZE), resource.getString("type"));
+    }
+
+    public static long allocatedBytes(Document resource) {
+        Object value = resource.get(ALLOCATED_BYTES);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        // allocated_size was always kept in TB
+        Object legacy = resource.get(LEGACY_ALLOCATED_SIZE);
+        return legacyBytes(legacy, "TB");
+    }
+
+    public static long requestBytes(Document request) {
+        Object value = request.get(SIZE_BYTES);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return legacyBytes(request.get(LEGACY_SIZE), request.getString("type"));
+    }
+
+    private static long legacyBytes(Object size, String unit) {
+        if (size == null || Quantity.Unit.lookup(unit) == null) {
+            return 0;
+        }
+        try {
+            if (size instanceof Number) {
+                return Quantity.of(new BigDecimal(size.toString()), Quantity.Unit.parse(unit)).bytes();
+            }
+            return Quantity.parse(size.toString(), unit).bytes();
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            return 0;
+        }
+    }
+}
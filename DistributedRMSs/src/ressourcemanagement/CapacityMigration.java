@@ -0,0 +1,155 @@
+package ressourcemanagement;
+
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rewrites documents that still use the legacy string "size" / TB "allocated_size" fields
+ * into int64 byte counts (see {@link Capacity}).
+ *
+ * Runs on a background daemon thread in batches with a short pause between batches, so it
+ * can work through large collections without holding up the application.
+ */
+public class CapacityMigration implements Runnable {
+
+    private static final int BATCH_SIZE = 500;
+    private static final long PAUSE_MS = 50;
+
+    // Set once a full pass found nothing left to rewrite, so writers can skip the legacy fallback
+    private static volatile boolean complete;
+
+    private final MongoDatabase database;
+
+    public CapacityMigration(MongoDatabase database) {
+        this.database = database;
+    }
+
+    public static void startInBackground(MongoDatabase database) {
+        Thread thread = new Thread(new CapacityMigration(database), "drms-capacity-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            long start = System.currentTimeMillis();
+            long rewritten = 0;
+
+            List<String> resourceCollections = new ArrayList<>();
+            resourceCollections.add("resources");
+            resourceCollections.addAll(RegionCatalog.getInstance().getRegionCollections());
+            resourceCollections.add(UnifiedResourceStore.COLLECTION);
+            for (String collectionName : resourceCollections) {
+                rewritten += migrateResources(database.getCollection(collectionName));
+            }
+            rewritten += migrateRequests(database.getCollection("resource_requests"));
+            complete = true;
+
+            if (rewritten > 0) {
+                System.out.println("Capacity migration rewrote " + rewritten + " documents in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("Capacity migration failed: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private long migrateResources(MongoCollection<Document> collection) throws InterruptedException {
+        Bson legacy = Filters.or(Filters.exists(Capacity.LEGACY_SIZE), Filters.exists(Capacity.LEGACY_ALLOCATED_SIZE));
+        return migrate(collection, legacy, true);
+    }
+
+    private long migrateRequests(MongoCollection<Document> collection) throws InterruptedException {
+        return migrate(collection, Filters.exists(Capacity.LEGACY_SIZE), false);
+    }
+
+    private long migrate(MongoCollection<Document> collection, Bson legacy, boolean resources) throws InterruptedException {
+        List<WriteModel<Document>> batch = new ArrayList<>(BATCH_SIZE);
+        long rewritten = 0;
+
+        try (MongoCursor<Document> cursor = collection.find(legacy).batchSize(BATCH_SIZE).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                // Only rewrite documents nobody has upgraded since the cursor read them
+                String newField = resources ? Capacity.CAPACITY_BYTES : Capacity.SIZE_BYTES;
+                batch.add(new UpdateOneModel<Document>(
+                        Filters.and(Filters.eq("_id", doc.get("_id")), Filters.exists(newField, false)),
+                        resources ? resourceUpdate(doc) : requestUpdate(doc)));
+
+                if (batch.size() == BATCH_SIZE) {
+                    rewritten += flush(collection, batch);
+                    Thread.sleep(PAUSE_MS);
+                }
+            }
+        }
+        return rewritten + flush(collection, batch);
+    }
+
+    public static boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Rewrites a single legacy resource document right away, e.g. when an allocation hits it
+     * before the background pass got there.
+     *
+     * @return true when the document was legacy and has been rewritten
+     */
+    public static boolean upgradeResource(MongoCollection<Document> collection, Bson key) {
+        return upgradeResource(null, collection, key);
+    }
+
+    /**
+     * Same as {@link #upgradeResource(MongoCollection, Bson)} inside a transaction; a null session runs without one.
+     */
+    public static boolean upgradeResource(ClientSession session, MongoCollection<Document> collection, Bson key) {
+        if (complete) {
+            return false;
+        }
+        Bson legacyFilter = Filters.and(key, Filters.exists(Capacity.CAPACITY_BYTES, false));
+        Document legacy = session == null ? collection.find(legacyFilter).first() : collection.find(session, legacyFilter).first();
+        if (legacy == null) {
+            return false;
+        }
+        Bson filter = Filters.and(Filters.eq("_id", legacy.get("_id")), Filters.exists(Capacity.CAPACITY_BYTES, false));
+        Document update = resourceUpdate(legacy);
+        UpdateResult result = session == null ? collection.updateOne(filter, update) : collection.updateOne(session, filter, update);
+        return result.getModifiedCount() > 0;
+    }
+
+    private static Document resourceUpdate(Document doc) {
+        return new Document("$set", new Document(Capacity.CAPACITY_BYTES, Capacity.capacityBytes(doc))
+                .append(Capacity.ALLOCATED_BYTES, Capacity.allocatedBytes(doc)))
+                .append("$unset", new Document(Capacity.LEGACY_SIZE, "").append(Capacity.LEGACY_ALLOCATED_SIZE, ""));
+    }
+
+    private static Document requestUpdate(Document doc) {
+        return new Document("$set", new Document(Capacity.SIZE_BYTES, Capacity.requestBytes(doc)))
+                .append("$unset", new Document(Capacity.LEGACY_SIZE, ""));
+    }
+
+    private long flush(MongoCollection<Document> collection, List<WriteModel<Document>> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        long modified = collection.bulkWrite(batch, new BulkWriteOptions().ordered(false)).getModifiedCount();
+        batch.clear();
+        return modified;
+    }
+}
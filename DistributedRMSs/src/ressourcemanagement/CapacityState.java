@@ -0,0 +1,446 @@
+package ressourcemanagement;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-memory copy of the capacity fields of every resource document and of every active grant
+ * (resource_requests with status "allocated"), kept current by a change stream.
+ *
+ * The state is written to a compact local snapshot (gzipped BSON plus the change stream resume
+ * token) every few minutes and at shutdown. At startup the snapshot is loaded and only the changes
+ * made after it are replayed from the change stream, so readiness does not depend on how much data
+ * there is. Without a usable snapshot the collections are scanned once. The restore runs on a
+ * background thread; until it is done {@link #isLive()} is false and readers query MongoDB, so
+ * startup does not wait for it. Change streams need a replica set; without one the state stays
+ * unavailable and readers keep querying MongoDB.
+ * Snapshot location: -Ddrms.snapshot.file (default ~/.drms/capacity.snapshot),
+ * interval: -Ddrms.snapshot.intervalSec (default 300).
+ */
+public class CapacityState {
+
+    private static final int MAGIC = 0x44524d53;
+    private static final int VERSION = 1;
+    private static final String REQUESTS = "resource_requests";
+    private static final String ACTIVE = "allocated";
+
+    private static final Bson RESOURCE_FIELDS = Projections.include("resource_name", "region", "status", "type",
+            Capacity.CAPACITY_BYTES, Capacity.ALLOCATED_BYTES, Capacity.LEGACY_SIZE, Capacity.LEGACY_ALLOCATED_SIZE);
+
+    private static CapacityState instance;
+
+    // collection name -> document key (as JSON) -> projected document
+    private final Map<String, Map<String, Document>> collections = new ConcurrentHashMap<>();
+    private final Object applyLock = new Object();
+    private BsonDocument resumeToken;
+
+    private volatile boolean live;
+    private volatile boolean running;
+    private MongoDatabase database;
+    private ScheduledExecutorService snapshots;
+
+    private long snapshotLoadMs = -1;
+    private long fullLoadMs = -1;
+    private long catchUpMs = -1;
+    private long catchUpEvents;
+    private long startupMs;
+
+    private CapacityState() {
+    }
+
+    public static synchronized CapacityState getInstance() {
+        if (instance == null) {
+            instance = new CapacityState();
+        }
+        return instance;
+    }
+
+    /**
+     * True once the state has caught up with MongoDB and is being kept current.
+     */
+    public boolean isLive() {
+        return live;
+    }
+
+    /**
+     * Starts restoring the state in the background and returns at once.
+     */
+    public synchronized void start(MongoDatabase database) {
+        if (running) {
+            return;
+        }
+        this.database = database;
+        running = true;
+        Thread restorer = new Thread(() -> {
+            try {
+                restore(true);
+            } catch (RuntimeException e) {
+                collections.clear();
+                running = false;
+                System.err.println("Capacity state unavailable: " + e.getMessage());
+            }
+        }, "drms-capacity-restore");
+        restorer.setDaemon(true);
+        restorer.start();
+    }
+
+    private void restore(boolean useSnapshot) {
+        long start = System.currentTimeMillis();
+
+        boolean restored = false;
+        if (useSnapshot) {
+            try {
+                long phase = System.currentTimeMillis();
+                restored = loadSnapshot();
+                snapshotLoadMs = System.currentTimeMillis() - phase;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Capacity snapshot not usable, scanning collections: " + e.getMessage());
+                collections.clear();
+            }
+        }
+
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+        try {
+            if (restored) {
+                cursor = openStream(resumeToken);
+            } else {
+                // Open the stream before scanning so nothing written during the scan is missed
+                cursor = openStream(null);
+                long phase = System.currentTimeMillis();
+                fullLoad();
+                fullLoadMs = System.currentTimeMillis() - phase;
+            }
+            long phase = System.currentTimeMillis();
+            catchUpEvents = catchUp(cursor);
+            catchUpMs = System.currentTimeMillis() - phase;
+        } catch (MongoException e) {
+            if (!restored) {
+                System.out.println("Capacity state unavailable (change streams need a replica set): " + e.getMessage());
+                collections.clear();
+                running = false;
+                return;
+            }
+            // The resume token fell off the oplog; start over from a scan
+            System.out.println("Capacity snapshot too old to resume, scanning collections: " + e.getMessage());
+            collections.clear();
+            resumeToken = null;
+            snapshotLoadMs = -1;
+            restore(false);
+            return;
+        }
+
+        synchronized (this) {
+            // Stopped while restoring
+            if (!running) {
+                cursor.close();
+                return;
+            }
+            live = true;
+            startupMs = System.currentTimeMillis() - start;
+            System.out.println("Capacity state ready in " + startupMs + " ms (" + phases() + ")");
+
+            Thread follower = new Thread(() -> follow(cursor), "drms-capacity-state");
+            follower.setDaemon(true);
+            follower.start();
+
+            long interval = Long.getLong("drms.snapshot.intervalSec", 300L);
+            snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "drms-capacity-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(this::writeSnapshotQuietly, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+            snapshots = null;
+        }
+        if (live) {
+            writeSnapshotQuietly();
+        }
+        running = false;
+        live = false;
+    }
+
+    /**
+     * The resource documents of one collection (capacity fields only), in no particular order.
+     */
+    public List<Document> getResources(String collectionName) {
+        Map<String, Document> documents = collections.get(collectionName);
+        return documents == null ? Collections.<Document>emptyList() : new ArrayList<>(documents.values());
+    }
+
+    /**
+     * All resource_requests documents that currently hold an allocation.
+     */
+    public List<Document> getActiveGrants() {
+        return getResources(REQUESTS);
+    }
+
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openStream(BsonDocument token) {
+        List<Bson> pipeline = Arrays.asList(Aggregates.match(Filters.and(
+                Filters.or(Filters.in("ns.coll", Arrays.asList("resources", UnifiedResourceStore.COLLECTION, REQUESTS)),
+                        Filters.regex("ns.coll", RegionCatalog.SUFFIX + "$")),
+                Filters.in("operationType", Arrays.asList("insert", "update", "replace", "delete")))));
+        ChangeStreamIterable<Document> stream = database.watch(pipeline)
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .maxAwaitTime(1, TimeUnit.SECONDS);
+        if (token != null) {
+            stream = stream.resumeAfter(token);
+        }
+        MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = stream.cursor();
+        synchronized (applyLock) {
+            if (token == null) {
+                resumeToken = cursor.getResumeToken();
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Applies the changes already waiting in the stream.
+     */
+    private long catchUp(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor) {
+        long applied = 0;
+        ChangeStreamDocument<Document> change;
+        while ((change = cursor.tryNext()) != null) {
+            apply(change, cursor.getResumeToken());
+            applied++;
+        }
+        return applied;
+    }
+
+    private void follow(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor) {
+        try {
+            while (running) {
+                ChangeStreamDocument<Document> change = cursor.tryNext();
+                if (change != null) {
+                    apply(change, cursor.getResumeToken());
+                } else {
+                    synchronized (applyLock) {
+                        // Advances past changes to collections the pipeline filters out
+                        BsonDocument token = cursor.getResumeToken();
+                        if (token != null) {
+                            resumeToken = token;
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            live = false;
+            System.err.println("Capacity state stopped following changes: " + e.getMessage());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void apply(ChangeStreamDocument<Document> change, BsonDocument token) {
+        String collectionName = change.getNamespace().getCollectionName();
+        String id = change.getDocumentKey().toJson();
+        Document full = change.getFullDocument();
+
+        synchronized (applyLock) {
+            Map<String, Document> documents = collections.computeIfAbsent(collectionName, c -> new ConcurrentHashMap<>());
+            if (change.getOperationType() == OperationType.DELETE || full == null) {
+                documents.remove(id);
+            } else if (REQUESTS.equals(collectionName)) {
+                if (ACTIVE.equals(full.getString("status"))) {
+                    documents.put(id, full);
+                } else {
+                    documents.remove(id);
+                }
+            } else {
+                documents.put(id, project(full));
+            }
+            resumeToken = token;
+        }
+    }
+
+    private void fullLoad() {
+        List<String> names = new ArrayList<>();
+        names.add("resources");
+        names.addAll(RegionCatalog.getInstance().getRegionCollections());
+        names.add(UnifiedResourceStore.COLLECTION);
+
+        for (String collectionName : names) {
+            Map<String, Document> documents = collections.computeIfAbsent(collectionName, c -> new ConcurrentHashMap<>());
+            try (MongoCursor<Document> cursor = database.getCollection(collectionName).find().projection(RESOURCE_FIELDS).iterator()) {
+                while (cursor.hasNext()) {
+                    Document doc = cursor.next();
+                    documents.put(new Document("_id", doc.get("_id")).toJson(), doc);
+                }
+            }
+        }
+
+        Map<String, Document> grants = collections.computeIfAbsent(REQUESTS, c -> new ConcurrentHashMap<>());
+        try (MongoCursor<Document> cursor = database.getCollection(REQUESTS).find(Filters.eq("status", ACTIVE)).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                grants.put(new Document("_id", doc.get("_id")).toJson(), doc);
+            }
+        }
+    }
+
+    private static Document project(Document full) {
+        Document projected = new Document("_id", full.get("_id"));
+        for (String field : Arrays.asList("resource_name", "region", "status", "type",
+                Capacity.CAPACITY_BYTES, Capacity.ALLOCATED_BYTES, Capacity.LEGACY_SIZE, Capacity.LEGACY_ALLOCATED_SIZE)) {
+            if (full.containsKey(field)) {
+                projected.put(field, full.get(field));
+            }
+        }
+        return projected;
+    }
+
+    private static Path snapshotFile() {
+        return Paths.get(System.getProperty("drms.snapshot.file",
+                Paths.get(System.getProperty("user.home"), ".drms", "capacity.snapshot").toString()));
+    }
+
+    private boolean loadSnapshot() throws IOException {
+        Path file = snapshotFile();
+        if (!Files.exists(file)) {
+            return false;
+        }
+        DocumentCodec codec = new DocumentCodec();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unknown snapshot format");
+            }
+            long written = in.readLong();
+            String token = in.readUTF();
+            int collectionCount = in.readInt();
+            for (int c = 0; c < collectionCount; c++) {
+                String collectionName = in.readUTF();
+                int count = in.readInt();
+                Map<String, Document> documents = new ConcurrentHashMap<>(Math.max(16, count * 2));
+                for (int i = 0; i < count; i++) {
+                    byte[] bson = new byte[in.readInt()];
+                    in.readFully(bson);
+                    Document doc = new RawBsonDocument(bson).decode(codec);
+                    documents.put(new Document("_id", doc.get("_id")).toJson(), doc);
+                }
+                collections.put(collectionName, documents);
+            }
+            if (token.isEmpty()) {
+                return false;
+            }
+            resumeToken = BsonDocument.parse(token);
+            System.out.println("Loaded capacity snapshot from " + new java.util.Date(written));
+            return true;
+        }
+    }
+
+    /**
+     * Writes the current state and resume token to a temporary file and renames it over the snapshot.
+     */
+    public void writeSnapshot() throws IOException {
+        Path file = snapshotFile();
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        DocumentCodec codec = new DocumentCodec();
+
+        // Applying changes pauses while the state is copied, so the token matches the documents
+        Map<String, List<Document>> copy = new java.util.HashMap<>();
+        String token;
+        synchronized (applyLock) {
+            for (Map.Entry<String, Map<String, Document>> entry : collections.entrySet()) {
+                copy.put(entry.getKey(), new ArrayList<>(entry.getValue().values()));
+            }
+            token = resumeToken == null ? "" : resumeToken.toJson();
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(token);
+            out.writeInt(copy.size());
+            for (Map.Entry<String, List<Document>> entry : copy.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Document doc : entry.getValue()) {
+                    RawBsonDocument raw = new RawBsonDocument(doc, codec);
+                    byte[] bson = new byte[raw.getByteBuffer().remaining()];
+                    raw.getByteBuffer().get(bson);
+                    out.writeInt(bson.length);
+                    out.write(bson);
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeSnapshotQuietly() {
+        try {
+            long start = System.currentTimeMillis();
+            writeSnapshot();
+            System.out.println("Capacity snapshot written in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not write capacity snapshot: " + e.getMessage());
+        }
+    }
+
+    private String phases() {
+        StringBuilder text = new StringBuilder();
+        if (snapshotLoadMs >= 0) {
+            text.append("snapshot load ").append(snapshotLoadMs).append(" ms, ");
+        }
+        if (fullLoadMs >= 0) {
+            text.append("full scan ").append(fullLoadMs).append(" ms, ");
+        }
+        return text.append("catch-up ").append(catchUpMs).append(" ms / ").append(catchUpEvents).append(" changes").toString();
+    }
+
+    public String statistics() {
+        if (!live) {
+            return running ? "Capacity state: restoring (reading MongoDB meanwhile)" : "Capacity state: not available";
+        }
+        int resources = 0;
+        for (Map.Entry<String, Map<String, Document>> entry : collections.entrySet()) {
+            if (!REQUESTS.equals(entry.getKey())) {
+                resources += entry.getValue().size();
+            }
+        }
+        return String.format("Capacity state: %d resources, %d active grants; startup %d ms (%s)",
+                resources, getActiveGrants().size(), startupMs, phases());
+    }
+}
@@ -1,27 +1,39 @@
 package ressourcemanagement;
 
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoDatabase;
 
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives every dialog access to the EthRMS database.
+ *
+ * All instances share one process-wide MongoClient (and so one connection pool).
+ * The client is created on first use and closed by {@link #shutdown()} when the
+ * application exits. Pool settings can be overridden with system properties:
+ * drms.mongo.uri, drms.mongo.maxPoolSize, drms.mongo.minPoolSize,
+ * drms.mongo.waitQueueTimeoutMs and drms.mongo.maxIdleTimeMs.
+ */
 public class Conn {
-    
+
+    private static final String DATABASE_NAME = "EthRMS";
+
+    private static MongoClient sharedClient;
+    private static boolean shutdownHookAdded;
+    private static final PoolStats poolStats = new PoolStats();
+
     MongoClient mongoClient;
     MongoDatabase database;
 
     Conn() {
         try {
-            // Connection string to MongoDB (modify if necessary)
-            String connectionString = "mongodb://localhost:27017";
-
-            // Create MongoDB client
-            mongoClient = MongoClients.create(connectionString);
+            mongoClient = getClient();
 
             // Connect to the specific database
-            database = mongoClient.getDatabase("EthRMS");
-
-            System.out.println("Connected to MongoDB database: " + database.getName());
-            
+            database = mongoClient.getDatabase(DATABASE_NAME);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -31,4 +43,64 @@ public class Conn {
     public MongoDatabase getDatabase() {
         return database;
     }
+
+    public MongoClient getClient() {
+        return sharedClient();
+    }
+
+    /**
+     * Connection pool statistics of the shared client (checked-out connections, wait times).
+     */
+    public static PoolStats getPoolStats() {
+        return poolStats;
+    }
+
+    /**
+     * Maximum number of connections of the shared client.
+     */
+    public static int maxPoolSize() {
+        return Integer.getInteger("drms.mongo.maxPoolSize", 50);
+    }
+
+    private static synchronized MongoClient sharedClient() {
+        if (sharedClient == null) {
+            // Connection string to MongoDB (modify if necessary)
+            String connectionString = System.getProperty("drms.mongo.uri", "mongodb://localhost:27017");
+            int maxPoolSize = maxPoolSize();
+            int minPoolSize = Integer.getInteger("drms.mongo.minPoolSize", 0);
+            long waitQueueTimeoutMs = Long.getLong("drms.mongo.waitQueueTimeoutMs", 5000L);
+            long maxIdleTimeMs = Long.getLong("drms.mongo.maxIdleTimeMs", 60000L);
+
+            MongoClientSettings settings = MongoClientSettings.builder()
+                    .applyConnectionString(new ConnectionString(connectionString))
+                    .applyToConnectionPoolSettings(pool -> pool
+                            .maxSize(maxPoolSize)
+                            .minSize(minPoolSize)
+                            .maxWaitTime(waitQueueTimeoutMs, TimeUnit.MILLISECONDS)
+                            .maxConnectionIdleTime(maxIdleTimeMs, TimeUnit.MILLISECONDS)
+                            .addConnectionPoolListener(poolStats))
+                    .build();
+
+            sharedClient = MongoClients.create(settings);
+            if (!shutdownHookAdded) {
+                Runtime.getRuntime().addShutdownHook(new Thread(Conn::shutdown, "drms-mongo-shutdown"));
+                shutdownHookAdded = true;
+            }
+
+            System.out.println("Connected to MongoDB database: " + DATABASE_NAME
+                    + " (pool max " + maxPoolSize + ", wait timeout " + waitQueueTimeoutMs + " ms)");
+        }
+        return sharedClient;
+    }
+
+    /**
+     * Closes the shared client. Safe to call more than once.
+     */
+    public static synchronized void shutdown() {
+        if (sharedClient != null) {
+            sharedClient.close();
+            sharedClient = null;
+            System.out.println("MongoDB connection closed. " + poolStats);
+        }
+    }
 }
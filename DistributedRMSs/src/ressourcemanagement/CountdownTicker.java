@@ -0,0 +1,76 @@
+package ressourcemanagement;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.util.Duration;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * One JavaFX Timeline that drives every countdown on screen.
+ *
+ * Views register their countdowns and unregister them when they close; the timeline runs only
+ * while at least one countdown is registered. Every countdown sees the same clock reading per
+ * pulse. All methods must be called on the JavaFX Application Thread.
+ */
+public class CountdownTicker {
+
+    /**
+     * Something updated once per second.
+     */
+    public interface Countdown {
+        /**
+         * @return false once the countdown has finished and needs no more pulses
+         */
+        boolean tick(LocalDateTime now);
+    }
+
+    private static CountdownTicker instance;
+
+    private final Set<Countdown> countdowns = new LinkedHashSet<>();
+    private final Timeline timeline;
+
+    private CountdownTicker() {
+        timeline = new Timeline(new KeyFrame(Duration.seconds(1), e -> pulse()));
+        timeline.setCycleCount(Timeline.INDEFINITE);
+    }
+
+    public static synchronized CountdownTicker getInstance() {
+        if (instance == null) {
+            instance = new CountdownTicker();
+        }
+        return instance;
+    }
+
+    /**
+     * Adds the countdown and updates it right away, so it never shows a stale value for a second.
+     */
+    public void register(Countdown countdown) {
+        if (!countdown.tick(LocalDateTime.now())) {
+            return;
+        }
+        countdowns.add(countdown);
+        if (countdowns.size() == 1) {
+            timeline.play();
+        }
+    }
+
+    public void unregister(Countdown countdown) {
+        if (countdowns.remove(countdown) && countdowns.isEmpty()) {
+            timeline.stop();
+        }
+    }
+
+    private void pulse() {
+        LocalDateTime now = LocalDateTime.now();
+        // A countdown may unregister others while it runs, so iterate over a copy
+        for (Countdown countdown : new ArrayList<>(countdowns)) {
+            if (countdowns.contains(countdown) && !countdown.tick(now)) {
+                unregister(countdown);
+            }
+        }
+    }
+}
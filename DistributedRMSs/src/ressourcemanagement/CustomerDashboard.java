@@ -60,6 +60,7 @@ public class CustomerDashboard extends Application {
         notifyItem.setOnAction(e -> {
     Notification notify = new Notification(username);
     notify.showNotificationDialog("New Customer", "A new customer has been added successfully.");
+    notify.shutdown();
 });
         notifyMenu.getItems().add(notifyItem);
 
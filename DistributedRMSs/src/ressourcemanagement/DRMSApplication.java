@@ -1,6 +1,7 @@
 package ressourcemanagement;
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
@@ -8,12 +9,22 @@ import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.stage.Stage;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class DRMSApplication extends Application {
 
     @Override
     public void start(Stage primaryStage) {
         primaryStage.setTitle("DISTRIBUTED RESOURCE MANAGEMENT SYSTEM");
 
+        // Requests made before the ledger has loaded wait for it rather than go around it
+        AllocationLedger.expectStart();
+        // The subsystems start on their own thread so the window shows without waiting for MongoDB
+        Thread startup = new Thread(this::startSubsystems, "drms-startup");
+        startup.setDaemon(true);
+        startup.start();
+
         // Create a menu bar
         MenuBar menuBar = new MenuBar();
 
@@ -88,6 +99,62 @@ public class DRMSApplication extends Application {
         primaryStage.show();
     }
 
+    /**
+     * Starts each subsystem on its own, so one that fails does not keep the later ones from starting.
+     * Failures are collected and shown together once every subsystem has been tried.
+     */
+    private void startSubsystems() {
+        long start = System.currentTimeMillis();
+        List<String> failures = new ArrayList<>();
+        startStep("Indexes", failures, () -> new IndexBootstrapper(new Conn().getDatabase()).run());
+        startStep("Region catalog", failures, () -> RegionCatalog.getInstance().startWatching());
+        startStep("Capacity migration", failures, () -> CapacityMigration.startInBackground(new Conn().getDatabase()));
+        startStep("Allocation journal", failures, () -> AllocationJournal.getInstance().start());
+        startStep("Capacity state", failures, () -> CapacityState.getInstance().start(new Conn().getDatabase()));
+        startStep("Resource summary", failures, () -> ResourceSummary.getInstance().start(new Conn().getDatabase()));
+        if (AllocationLedger.isRequested()) {
+            // Until it has started, allocations wait for it; if it fails they go to MongoDB directly
+            startStep("Allocation ledger", failures, () -> AllocationLedger.getInstance().start(new Conn().getDatabase()));
+        }
+        // After the ledger, which owns allocated_bytes when it runs
+        startStep("Expiry recovery", failures, () -> new RemoveGrant().recoverBatches());
+        startStep("Release recovery", failures, () -> new ReleaseResource().recoverReleases());
+        startStep("Expiry scheduler", failures, () -> ExpiryScheduler.getInstance().start(new Conn().getDatabase()));
+        startStep("Notification feed", failures, () -> NotificationFeed.getInstance().start(new Conn().getDatabase()));
+
+        System.out.println("Startup finished in " + (System.currentTimeMillis() - start) + " ms"
+                + (failures.isEmpty() ? "" : " with " + failures.size() + " failures"));
+        if (!failures.isEmpty()) {
+            Platform.runLater(() -> showError("Startup Failed", String.join("\n", failures)));
+        }
+    }
+
+    private interface StartupStep {
+        void run() throws Exception;
+    }
+
+    private static void startStep(String name, List<String> failures, StartupStep step) {
+        try {
+            step.run();
+        } catch (Exception e) {
+            e.printStackTrace();
+            failures.add(name + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void stop() {
+        // Write out pending ledger changes and the capacity snapshot, then close the shared MongoDB client
+        NotificationFeed.getInstance().shutdown();
+        ExpiryScheduler.getInstance().shutdown();
+        AllocationLedger.getInstance().shutdown();
+        AllocationJournal.getInstance().shutdown();
+        CapacityState.getInstance().shutdown();
+        ResourceSummary.getInstance().shutdown();
+        StatusWriteBuffer.getInstance().shutdown();
+        Conn.shutdown();
+    }
+
     // Helper method to create a menu with a specific color
     private Menu createMenu(String title, Color color) {
         Menu menu = new Menu(title);
@@ -104,6 +171,15 @@ public class DRMSApplication extends Application {
         alert.showAndWait();
     }
 
+    // Helper method to show an error dialog
+    private void showError(String title, String message) {
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setTitle(title);
+        alert.setHeaderText(null);
+        alert.setContentText(message);
+        alert.showAndWait();
+    }
+
     // Helper method to show a confirmation dialog
     private boolean confirmDialog(String message) {
         Alert alert = new Alert(Alert.AlertType.CONFIRMATION);
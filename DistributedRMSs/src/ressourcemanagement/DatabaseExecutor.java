@@ -0,0 +1,151 @@
+package ressourcemanagement;
+
+import javafx.application.Platform;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Runs MongoDB work off the JavaFX Application Thread.
+ *
+ * Dialogs hand their database calls to {@link #submit}, which runs them on a bounded pool of daemon
+ * threads and returns a CompletableFuture; {@link #onFxThread} delivers the outcome back with
+ * Platform.runLater. Cancelling the future interrupts the worker (the driver gives up at its next
+ * interruptible point) and the outcome is dropped. When the queue is full the future fails at once
+ * instead of blocking the UI. Pool size: -Ddrms.db.threads (default 8), queue: -Ddrms.db.queue (default 100).
+ */
+public final class DatabaseExecutor {
+
+    private static final ThreadPoolExecutor POOL;
+
+    static {
+        int threads = Integer.getInteger("drms.db.threads", 8);
+        POOL = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Integer.getInteger("drms.db.queue", 100)), runnable -> {
+                    Thread thread = new Thread(runnable, "drms-db");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        POOL.allowCoreThreadTimeOut(true);
+    }
+
+    private static final AtomicLong submitted = new AtomicLong();
+    private static final AtomicLong succeeded = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong cancelled = new AtomicLong();
+    private static final AtomicLong rejected = new AtomicLong();
+    private static final AtomicLong totalQueueNanos = new AtomicLong();
+    private static final AtomicLong maxQueueNanos = new AtomicLong();
+
+    private DatabaseExecutor() {
+    }
+
+    /**
+     * Queues the work on the database pool.
+     *
+     * @return a future completed with the work's result; cancelling it interrupts the work
+     */
+    public static <T> CompletableFuture<T> submit(Callable<T> work) {
+        Task<T> task = new Task<>();
+        long queuedAt = System.nanoTime();
+        submitted.incrementAndGet();
+        try {
+            task.execution = POOL.submit(() -> {
+                recordQueueTime(System.nanoTime() - queuedAt);
+                // Cancelled while still queued
+                if (task.isDone()) {
+                    return;
+                }
+                try {
+                    task.complete(work.call());
+                } catch (Throwable e) {
+                    task.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            task.completeExceptionally(new RejectedExecutionException("The database is busy, please try again.", e));
+        }
+        task.whenComplete((result, error) -> {
+            if (error == null) {
+                succeeded.incrementAndGet();
+            } else if (task.isCancelled()) {
+                cancelled.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Calls onSuccess or onFailure on the JavaFX Application Thread once the future completes.
+     * Nothing is called for a cancelled future.
+     */
+    public static <T> void onFxThread(CompletableFuture<T> future, Consumer<T> onSuccess, Consumer<Throwable> onFailure) {
+        future.whenComplete((result, error) -> Platform.runLater(() -> {
+            if (error == null) {
+                onSuccess.accept(result);
+                return;
+            }
+            Throwable cause = unwrap(error);
+            if (!(cause instanceof CancellationException)) {
+                cause.printStackTrace();
+                onFailure.accept(cause);
+            }
+        }));
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    private static void recordQueueTime(long nanos) {
+        totalQueueNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxQueueNanos.get()) && !maxQueueNanos.compareAndSet(max, nanos)) {
+            // retry until the maximum is recorded
+        }
+    }
+
+    public static String statistics() {
+        long started = submitted.get() - rejected.get();
+        long averageQueueMs = started == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalQueueNanos.get() / started);
+        return String.format("Database tasks: %d submitted, %d succeeded, %d failed, %d cancelled, %d rejected; "
+                        + "%d running, %d queued; queue wait avg %d ms, max %d ms",
+                submitted.get(), succeeded.get(), failed.get(), cancelled.get(), rejected.get(),
+                POOL.getActiveCount(), POOL.getQueue().size(),
+                averageQueueMs, TimeUnit.NANOSECONDS.toMillis(maxQueueNanos.get()));
+    }
+
+    /**
+     * A future that also cancels the pool task running it.
+     */
+    private static final class Task<T> extends CompletableFuture<T> {
+        private volatile Future<?> execution;
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean result = super.cancel(mayInterruptIfRunning);
+            Future<?> running = execution;
+            if (result && running != null) {
+                running.cancel(true);
+            }
+            return result;
+        }
+    }
+}
@@ -2,6 +2,10 @@ package ressourcemanagement;
 
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
@@ -10,11 +14,24 @@ import javafx.scene.layout.HBox;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
 public class DeleteResource {
+    private static final String ALL_COLLECTIONS = "All collections";
+    // The collection a grant's bytes were taken from
+    private static final Document ALLOCATED_FROM = new Document("$ifNull",
+            Arrays.asList("$allocated_from", new Document("$concat", Arrays.asList("$region", RegionCatalog.SUFFIX))));
+    // How long a delete waits for ledger reservations already made to be recorded
+    private static final long RESERVATION_WAIT_MS = 5000;
+
     private Conn conn; // Assuming the Conn class provides the MongoDB connection
 
     public DeleteResource() {
@@ -30,37 +47,59 @@ public class DeleteResource {
         ComboBox<String> resourceComboBox = new ComboBox<>();
         ComboBox<String> collectionComboBox = new ComboBox<>();
         
-        // Fetch and populate the resource combo box
-        resourceComboBox.getItems().addAll(fetchResources());
-
         // Fetch and populate the collection combo box
+        collectionComboBox.getItems().add(ALL_COLLECTIONS);
         collectionComboBox.getItems().addAll(fetchCollections());
 
         Button deleteButton = new Button("Delete");
         Button cancelButton = new Button("Cancel");
+        BusyIndicator busy = new BusyIndicator();
+
+        // Fetch and populate the resource combo box once the names have been read on the database pool
+        CompletableFuture<List<String>> resources = busy.track("Loading resources...",
+                DatabaseExecutor.submit(this::fetchResources), resourceComboBox, deleteButton);
+        DatabaseExecutor.onFxThread(resources, resourceComboBox.getItems()::setAll,
+                error -> showAlert(Alert.AlertType.ERROR, "Error", "Failed to load resources: " + error.getMessage()));
 
         deleteButton.setOnAction(e -> {
             String selectedResource = resourceComboBox.getValue();
             String selectedCollection = collectionComboBox.getValue();
             
             if (selectedResource != null && selectedCollection != null) {
-                // Check if the resource exists in the selected collection
-                if (isResourceInCollection(selectedResource, selectedCollection)) {
-                    Alert confirmationAlert = new Alert(Alert.AlertType.CONFIRMATION, "Are you sure you want to delete the resource: " + selectedResource + " from collection: " + selectedCollection + "?", ButtonType.YES, ButtonType.NO);
+                List<String> targets = ALL_COLLECTIONS.equals(selectedCollection)
+                        ? fetchCollections() : Collections.singletonList(selectedCollection);
+
+                // Find where the resource is and which grants still hold it
+                CompletableFuture<DeletePlan> plan = busy.track("Checking...",
+                        DatabaseExecutor.submit(() -> planDelete(selectedResource, targets)), deleteButton);
+                DatabaseExecutor.onFxThread(plan, found -> {
+                    if (found.collections.isEmpty()) {
+                        showAlert(Alert.AlertType.WARNING, "Warning", "The selected resource does not exist in the selected collection.");
+                        return;
+                    }
+                    if (!found.activeAllocations.isEmpty()) {
+                        showAlert(Alert.AlertType.WARNING, "Resource In Use", "The resource '" + selectedResource
+                                + "' cannot be deleted while it is allocated:\n" + String.join("\n", found.activeAllocations));
+                        return;
+                    }
+                    Alert confirmationAlert = new Alert(Alert.AlertType.CONFIRMATION, "Are you sure you want to delete the resource: " + selectedResource + " from collection: " + String.join(", ", found.collections) + "?", ButtonType.YES, ButtonType.NO);
                     confirmationAlert.setTitle("Confirm Deletion");
                     confirmationAlert.setHeaderText(null);
 
                     // Handle confirmation
                     confirmationAlert.showAndWait().ifPresent(response -> {
                         if (response == ButtonType.YES) {
-                            deleteResource(selectedResource, selectedCollection);
-                            showAlert(Alert.AlertType.INFORMATION, "Success", "Resource '" + selectedResource + "' deleted successfully from collection: " + selectedCollection);
-                            dialogStage.close();
+                            CompletableFuture<Void> delete = busy.trackWrite("Deleting...", DatabaseExecutor.submit(() -> {
+                                deleteResource(selectedResource, found.collections);
+                                return null;
+                            }), deleteButton);
+                            DatabaseExecutor.onFxThread(delete, deleted -> {
+                                showAlert(Alert.AlertType.INFORMATION, "Success", "Resource '" + selectedResource + "' deleted successfully from collection: " + String.join(", ", found.collections));
+                                dialogStage.close();
+                            }, error -> showAlert(Alert.AlertType.ERROR, "Error", "Failed to delete resource: " + error.getMessage()));
                         }
                     });
-                } else {
-                    showAlert(Alert.AlertType.WARNING, "Warning", "The selected resource does not exist in the selected collection.");
-                }
+                }, error -> showAlert(Alert.AlertType.ERROR, "Error", "Failed to check resource: " + error.getMessage()));
             } else {
                 showAlert(Alert.AlertType.WARNING, "Warning", "Please select both a resource and a collection to delete.");
             }
@@ -79,7 +118,7 @@ public class DeleteResource {
         buttonHBox.setPadding(new Insets(10));
 
         // Overall layout (VBox for vertical stacking)
-        VBox vbox = new VBox(10, resourceHBox, collectionHBox, buttonHBox);
+        VBox vbox = new VBox(10, resourceHBox, collectionHBox, buttonHBox, busy);
         vbox.setPadding(new Insets(20));
         Scene scene = new Scene(vbox, 600, 400);
         dialogStage.setScene(scene);
@@ -87,37 +126,21 @@ public class DeleteResource {
     }
 
     private List<String> fetchResources() {
-        List<String> resources = new ArrayList<>();
-        try {
-            MongoDatabase database = conn.getDatabase();
-            // Loop through all collections to find resource names
-            List<String> collectionNames = new ArrayList<>();
-            for (String collectionName : database.listCollectionNames()) {
-                collectionNames.add(collectionName);
-            }
-            for (String collectionName : collectionNames) {
-                MongoCollection<Document> collection = database.getCollection(collectionName);
-                for (Document doc : collection.find()) {
-                    String resourceName = doc.getString("resource_name");
-                    if (resourceName != null && !resources.contains(resourceName)) {
-                        resources.add(resourceName);
-                    }
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        // Each collection returns its distinct names from the unique resource_name index
+        Set<String> resources = new TreeSet<>();
+        MongoDatabase database = conn.getDatabase();
+        for (String collectionName : fetchCollections()) {
+            database.getCollection(collectionName).distinct("resource_name", String.class).into(resources);
         }
-        return resources;
+        return new ArrayList<>(resources);
     }
 
     private List<String> fetchCollections() {
         List<String> collections = new ArrayList<>();
         try {
-            MongoDatabase database = conn.getDatabase();
-            // Get all collection names
-            for (String collectionName : database.listCollectionNames()) {
-                collections.add(collectionName);
-            }
+            // The general collection plus every region collection from the catalog
+            collections.add("resources");
+            collections.addAll(RegionCatalog.getInstance().getRegionCollections());
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -125,28 +148,171 @@ public class DeleteResource {
     }
 
     private boolean isResourceInCollection(String resourceName, String collectionName) {
+        // Existence only: stop at the first matching index entry
+        return conn.getDatabase().getCollection(collectionName)
+                .find(new Document("resource_name", resourceName))
+                .projection(new Document("_id", 1))
+                .limit(1)
+                .first() != null;
+    }
+
+    /**
+     * Finds the target collections that hold the resource and the active grants allocated from them.
+     */
+    private DeletePlan planDelete(String resourceName, List<String> targets) {
+        List<String> collections = new ArrayList<>();
+        for (String collectionName : targets) {
+            if (isResourceInCollection(resourceName, collectionName)) {
+                collections.add(collectionName);
+            }
+        }
+        List<String> activeAllocations = new ArrayList<>();
+        if (!collections.isEmpty()) {
+            for (Document group : conn.getDatabase().getCollection("resource_requests").aggregate(Arrays.asList(
+                    Aggregates.match(activeGrants(resourceName, collections)),
+                    Aggregates.group(ALLOCATED_FROM,
+                            Accumulators.sum("grants", 1),
+                            Accumulators.sum("bytes", "$" + Capacity.SIZE_BYTES),
+                            Accumulators.addToSet("users", "$username")),
+                    Aggregates.sort(Sorts.ascending("_id"))))) {
+                activeAllocations.add(String.format("%s: %d grants, %s bytes, users %s",
+                        group.getString("_id"), group.getInteger("grants"), group.get("bytes"),
+                        String.join(", ", group.getList("users", String.class))));
+            }
+        }
+        return new DeletePlan(collections, activeAllocations);
+    }
+
+    /**
+     * Allocated requests of the resource whose bytes came from one of the collections. Requests from
+     * before allocated_from was recorded count against their own region's collection.
+     */
+    private static Bson activeGrants(String resourceName, List<String> collections) {
+        List<String> regions = new ArrayList<>();
+        for (String collectionName : collections) {
+            if (collectionName.endsWith(RegionCatalog.SUFFIX)) {
+                regions.add(RegionCatalog.regionOf(collectionName));
+            }
+        }
+        return Filters.and(
+                Filters.eq("resource_name", resourceName),
+                Filters.eq("status", "allocated"),
+                Filters.or(Filters.in("allocated_from", collections),
+                        Filters.and(Filters.exists("allocated_from", false), Filters.in("region", regions))));
+    }
+
+    /**
+     * Deletes the resource from every given collection in one transaction, so it is either gone
+     * from all of them or from none. The active grants are checked again inside the transaction.
+     * With the allocation ledger, reservations are decided in memory and never see the transaction,
+     * so the resource is closed to them first and reopened if the delete fails.
+     */
+    private void deleteResource(String resourceName, List<String> collections) {
+        MongoDatabase database = conn.getDatabase();
+        Document key = new Document("resource_name", resourceName);
+        List<Document> unifiedKeys = new ArrayList<>();
+        if (UnifiedResourceStore.isEnabled()) {
+            for (String collectionName : collections) {
+                unifiedKeys.add(UnifiedResourceStore.key(resourceName, UnifiedResourceStore.regionForCollection(collectionName)));
+            }
+        }
+
+        boolean ledger = AllocationLedger.isEnabled();
+        if (ledger) {
+            closeReservations(collections, key, unifiedKeys);
+        }
         try {
-            MongoDatabase database = conn.getDatabase();
-            MongoCollection<Document> collection = database.getCollection(collectionName);
-            // Check if the resource exists in the collection
-            long count = collection.countDocuments(new Document("resource_name", resourceName));
-            return count > 0;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return false;
+            delete(database, resourceName, collections, key, unifiedKeys);
+        } catch (RuntimeException e) {
+            if (ledger) {
+                reopenReservations(collections, key, unifiedKeys);
+            }
+            throw e;
+        }
+
+        // Recorded once the transaction has committed
+        if (collections.contains("resources")) {
+            ResourceNameIndex.getInstance().remove(resourceName);
+        }
+        for (String collectionName : collections) {
+            AllocationJournal.getInstance().record(AllocationJournal.EventType.REMOVE, collectionName, key, 0);
+            if (ledger) {
+                AllocationLedger.getInstance().remove(collectionName, key);
+            }
+        }
+        for (Document unifiedKey : unifiedKeys) {
+            AllocationJournal.getInstance().record(AllocationJournal.EventType.REMOVE, UnifiedResourceStore.COLLECTION, unifiedKey, 0);
+            if (ledger) {
+                AllocationLedger.getInstance().remove(UnifiedResourceStore.COLLECTION, unifiedKey);
+            }
         }
     }
 
-    private void deleteResource(String resourceName, String collectionName) {
+    /**
+     * Stops ledger reservations of the resource and waits for those in progress to be recorded, so
+     * the active grant check sees every grant.
+     */
+    private void closeReservations(List<String> collections, Document key, List<Document> unifiedKeys) {
+        AllocationLedger ledger = AllocationLedger.getInstance();
+        boolean settled = true;
         try {
-            MongoDatabase database = conn.getDatabase();
-            MongoCollection<Document> collection = database.getCollection(collectionName);
-            collection.deleteOne(new Document("resource_name", resourceName));
-        } catch (Exception e) {
-            e.printStackTrace();
+            for (String collectionName : collections) {
+                settled &= ledger.close(collectionName, key, RESERVATION_WAIT_MS);
+            }
+            for (Document unifiedKey : unifiedKeys) {
+                settled &= ledger.close(UnifiedResourceStore.COLLECTION, unifiedKey, RESERVATION_WAIT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            settled = false;
+        }
+        if (!settled) {
+            reopenReservations(collections, key, unifiedKeys);
+            throw new IllegalStateException("the resource is being allocated, please try again");
+        }
+    }
+
+    private void reopenReservations(List<String> collections, Document key, List<Document> unifiedKeys) {
+        AllocationLedger ledger = AllocationLedger.getInstance();
+        for (String collectionName : collections) {
+            ledger.reopen(collectionName, key);
+        }
+        for (Document unifiedKey : unifiedKeys) {
+            ledger.reopen(UnifiedResourceStore.COLLECTION, unifiedKey);
         }
     }
 
+    private void delete(MongoDatabase database, String resourceName, List<String> collections, Document key,
+                        List<Document> unifiedKeys) {
+        new TransactionRunner(conn).run(session -> {
+            MongoCollection<Document> requests = database.getCollection("resource_requests");
+            Bson blocking = activeGrants(resourceName, collections);
+            Document grant = session == null ? requests.find(blocking).first() : requests.find(session, blocking).first();
+            if (grant != null) {
+                throw new IllegalStateException("the resource was allocated to " + grant.getString("username") + " in the meantime");
+            }
+            for (String collectionName : collections) {
+                MongoCollection<Document> collection = database.getCollection(collectionName);
+                if (session == null) {
+                    collection.deleteOne(key);
+                } else {
+                    collection.deleteOne(session, key);
+                }
+            }
+            // Remove the matching entries from the unified store as well
+            if (!unifiedKeys.isEmpty()) {
+                MongoCollection<Document> unified = new UnifiedResourceStore(database).getCollection();
+                Bson anyKey = Filters.or(new ArrayList<Bson>(unifiedKeys));
+                if (session == null) {
+                    unified.deleteMany(anyKey);
+                } else {
+                    unified.deleteMany(session, anyKey);
+                }
+            }
+            return null;
+        });
+    }
+
     private void showAlert(Alert.AlertType alertType, String title, String message) {
         Alert alert = new Alert(alertType);
         alert.setTitle(title);
@@ -154,4 +320,17 @@ public class DeleteResource {
         alert.setContentText(message);
         alert.showAndWait();
     }
+
+    /**
+     * Where a resource can be deleted from, and the grants that prevent it.
+     */
+    private static final class DeletePlan {
+        private final List<String> collections;
+        private final List<String> activeAllocations;
+
+        DeletePlan(List<String> collections, List<String> activeAllocations) {
+            this.collections = collections;
+            this.activeAllocations = activeAllocations;
+        }
+    }
 }
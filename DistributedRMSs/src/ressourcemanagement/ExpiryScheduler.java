@@ -0,0 +1,283 @@
+package ressourcemanagement;
+
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Revokes grants when their release_time passes, without an admin running {@link RemoveGrant}.
+ *
+ * Deadlines live in a hashed timing wheel: WHEEL_SIZE buckets of TICK_MS each, with a round count
+ * for deadlines more than one revolution away. Scheduling and cancelling are O(1), and each tick
+ * visits a single bucket, so a grant is revoked within one tick of its deadline however many are
+ * pending. The wheel is loaded from resource_requests at startup and fed by every new allocation.
+ * The grants due in one tick are revoked together, with a single {@link RemoveGrant} expiry on the
+ * scheduler's own revocation thread, so a burst of deadlines does not fill the database pool.
+ * Turned off with -Ddrms.expiry=false.
+ */
+public class ExpiryScheduler {
+
+    private static final long TICK_MS = 100;
+    private static final int WHEEL_SIZE = 1024;
+    private static final long RETRY_MS = 5000;
+    private static final DateTimeFormatter RELEASE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static ExpiryScheduler instance;
+
+    private final List<LinkedList<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+    // New entries are handed to the wheel thread, which alone touches the buckets
+    private final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+    private final Map<Object, Entry> byRequest = new ConcurrentHashMap<>();
+
+    private volatile boolean running;
+    private Thread ticker;
+    private volatile ExecutorService revoker;
+    private long startMillis;
+    private long tick;
+
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong totalLagMs = new AtomicLong();
+    private final AtomicLong maxLagMs = new AtomicLong();
+
+    private ExpiryScheduler() {
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new LinkedList<>());
+        }
+    }
+
+    public static synchronized ExpiryScheduler getInstance() {
+        if (instance == null) {
+            instance = new ExpiryScheduler();
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("drms.expiry", "true"));
+    }
+
+    /**
+     * Loads every allocated request and starts the wheel.
+     */
+    public synchronized void start(MongoDatabase database) {
+        if (running || !isEnabled()) {
+            return;
+        }
+        startMillis = System.currentTimeMillis();
+        tick = 0;
+        running = true;
+
+        long loadStart = System.currentTimeMillis();
+        try (MongoCursor<Document> cursor = database.getCollection("resource_requests")
+                .find(Filters.eq("status", "allocated"))
+                .projection(Projections.include("release_time", "resource_name", "username"))
+                .iterator()) {
+            while (cursor.hasNext()) {
+                schedule(cursor.next());
+            }
+        } catch (RuntimeException e) {
+            // Without a ticker nothing would ever expire; report the failure rather than accept entries
+            running = false;
+            byRequest.clear();
+            incoming.clear();
+            throw e;
+        }
+        System.out.println("Expiry scheduler loaded " + byRequest.size() + " grants in "
+                + (System.currentTimeMillis() - loadStart) + " ms");
+
+        revoker = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "drms-expiry-revoke");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker = new Thread(this::run, "drms-expiry");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    public synchronized void shutdown() {
+        running = false;
+        if (ticker != null) {
+            ticker.interrupt();
+            ticker = null;
+        }
+        if (revoker != null) {
+            revoker.shutdown();
+            revoker = null;
+        }
+    }
+
+    /**
+     * Schedules the revocation of an allocated request at its release_time. A request that is
+     * already scheduled is moved to the new deadline.
+     */
+    public void schedule(Document request) {
+        if (!running) {
+            return;
+        }
+        String releaseTime = request.getString("release_time");
+        Object requestId = request.get("_id");
+        if (releaseTime == null || requestId == null) {
+            return;
+        }
+        long deadline;
+        try {
+            deadline = LocalDateTime.parse(releaseTime, RELEASE_TIME).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            System.out.println("Not scheduling request " + requestId + ": invalid release_time " + releaseTime);
+            return;
+        }
+        add(new Entry(requestId, deadline));
+    }
+
+    /**
+     * Forgets the request, e.g. because its user released it.
+     */
+    public void cancel(Object requestId) {
+        Entry entry = byRequest.remove(requestId);
+        if (entry != null) {
+            entry.cancelled = true;
+            cancelled.incrementAndGet();
+        }
+    }
+
+    private void add(Entry entry) {
+        Entry previous = byRequest.put(entry.requestId, entry);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        scheduled.incrementAndGet();
+        incoming.add(entry);
+    }
+
+    private void run() {
+        while (running) {
+            long nextTickAt = startMillis + (tick + 1) * TICK_MS;
+            long sleepMs = nextTickAt - System.currentTimeMillis();
+            if (sleepMs > 0) {
+                try {
+                    Thread.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            tick++;
+            placeIncoming();
+            expireBucket(wheel.get((int) (tick % WHEEL_SIZE)));
+        }
+    }
+
+    private void placeIncoming() {
+        Entry entry;
+        while ((entry = incoming.poll()) != null) {
+            if (entry.cancelled) {
+                continue;
+            }
+            // Deadlines already passed go in the next bucket
+            long ticks = Math.max(tick + 1, (entry.deadline - startMillis + TICK_MS - 1) / TICK_MS);
+            entry.rounds = (ticks - tick - 1) / WHEEL_SIZE;
+            wheel.get((int) (ticks % WHEEL_SIZE)).add(entry);
+        }
+    }
+
+    private void expireBucket(LinkedList<Entry> bucket) {
+        long now = System.currentTimeMillis();
+        List<Object> due = new ArrayList<>();
+        for (Iterator<Entry> it = bucket.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.cancelled) {
+                it.remove();
+            } else if (entry.rounds > 0) {
+                entry.rounds--;
+            } else {
+                it.remove();
+                if (fire(entry, now)) {
+                    due.add(entry.requestId);
+                }
+            }
+        }
+        if (!due.isEmpty()) {
+            revoke(due);
+        }
+    }
+
+    private void revoke(List<Object> requestIds) {
+        ExecutorService executor = revoker;
+        if (executor == null) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                new RemoveGrant().revoke(requestIds);
+            } catch (RuntimeException e) {
+                // MongoDB failed; try the whole batch again a little later
+                System.err.println("Could not revoke " + requestIds.size() + " requests: " + e.getMessage());
+                long retryAt = System.currentTimeMillis() + RETRY_MS;
+                for (Object requestId : requestIds) {
+                    add(new Entry(requestId, retryAt));
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes a due entry off the schedule.
+     *
+     * @return false if it was cancelled or rescheduled in the meantime
+     */
+    private boolean fire(Entry entry, long now) {
+        if (!byRequest.remove(entry.requestId, entry)) {
+            return false;
+        }
+        long lag = Math.max(0, now - entry.deadline);
+        expired.incrementAndGet();
+        totalLagMs.addAndGet(lag);
+        long max;
+        while (lag > (max = maxLagMs.get()) && !maxLagMs.compareAndSet(max, lag)) {
+            // retry until the maximum is recorded
+        }
+        return true;
+    }
+
+    public String statistics() {
+        if (!running) {
+            return "Expiry scheduler: off";
+        }
+        long count = expired.get();
+        return String.format("Expiry scheduler: %d pending, %d scheduled, %d expired, %d cancelled; lag avg %d ms, max %d ms",
+                byRequest.size(), scheduled.get(), count, cancelled.get(),
+                count == 0 ? 0 : totalLagMs.get() / count, maxLagMs.get());
+    }
+
+    private static final class Entry {
+        private final Object requestId;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled;
+
+        Entry(Object requestId, long deadline) {
+            this.requestId = requestId;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -11,6 +11,10 @@ import javafx.scene.layout.VBox;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.CompletableFuture;
+
 public class FeedBack {
 
     private final Conn conn; // MongoDB connection
@@ -40,6 +44,7 @@ public class FeedBack {
 
         Button submitButton = new Button("Submit");
         Button cancelButton = new Button("Cancel");
+        BusyIndicator busy = new BusyIndicator();
 
         // Arrange each label and field in an HBox (horizontal layout)
         HBox fullNameBox = new HBox(10, fullNameLabel, fullNameField);
@@ -63,10 +68,15 @@ public class FeedBack {
             if (fullName.isEmpty() || email.isEmpty() || comment.isEmpty() || request.isEmpty()) {
                 showAlert(Alert.AlertType.WARNING, "Form Incomplete", "Please fill in all fields.");
             } else {
-                // Save the feedback to MongoDB
-                saveFeedback(fullName, email, comment, request);
-                showAlert(Alert.AlertType.INFORMATION, "Feedback Submitted", "Thank you for your feedback!");
-                dialogStage.close();
+                // Save the feedback to MongoDB on the database pool
+                CompletableFuture<Void> save = busy.trackWrite("Submitting...", DatabaseExecutor.submit(() -> {
+                    saveFeedback(fullName, email, comment, request);
+                    return null;
+                }), submitButton);
+                DatabaseExecutor.onFxThread(save, saved -> {
+                    showAlert(Alert.AlertType.INFORMATION, "Feedback Submitted", "Thank you for your feedback!");
+                    dialogStage.close();
+                }, error -> showAlert(Alert.AlertType.ERROR, "Error", "An error occurred while saving feedback."));
             }
         });
 
@@ -81,7 +91,7 @@ public class FeedBack {
         VBox vbox = new VBox(10);
         vbox.setPadding(new Insets(20));
         vbox.getChildren().addAll(
-            fullNameBox, emailBox, commentBox, requestBox, buttonBox
+            fullNameBox, emailBox, commentBox, requestBox, buttonBox, busy
         );
 
         // Create the scene and set it to the stage
@@ -93,23 +103,19 @@ public class FeedBack {
     }
 
     private void saveFeedback(String fullName, String email, String comment, String request) {
-        try {
-            MongoDatabase database = conn.getDatabase(); // Get the MongoDB database
-            MongoCollection<Document> collection = database.getCollection("feedback"); // Use a collection for feedback
-
-            // Create a new Document with the feedback data
-            Document feedbackDoc = new Document()
-                    .append("full_name", fullName)
-                    .append("email", email)
-                    .append("comment", comment)
-                    .append("request", request);
-
-            // Insert the feedback document into the collection
-            collection.insertOne(feedbackDoc);
-        } catch (Exception e) {
-            e.printStackTrace();
-            showAlert(Alert.AlertType.ERROR, "Error", "An error occurred while saving feedback.");
-        }
+        MongoDatabase database = conn.getDatabase(); // Get the MongoDB database
+        MongoCollection<Document> collection = database.getCollection("feedback"); // Use a collection for feedback
+
+        // Create a new Document with the feedback data
+        Document feedbackDoc = new Document()
+                .append("full_name", fullName)
+                .append("email", email)
+                .append("comment", comment)
+                .append("request", request)
+                .append("timestamp", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+
+        // Insert the feedback document into the collection
+        collection.insertOne(feedbackDoc);
     }
 
     private void showAlert(Alert.AlertType alertType, String title, String message) {
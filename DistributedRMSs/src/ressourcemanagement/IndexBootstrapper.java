@@ -0,0 +1,140 @@
+package ressourcemanagement;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Creates the indexes needed by the hot queries of the application and checks with explain()
+ * that each of those queries is answered from an index.
+ *
+ * Index creation is idempotent, so this runs on every startup.
+ */
+public class IndexBootstrapper {
+
+    private final MongoDatabase database;
+
+    public IndexBootstrapper(MongoDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Creates all required indexes and verifies the query plans.
+     *
+     * @throws IllegalStateException when an index cannot be built or a hot query still scans a collection
+     */
+    public void run() {
+        long start = System.currentTimeMillis();
+        ensureIndexes();
+        if (Boolean.parseBoolean(System.getProperty("drms.indexes.verify", "true"))) {
+            verifyQueryPlans();
+        }
+        System.out.println("Indexes ready in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    public void ensureIndexes() {
+        // Users are looked up by username on sign in, sign up and every request
+        createIndex("users", Indexes.ascending("username"), new IndexOptions().unique(true));
+
+        // resource_requests: release dialog, notifications, grant expiry and release status updates
+        createIndex("resource_requests", Indexes.ascending("username", "region"), new IndexOptions());
+        createIndex("resource_requests", Indexes.ascending("status", "release_time"), new IndexOptions());
+        createIndex("resource_requests", Indexes.ascending("resource_name", "status"), new IndexOptions());
+        // User status: filtered by status and region, sorted by status, region and username
+        createIndex("resource_requests", Indexes.ascending("status", "region", "username"), new IndexOptions());
+        // Expiry and release batches still being applied; only those requests carry the field
+        createIndex("resource_requests", Indexes.ascending("expiry_batch"), new IndexOptions().sparse(true));
+        createIndex("resource_requests", Indexes.ascending(ReleaseResource.RELEASE_BATCH), new IndexOptions().sparse(true));
+
+        // Feedback viewer pages through feedback newest first
+        createIndex("feedback", Indexes.descending("timestamp", "_id"), new IndexOptions());
+
+        // Each resource name appears once per resources collection
+        for (String collectionName : resourceCollections()) {
+            ensureResourceIndex(collectionName);
+        }
+
+        if (UnifiedResourceStore.isEnabled()) {
+            new UnifiedResourceStore(database).ensureIndexes();
+        }
+    }
+
+    /**
+     * Creates the unique resource_name index on a resources collection, e.g. a newly created branch collection.
+     */
+    public void ensureResourceIndex(String collectionName) {
+        createIndex(collectionName, Indexes.ascending("resource_name"), new IndexOptions().unique(true));
+    }
+
+    public void verifyQueryPlans() {
+        List<String> failures = new ArrayList<>();
+
+        checkPlan("users", new Document("username", ""), failures);
+        checkPlan("resource_requests", new Document("username", "").append("region", ""), failures);
+        checkPlan("resource_requests", new Document("username", ""), failures);
+        checkPlan("resource_requests", new Document("status", "allocated"), failures);
+        checkPlan("resource_requests", new Document("resource_name", "").append("status", "allocated"), failures);
+        for (String collectionName : resourceCollections()) {
+            checkPlan(collectionName, new Document("resource_name", ""), failures);
+        }
+        if (UnifiedResourceStore.isEnabled()) {
+            checkPlan(UnifiedResourceStore.COLLECTION, new Document("resource_name", ""), failures);
+        }
+
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("Queries without index support: " + failures);
+        }
+    }
+
+    private void createIndex(String collectionName, Bson keys, IndexOptions options) {
+        try {
+            database.getCollection(collectionName).createIndex(keys, options);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to create index " + keys + " on " + collectionName + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void checkPlan(String collectionName, Document filter, List<String> failures) {
+        Document explain = database.runCommand(new Document("explain",
+                new Document("find", collectionName).append("filter", filter))
+                .append("verbosity", "queryPlanner"));
+
+        Document queryPlanner = (Document) explain.get("queryPlanner");
+        Document winningPlan = queryPlanner == null ? null : (Document) queryPlanner.get("winningPlan");
+        if (winningPlan != null && usesStage(winningPlan, "COLLSCAN")) {
+            failures.add(collectionName + " " + filter.keySet());
+        }
+    }
+
+    // Walks the plan tree (inputStage / inputStages) looking for the given stage
+    private boolean usesStage(Document plan, String stage) {
+        if (stage.equals(plan.getString("stage"))) {
+            return true;
+        }
+        Object input = plan.get("inputStage");
+        if (input instanceof Document && usesStage((Document) input, stage)) {
+            return true;
+        }
+        Object inputs = plan.get("inputStages");
+        if (inputs instanceof List) {
+            for (Object child : (List<?>) inputs) {
+                if (child instanceof Document && usesStage((Document) child, stage)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private List<String> resourceCollections() {
+        List<String> collections = new ArrayList<>();
+        collections.add("resources");
+        collections.addAll(RegionCatalog.getInstance().getRegionCollections());
+        return collections;
+    }
+}
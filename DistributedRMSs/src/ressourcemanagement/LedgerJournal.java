@@ -0,0 +1,110 @@
+package ressourcemanagement;
+
+import org.bson.Document;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-ahead log of the capacity deltas the {@link AllocationLedger} has accepted but not yet
+ * written to MongoDB, plus a checkpoint file holding the last sequence number known to be persisted.
+ *
+ * The deltas live in a {@link SegmentedJournal}, whose sequence numbers double as the ledger_seq
+ * guard on the resource documents. After a crash every delta past the checkpoint is replayed;
+ * segments that lie entirely before the checkpoint are deleted.
+ */
+public class LedgerJournal {
+
+    private static final String CHECKPOINT_FILE = "ledger.checkpoint";
+    private static final int SEGMENT_BYTES = 16 << 20;
+
+    private final Path directory;
+    private final SegmentedJournal journal;
+
+    public LedgerJournal(Path directory) {
+        this.directory = directory;
+        this.journal = new SegmentedJournal(directory, "ledger", SEGMENT_BYTES);
+    }
+
+    public void open() throws IOException {
+        journal.open(readCheckpoint());
+    }
+
+    /**
+     * Adds a delta to the log without waiting for it to reach the disk.
+     *
+     * @return the delta's sequence number
+     */
+    public long append(String collection, Document key, long bytes, String batch) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(96);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeLong(bytes);
+        out.writeUTF(collection);
+        out.writeUTF(key.toJson());
+        if (batch != null) {
+            out.writeUTF(batch);
+        }
+        out.flush();
+        return journal.append(buffer.toByteArray());
+    }
+
+    /**
+     * Waits for the group commit that covers the delta.
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        journal.awaitDurable(sequence);
+    }
+
+    /**
+     * All deltas with a sequence number above the checkpoint, in order.
+     */
+    public List<AllocationLedger.Delta> readPending() throws IOException {
+        List<AllocationLedger.Delta> pending = new ArrayList<>();
+        journal.read(readCheckpoint(), (sequence, payload) -> {
+            DataInputStream in = SegmentedJournal.stream(payload);
+            long bytes = in.readLong();
+            String collection = in.readUTF();
+            Document key = Document.parse(in.readUTF());
+            // Records written before batches were journaled end after the key
+            String batch = in.available() > 0 ? in.readUTF() : null;
+            pending.add(new AllocationLedger.Delta(sequence, collection, key, bytes, batch));
+        });
+        return pending;
+    }
+
+    public long readCheckpoint() throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(checkpoint)) {
+            return 0;
+        }
+        String text = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim();
+        return text.isEmpty() ? 0 : Long.parseLong(text);
+    }
+
+    /**
+     * Records that every delta up to the sequence number is in MongoDB. Written to a temporary
+     * file and renamed, so a crash leaves either the old or the new checkpoint.
+     */
+    public synchronized void checkpoint(long sequence) throws IOException {
+        Path temp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.write(temp, Long.toString(sequence).getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.deleteThrough(sequence);
+    }
+
+    public void close() {
+        journal.close();
+    }
+
+    public String statistics() {
+        return journal.statistics();
+    }
+}
@@ -0,0 +1,210 @@
+package ressourcemanagement;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind side of the {@link AllocationLedger}: drains queued deltas on a daemon thread,
+ * sums the deltas of each resource and writes every collection's share with one unordered bulk write.
+ *
+ * A batch is written as soon as the previous one is done, so under light load the lag is one round
+ * trip and under heavy load batches simply grow. The queue is bounded (-Ddrms.ledger.maxPending,
+ * default 10000); a change takes its place with {@link #reserveSlot} before it is journaled, so
+ * when the queue is full allocating threads wait there, which bounds how far MongoDB can fall
+ * behind. Failed batches are retried and only checkpointed once written.
+ */
+public class LedgerWriter implements Runnable {
+
+    private static final int MAX_BATCH = 1000;
+    private static final long POLL_MS = 100;
+    private static final long RETRY_PAUSE_MS = 1000;
+
+    private final MongoDatabase database;
+    private final LedgerJournal journal;
+    private final int maxPending = Integer.getInteger("drms.ledger.maxPending", 10000);
+    private final BlockingQueue<AllocationLedger.Delta> queue = new ArrayBlockingQueue<>(maxPending);
+    // Free places in the queue, taken before a delta is journaled so that submitting it never waits
+    private final Semaphore slots = new Semaphore(maxPending);
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastLagMs;
+    private volatile long maxLagMs;
+
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public LedgerWriter(MongoDatabase database, LedgerJournal journal) {
+        this.database = database;
+        this.journal = journal;
+    }
+
+    public void start() {
+        thread = new Thread(this, "drms-ledger-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Waits up to the timeout for room for one delta in the queue.
+     *
+     * @return false if the queue stayed full
+     */
+    public boolean reserveSlot(long timeoutMs) throws InterruptedException {
+        return slots.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gives back a slot that will not be used, e.g. because journaling the delta failed.
+     */
+    public void releaseSlot() {
+        slots.release();
+    }
+
+    /**
+     * Queues a delta whose slot has been reserved; never waits.
+     */
+    public void submit(AllocationLedger.Delta delta) {
+        queue.add(delta);
+    }
+
+    @Override
+    public void run() {
+        List<AllocationLedger.Delta> batch = new ArrayList<>(MAX_BATCH);
+        while (running || !queue.isEmpty() || !batch.isEmpty()) {
+            try {
+                if (batch.isEmpty()) {
+                    AllocationLedger.Delta first = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    slots.release(batch.size());
+                }
+                flush(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (MongoException | IOException e) {
+                failures.incrementAndGet();
+                System.err.println("Ledger write failed, retrying: " + e.getMessage());
+                if (!running) {
+                    // Give up at shutdown; the journal still holds the batch for the next start
+                    return;
+                }
+                try {
+                    Thread.sleep(RETRY_PAUSE_MS);
+                } catch (InterruptedException ie) {
+                    running = false;
+                }
+            }
+        }
+    }
+
+    private void flush(List<AllocationLedger.Delta> batch) throws IOException {
+        // Sum the deltas per resource; the highest sequence number guards the combined update
+        Map<String, Map<String, Combined>> byCollection = new LinkedHashMap<>();
+        long maxSequence = 0;
+        long oldest = Long.MAX_VALUE;
+        for (AllocationLedger.Delta delta : batch) {
+            Map<String, Combined> combined = byCollection.computeIfAbsent(delta.getCollection(), c -> new LinkedHashMap<>());
+            combined.computeIfAbsent(delta.getKey().toJson(), k -> new Combined(delta)).add(delta);
+            maxSequence = Math.max(maxSequence, delta.getSequence());
+            oldest = Math.min(oldest, delta.getCreatedNanos());
+        }
+
+        for (Map.Entry<String, Map<String, Combined>> collection : byCollection.entrySet()) {
+            List<WriteModel<Document>> writes = new ArrayList<>(collection.getValue().size());
+            for (Combined combined : collection.getValue().values()) {
+                writes.add(combined.toWrite());
+            }
+            database.getCollection(collection.getKey()).bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        }
+        journal.checkpoint(maxSequence);
+
+        batches.incrementAndGet();
+        written.addAndGet(batch.size());
+        lastLagMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest);
+        maxLagMs = Math.max(maxLagMs, lastLagMs);
+    }
+
+    /**
+     * Applies a single journaled delta during replay; skipped if the document already has it.
+     */
+    static void applyOne(MongoDatabase database, AllocationLedger.Delta delta) {
+        Combined combined = new Combined(delta);
+        combined.add(delta);
+        UpdateOneModel<Document> write = combined.toWrite();
+        database.getCollection(delta.getCollection()).updateOne(write.getFilter(), write.getUpdate());
+    }
+
+    /**
+     * Stops the writer after everything queued has been written (or the attempt failed).
+     */
+    public void close() {
+        // No interrupt: the writer notices within one poll and a bulk write in flight is not cut off
+        running = false;
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            System.err.println("Ledger writer stopped with " + queue.size() + " changes left in the journal");
+        }
+    }
+
+    public String statistics() {
+        return String.format("write-behind %d pending, %d batches, %d changes, %d failures, lag last %d ms, max %d ms",
+                queue.size(), batches.get(), written.get(), failures.get(), lastLagMs, maxLagMs);
+    }
+
+    /**
+     * The summed delta of one resource within a batch.
+     */
+    private static final class Combined {
+        private final AllocationLedger.Delta first;
+        private final List<String> batches = new ArrayList<>();
+        private long bytes;
+        private long sequence;
+
+        Combined(AllocationLedger.Delta first) {
+            this.first = first;
+        }
+
+        void add(AllocationLedger.Delta delta) {
+            bytes += delta.getBytes();
+            sequence = Math.max(sequence, delta.getSequence());
+            if (delta.getBatch() != null) {
+                batches.add(delta.getBatch());
+            }
+        }
+
+        UpdateOneModel<Document> toWrite() {
+            Document update = new Document("$inc", new Document(Capacity.ALLOCATED_BYTES, bytes))
+                    .append("$set", new Document(AllocationLedger.SEQUENCE_FIELD, sequence));
+            if (!batches.isEmpty()) {
+                update.append("$push", new Document(AllocationLedger.APPLIED_BATCHES_FIELD,
+                        new Document("$each", batches).append("$slice", -AllocationLedger.MAX_APPLIED_BATCHES)));
+            }
+            return new UpdateOneModel<Document>(first.notYetApplied(sequence), update);
+        }
+    }
+}
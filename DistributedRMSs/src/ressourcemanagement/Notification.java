@@ -9,28 +9,46 @@ import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.scene.control.Label;
 import javafx.stage.Stage;
-import javafx.animation.KeyFrame;
-import javafx.animation.Timeline;
 import javafx.beans.property.SimpleStringProperty;
-import javafx.util.Duration;
+import javafx.beans.property.StringProperty;
 
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class Notification {
 
-    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final long REMINDER_LEAD_MINUTES = 5;
+
+    // One timer thread for the reminders of every session
+    private static final ScheduledExecutorService REMINDERS = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "drms-reminders");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private Conn conn; // MongoDB connection object
     private String username; // Username for filtering notifications
+    private NotificationFeed.Subscription subscription;
+    private volatile ScheduledFuture<?> poll;
+    // request id -> latest known state of the user's request and its pending reminders
+    private final Map<Object, TrackedRequest> tracked = new ConcurrentHashMap<>();
 
     public Notification(String username) {
         this.conn = new Conn(); // Initialize the MongoDB connection
@@ -39,64 +57,43 @@ public class Notification {
     }
 
     /**
-     * Starts the notification service to periodically fetch and check notifications.
+     * Follows the user's requests and schedules a reminder before and at each release time.
+     * Changes arrive from the shared {@link NotificationFeed}; the user's allocated requests are read
+     * once to start from. While the feed is not live they are re-read every minute instead, until it
+     * goes live.
      */
     private void startNotificationService() {
-        scheduler.scheduleAtFixedRate(() -> {
-            fetchAndCheckNotifications(username); // Fetch notifications from MongoDB and check reminders
-        }, 0, 1, TimeUnit.MINUTES);
+        // Subscribe before reading, so a change made in between is not missed
+        subscription = NotificationFeed.getInstance().subscribe(username, request -> track(request, true));
+        DatabaseExecutor.submit(() -> {
+            loadAllocatedRequests();
+            return null;
+        });
+        if (!NotificationFeed.getInstance().isLive()) {
+            poll = REMINDERS.scheduleWithFixedDelay(this::pollUntilLive, 1, 1, TimeUnit.MINUTES);
+        }
     }
 
-    /**
-     * Fetch resource requests for the specified username from MongoDB
-     * and check for reminders or overdue notifications.
-     */
-    private void fetchAndCheckNotifications(String username) {
+    private void pollUntilLive() {
+        // One more read once the feed is live covers the changes made before it came up
+        boolean live = NotificationFeed.getInstance().isLive();
+        DatabaseExecutor.submit(() -> {
+            loadAllocatedRequests();
+            return null;
+        });
+        ScheduledFuture<?> current = poll;
+        if (live && current != null) {
+            current.cancel(false);
+        }
+    }
+
+    private void loadAllocatedRequests() {
         try {
-            MongoDatabase database = conn.getDatabase();
-            MongoCollection<Document> collection = database.getCollection("resource_requests");
-
-            // Query to filter by username
-            Document query = new Document("username", username);
-
-            MongoCursor<Document> cursor = collection.find(query).iterator();
-
-            while (cursor.hasNext()) {
-                Document requestDoc = cursor.next();
-
-                String resourceName = requestDoc.getString("resource_name");
-                String size = requestDoc.getString("size");
-                String type = requestDoc.getString("type");
-                String requestTimeStr = requestDoc.getString("time_requested");
-                String releaseTimeStr = requestDoc.getString("time_release");
-
-                // Validate fields
-                if (resourceName == null || requestTimeStr == null || releaseTimeStr == null) {
-                    System.out.println("Skipping invalid document: Missing required fields");
-                    continue;
-                }
-
-                try {
-                    // Parse the times from the database
-                    LocalDateTime requestTime = LocalDateTime.parse(requestTimeStr, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-                    LocalDateTime releaseTime = LocalDateTime.parse(releaseTimeStr, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-                    LocalDateTime now = LocalDateTime.now();
-
-                    // Check if the resource is overdue
-                    if (now.isAfter(releaseTime)) {
-                        showNotificationDialog("Resource Release Reminder",
-                                "The resource '" + resourceName + "' is overdue for release.");
-                    } else {
-                        // Calculate minutes left before the release
-                        long minutesLeft = java.time.Duration.between(now, releaseTime).toMinutes();
-                        if (minutesLeft <= 5 && minutesLeft > 0) {
-                            showNotificationDialog("Resource Release Reminder",
-                                    "You have " + minutesLeft + " minutes left to release the resource: " + resourceName);
-                        }
-                    }
-                } catch (DateTimeParseException e) {
-                    System.out.println("Skipping document due to invalid date format: " + e.getMessage());
-                }
+            MongoCollection<Document> collection = conn.getDatabase().getCollection("resource_requests");
+            Document query = new Document("username", username).append("status", "allocated");
+            for (Document requestDoc : collection.find(query).projection(new Document("resource_name", 1)
+                    .append("status", 1).append("release_time", 1).append("username", 1))) {
+                track(requestDoc, false);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -104,15 +101,79 @@ public class Notification {
         }
     }
 
+    /**
+     * Records the latest state of a request and (re)schedules or cancels its reminders.
+     *
+     * @param fromFeed true for a change pushed by the feed, which always wins over a read made before it
+     */
+    private void track(Document requestDoc, boolean fromFeed) {
+        Object id = requestDoc.get("_id");
+        String resourceName = requestDoc.getString("resource_name");
+        if (id == null || resourceName == null) {
+            return;
+        }
+        TrackedRequest request = new TrackedRequest(resourceName, requestDoc.getString("status"), requestDoc.getString("release_time"));
+        TrackedRequest previous;
+        if (fromFeed) {
+            previous = tracked.put(id, request);
+        } else {
+            previous = tracked.putIfAbsent(id, request);
+            if (previous != null) {
+                return;
+            }
+        }
+        if (previous != null) {
+            if (previous.sameAs(request)) {
+                tracked.put(id, previous);
+                return;
+            }
+            previous.cancelReminders();
+            if ("allocated".equals(previous.status) && "removed".equals(request.status)) {
+                showNotificationDialog("Resource Removed",
+                        "Your grant of the resource '" + resourceName + "' was removed because its release time has passed.");
+            }
+        }
+        if ("allocated".equals(request.status)) {
+            scheduleReminders(request);
+        }
+    }
+
+    private void scheduleReminders(TrackedRequest request) {
+        LocalDateTime releaseTime;
+        try {
+            releaseTime = LocalDateTime.parse(request.releaseTime, TIME_FORMAT);
+        } catch (DateTimeParseException | NullPointerException e) {
+            System.out.println("Skipping request with invalid release time: " + request.releaseTime);
+            return;
+        }
+        long untilRelease = java.time.Duration.between(LocalDateTime.now(), releaseTime).toMillis();
+        long untilReminder = untilRelease - TimeUnit.MINUTES.toMillis(REMINDER_LEAD_MINUTES);
+        if (untilReminder > 0) {
+            request.reminders.add(REMINDERS.schedule(() -> showNotificationDialog("Resource Release Reminder",
+                    "You have " + REMINDER_LEAD_MINUTES + " minutes left to release the resource: " + request.resourceName),
+                    untilReminder, TimeUnit.MILLISECONDS));
+        }
+        request.reminders.add(REMINDERS.schedule(() -> showNotificationDialog("Resource Release Reminder",
+                "The resource '" + request.resourceName + "' is overdue for release."),
+                Math.max(0, untilRelease), TimeUnit.MILLISECONDS));
+    }
+
     public void viewNotifications() {
-    try {
+    // The requests are read on the database pool; the window is built once they arrive
+    CompletableFuture<List<Document>> load = DatabaseExecutor.submit(() -> {
         MongoDatabase database = conn.getDatabase();
         MongoCollection<Document> collection = database.getCollection("resource_requests");
 
         // Query to filter by username
         Document query = new Document("username", username);
-        MongoCursor<Document> cursor = collection.find(query).iterator();
+        return collection.find(query).into(new ArrayList<>());
+    });
+    DatabaseExecutor.onFxThread(load, this::showNotificationsTable, error ->
+            showNotificationDialog("Error", "Failed to retrieve notifications for user '" + username + "': " + error.getMessage()));
+}
 
+private void showNotificationsTable(List<Document> requests) {
+    try {
         // Table setup
         TableView<ResourceRequest> table = new TableView<>();
         table.setPrefWidth(600);  // Set the preferred width of the table to adjust dynamically
@@ -133,8 +194,9 @@ public class Notification {
         TableColumn<ResourceRequest, String> releaseTimeColumn = new TableColumn<>("Release Time");
         releaseTimeColumn.setCellValueFactory(cellData -> new SimpleStringProperty(cellData.getValue().getReleaseTime()));
 
+        // Bound to the row's property, so the cell follows the countdown
         TableColumn<ResourceRequest, String> countdownColumn = new TableColumn<>("Time Remaining");
-        countdownColumn.setCellValueFactory(cellData -> new SimpleStringProperty(cellData.getValue().getTimeRemaining()));
+        countdownColumn.setCellValueFactory(cellData -> cellData.getValue().timeRemainingProperty());
 
         // Add columns to the table
         table.getColumns().addAll(resourceNameColumn, sizeColumn, typeColumn, requestTimeColumn, releaseTimeColumn, countdownColumn);
@@ -153,22 +215,27 @@ public class Notification {
         hbox.getChildren().add(countdownLabel);
 
         // Populate the table with data
-        while (cursor.hasNext()) {
-            Document requestDoc = cursor.next();
+        List<CountdownTicker.Countdown> countdowns = new ArrayList<>();
+        for (Document requestDoc : requests) {
 
             String resourceName = requestDoc.getString("resource_name");
-            String size = requestDoc.getString("size");
             String type = requestDoc.getString("type");
+            String size = Capacity.format(Capacity.requestBytes(requestDoc), type);
             String requestTimeStr = requestDoc.getString("request_date");
             String releaseTimeStr = requestDoc.getString("release_time");
 
-            LocalDateTime releaseTime = LocalDateTime.parse(releaseTimeStr, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
             ResourceRequest request = new ResourceRequest(resourceName, size, type, requestTimeStr, releaseTimeStr);
+            request.setRequestId(requestDoc.get("_id"));
+            if (requestDoc.getString("time_remaining") != null) {
+                request.setTimeRemaining(requestDoc.getString("time_remaining"));
+            }
 
             table.getItems().add(request);
 
-            // Start countdown for each request
-            startCountdown(request, countdownLabel); // Pass countdownLabel to update it dynamically
+            // Only requests still holding their grant count down
+            if ("allocated".equals(requestDoc.getString("status"))) {
+                countdowns.add(startCountdown(request, countdownLabel));
+            }
         }
 
         // Add the table and countdown hbox to the main VBox
@@ -183,6 +250,13 @@ public class Notification {
         stage.setWidth(800);  // Set width to 800 pixels
         stage.setHeight(600); // Set height to 600 pixels
         stage.setResizable(true); // Allow resizing of the window
+
+        // Closing the window releases its countdowns; the ticker stops when none are left
+        stage.setOnHidden(e -> {
+            for (CountdownTicker.Countdown countdown : countdowns) {
+                CountdownTicker.getInstance().unregister(countdown);
+            }
+        });
         
         // Set the scene and show the stage
         stage.setScene(scene);
@@ -193,62 +267,69 @@ public class Notification {
     }
 }
 
-private void startCountdown(ResourceRequest request, Label countdownLabel) {
-    // Track the last notification time to prevent frequent popups
-    final long[] lastNotificationTime = {0}; // Store as an array to allow modification inside lambda
-
-    // Create a timeline for this resource
-    Timeline timeline = new Timeline(
-        new KeyFrame(Duration.seconds(1), e -> {
-            LocalDateTime now = LocalDateTime.now();
-            LocalDateTime releaseTime = request.getReleaseTimeAsLocalDateTime();
-            long minutesLeft = java.time.Duration.between(now, releaseTime).toMinutes();
-
-            if (minutesLeft > 0) {
-                request.setTimeRemaining(minutesLeft + " minutes");
-
-                // Check if there are 10 minutes left
-                if (minutesLeft == 10) {
-                    showNotificationDialog("Reminder", "You have 10 minutes left to release the resource: " + request.getResourceName());
-                }
-
-                // Check if there are 5 minutes left
-                if (minutesLeft == 5) {
-                    showNotificationDialog("Reminder", "You have 5 minutes left to release the resource: " + request.getResourceName());
-                }
-            } else {
-                // Set the time remaining to "Time is expired" when the time is up
-                request.setTimeRemaining("Time is expired");
-
-                // Update the MongoDB collection to reflect the expiration
-                updateTimeRemainingInDatabase(request.getResourceName(), "Time is expired");
+/**
+ * Registers the request's countdown with the shared ticker. Each threshold (10 minutes, 5 minutes,
+ * expired) is announced once, on the pulse that crosses it, and the expiry is written to the
+ * database once; a request opened past a threshold only announces the latest one.
+ */
+private CountdownTicker.Countdown startCountdown(ResourceRequest request, Label countdownLabel) {
+    LocalDateTime releaseTime;
+    try {
+        releaseTime = request.getReleaseTimeAsLocalDateTime();
+    } catch (DateTimeParseException | NullPointerException e) {
+        System.out.println("Skipping countdown with invalid release time: " + request.getReleaseTime());
+        return now -> false;
+    }
+    // 0: none announced, 1: 10 minutes, 2: 5 minutes, 3: expired
+    final int[] announced = {0};
 
-                // Check if 5 minutes have passed since the last notification
-                long currentTimeMillis = System.currentTimeMillis();
-                if (currentTimeMillis - lastNotificationTime[0] >= 5 * 60 * 1000) { // 5 minutes in milliseconds
-                    // Show a reminder when the countdown is complete
-                    showNotificationDialog("Time's Up!", "Your time is completed. Please release the resource: " + request.getResourceName());
+    CountdownTicker.Countdown countdown = now -> {
+        long secondsLeft = java.time.Duration.between(now, releaseTime).getSeconds();
+        int threshold = secondsLeft <= 0 ? 3 : secondsLeft <= 5 * 60 ? 2 : secondsLeft <= 10 * 60 ? 1 : 0;
 
-                    // Update the last notification time
-                    lastNotificationTime[0] = currentTimeMillis;
-                }
+        if (threshold < 3) {
+            request.setTimeRemaining(formatRemaining(secondsLeft));
+        }
+        if (threshold > announced[0]) {
+            announced[0] = threshold;
+            if (threshold == 3) {
+                request.setTimeRemaining("Time is expired");
+                showNotificationDialog("Time's Up!", "Your time is completed. Please release the resource: " + request.getResourceName());
+            } else {
+                showNotificationDialog("Reminder", "You have " + (threshold == 1 ? 10 : 5)
+                        + " minutes left to release the resource: " + request.getResourceName());
             }
-
-            // Update the label in the main interface
             countdownLabel.setText("Time remaining for " + request.getResourceName() + ": " + request.getTimeRemaining());
-        })
-    );
-
-    timeline.setCycleCount(Timeline.INDEFINITE);
-    timeline.play();
+        }
+        if (threshold == 3) {
+            // Written once per request, not again by every view opened afterwards
+            if (!request.isExpiryRecorded()) {
+                updateTimeRemainingInDatabase(request, "Time is expired");
+            }
+            return false;
+        }
+        return true;
+    };
+    // A request already recorded as expired must not announce its expiry again
+    if ("Time is expired".equals(request.getTimeRemaining())) {
+        request.setExpiryRecorded(true);
+        announced[0] = 3;
+    }
+    CountdownTicker.getInstance().register(countdown);
 
-    // Stop the timeline when the resource is released
+    // Stop the countdown when the resource is released
     request.setReleaseAction(() -> {
-        timeline.stop(); // Stop the countdown when the resource is released
+        CountdownTicker.getInstance().unregister(countdown);
         request.setTimeRemaining("Released"); // Update the time remaining to indicate the release
-        updateTimeRemainingInDatabase(request.getResourceName(), "Released");
+        updateTimeRemainingInDatabase(request, "Released");
         countdownLabel.setText("Resource " + request.getResourceName() + " has been released.");
     });
+    return countdown;
+}
+
+private static String formatRemaining(long secondsLeft) {
+    long minutes = secondsLeft / 60;
+    return minutes > 0 ? minutes + " minutes" : secondsLeft + " seconds";
 }
 
 /**
@@ -263,27 +344,10 @@ public void releaseResource(ResourceRequest request) {
     }
 }
 
-
-
-
-private void updateTimeRemainingInDatabase(String resourceName, String newTimeRemaining) {
-    try {
-        MongoDatabase database = conn.getDatabase();
-        MongoCollection<Document> collection = database.getCollection("resource_requests");
-
-        // Query to find the document by resource name
-        Document query = new Document("resource_name", resourceName);
-
-        // Create an update document to modify the timeRemaining field
-        Document update = new Document("$set", new Document("time_remaining", newTimeRemaining));
-
-        // Update the document in the collection
-        collection.updateOne(query, update);
-
-    } catch (Exception e) {
-        e.printStackTrace();
-        showNotificationDialog("Error", "Failed to update the time remaining for resource: " + resourceName);
-    }
+private void updateTimeRemainingInDatabase(ResourceRequest request, String newTimeRemaining) {
+    request.setExpiryRecorded(true);
+    // Written to exactly this request with the next batch; repeated values are dropped
+    StatusWriteBuffer.getInstance().set(request.getRequestId(), "time_remaining", newTimeRemaining);
 }
 
 
@@ -301,13 +365,39 @@ private void updateTimeRemainingInDatabase(String resourceName, String newTimeRe
      * Gracefully shuts down the notification service.
      */
     public void shutdown() {
-        scheduler.shutdown();
-        try {
-            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
-                scheduler.shutdownNow();
+        subscription.close();
+        if (poll != null) {
+            poll.cancel(false);
+        }
+        for (TrackedRequest request : tracked.values()) {
+            request.cancelReminders();
+        }
+        tracked.clear();
+    }
+
+    /**
+     * What the notification service knows of one request.
+     */
+    private static final class TrackedRequest {
+        private final String resourceName;
+        private final String status;
+        private final String releaseTime;
+        private final List<ScheduledFuture<?>> reminders = new CopyOnWriteArrayList<>();
+
+        TrackedRequest(String resourceName, String status, String releaseTime) {
+            this.resourceName = resourceName;
+            this.status = status;
+            this.releaseTime = releaseTime;
+        }
+
+        boolean sameAs(TrackedRequest other) {
+            return Objects.equals(status, other.status) && Objects.equals(releaseTime, other.releaseTime);
+        }
+
+        void cancelReminders() {
+            for (ScheduledFuture<?> reminder : reminders) {
+                reminder.cancel(false);
             }
-        } catch (InterruptedException e) {
-            scheduler.shutdownNow();
         }
     }
 
@@ -317,7 +407,9 @@ private void updateTimeRemainingInDatabase(String resourceName, String newTimeRe
     private String type;
     private String requestTime;
     private String releaseTime;
-    private String timeRemaining;
+    private final StringProperty timeRemaining = new SimpleStringProperty();
+    private Object requestId;
+    private boolean expiryRecorded;
     private Runnable releaseAction; // Action to execute on release
 
     // Constructor
@@ -327,7 +419,7 @@ private void updateTimeRemainingInDatabase(String resourceName, String newTimeRe
         this.type = type;
         this.requestTime = requestTime;
         this.releaseTime = releaseTime;
-        this.timeRemaining = "Calculating...";
+        this.timeRemaining.set("Calculating...");
     }
 
     // Getters and setters for fields...
@@ -367,11 +459,31 @@ private void updateTimeRemainingInDatabase(String resourceName, String newTimeRe
     }
 
     public String getTimeRemaining() {
-        return timeRemaining;
+        return timeRemaining.get();
     }
 
     public void setTimeRemaining(String timeRemaining) {
-        this.timeRemaining = timeRemaining;
+        this.timeRemaining.set(timeRemaining);
+    }
+
+    public StringProperty timeRemainingProperty() {
+        return timeRemaining;
+    }
+
+    public Object getRequestId() {
+        return requestId;
+    }
+
+    public void setRequestId(Object requestId) {
+        this.requestId = requestId;
+    }
+
+    public boolean isExpiryRecorded() {
+        return expiryRecorded;
+    }
+
+    public void setExpiryRecorded(boolean expiryRecorded) {
+        this.expiryRecorded = expiryRecorded;
     }
 }
 
@@ -0,0 +1,285 @@
+package ressourcemanagement;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Pushes changes of resource_requests to the notification sessions of their users.
+ *
+ * A single change stream serves every session in the process: each change is handed to the
+ * listeners subscribed for the request's username, so the cost follows the rate of changes and not
+ * the number of users logged in. The resume token is kept in a small file and the stream resumes
+ * from it after a dropped connection or a restart, so no change is skipped in between. Change
+ * streams need a replica set; without one {@link #isLive()} stays false and sessions poll instead.
+ * Token file: -Ddrms.notifications.tokenFile (default ~/.drms/notifications.token).
+ */
+public class NotificationFeed {
+
+    private static final long TOKEN_SAVE_INTERVAL_MS = 5000;
+    private static final long MAX_BACKOFF_MS = 30000;
+    // Server errors meaning the stream cannot resume from the token
+    private static final int INVALID_RESUME_TOKEN = 260;
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+
+    private static NotificationFeed instance;
+
+    private final Map<String, Set<Consumer<Document>>> listeners = new ConcurrentHashMap<>();
+    private MongoDatabase database;
+    private volatile BsonDocument resumeToken;
+    private String savedToken = "";
+    private long tokenSavedAt;
+
+    private volatile boolean live;
+    private volatile boolean running;
+    private Thread watcher;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private NotificationFeed() {
+    }
+
+    public static synchronized NotificationFeed getInstance() {
+        if (instance == null) {
+            instance = new NotificationFeed();
+        }
+        return instance;
+    }
+
+    /**
+     * True while the change stream is open and changes are being delivered.
+     */
+    public boolean isLive() {
+        return live;
+    }
+
+    public synchronized void start(MongoDatabase database) {
+        if (running) {
+            return;
+        }
+        this.database = database;
+        running = true;
+        resumeToken = loadToken();
+
+        watcher = new Thread(this::watch, "drms-notifications");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public synchronized void shutdown() {
+        running = false;
+        live = false;
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+        saveToken();
+    }
+
+    /**
+     * Calls the listener, on the watcher thread, with the full document of every inserted or
+     * updated request of the user. The listener must not block.
+     *
+     * @return the subscription; close it when the session ends
+     */
+    public Subscription subscribe(String username, Consumer<Document> listener) {
+        listeners.computeIfAbsent(username, u -> new CopyOnWriteArraySet<>()).add(listener);
+        return new Subscription(username, listener);
+    }
+
+    private void watch() {
+        long backoffMs = 1000;
+        while (running) {
+            MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+            try {
+                cursor = openStream();
+            } catch (MongoCommandException e) {
+                if (resumeToken != null) {
+                    // Resuming failed for another reason than a lost position; keep the token and try again
+                    System.err.println("Notification feed could not resume, retrying: " + e.getErrorMessage());
+                    reconnects.incrementAndGet();
+                    backoffMs = pause(backoffMs);
+                    continue;
+                }
+                // The server refused the stream itself, e.g. a standalone server without an oplog
+                System.out.println("Notification feed unavailable, sessions will poll: " + e.getErrorMessage());
+                running = false;
+                return;
+            } catch (MongoException e) {
+                reconnects.incrementAndGet();
+                backoffMs = pause(backoffMs);
+                continue;
+            }
+
+            live = true;
+            backoffMs = 1000;
+            try {
+                while (running) {
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if (change != null) {
+                        dispatch(change.getFullDocument());
+                    }
+                    BsonDocument token = cursor.getResumeToken();
+                    if (token != null) {
+                        resumeToken = token;
+                    }
+                    if (System.currentTimeMillis() - tokenSavedAt >= TOKEN_SAVE_INTERVAL_MS) {
+                        saveToken();
+                    }
+                }
+            } catch (MongoException e) {
+                // Reopened below from the last token, so nothing is lost while disconnected
+                System.err.println("Notification feed interrupted, reconnecting: " + e.getMessage());
+                reconnects.incrementAndGet();
+                backoffMs = pause(backoffMs);
+            } finally {
+                live = false;
+                cursor.close();
+            }
+        }
+    }
+
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openStream() {
+        List<Bson> pipeline = Arrays.asList(Aggregates.match(
+                Filters.in("operationType", Arrays.asList("insert", "update", "replace"))));
+        ChangeStreamIterable<Document> stream = database.getCollection("resource_requests").watch(pipeline)
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .maxAwaitTime(1, TimeUnit.SECONDS);
+        BsonDocument token = resumeToken;
+        if (token != null) {
+            try {
+                return stream.resumeAfter(token).cursor();
+            } catch (MongoCommandException e) {
+                if (e.getErrorCode() != CHANGE_STREAM_HISTORY_LOST && e.getErrorCode() != INVALID_RESUME_TOKEN) {
+                    throw e;
+                }
+                // The token fell off the oplog or is not valid; continue from now
+                System.out.println("Notification resume token no longer usable, starting from now: " + e.getErrorMessage());
+                resumeToken = null;
+            }
+        }
+        return stream.cursor();
+    }
+
+    private void dispatch(Document request) {
+        received.incrementAndGet();
+        if (request == null) {
+            return;
+        }
+        Set<Consumer<Document>> subscribed = listeners.get(request.getString("username"));
+        if (subscribed == null) {
+            return;
+        }
+        for (Consumer<Document> listener : subscribed) {
+            try {
+                listener.accept(request);
+                delivered.incrementAndGet();
+            } catch (RuntimeException e) {
+                System.err.println("Notification listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private long pause(long backoffMs) {
+        try {
+            Thread.sleep(backoffMs);
+        } catch (InterruptedException e) {
+            running = false;
+        }
+        return Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+    }
+
+    private static Path tokenFile() {
+        return Paths.get(System.getProperty("drms.notifications.tokenFile",
+                Paths.get(System.getProperty("user.home"), ".drms", "notifications.token").toString()));
+    }
+
+    private BsonDocument loadToken() {
+        try {
+            Path file = tokenFile();
+            if (!Files.exists(file)) {
+                return null;
+            }
+            savedToken = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+            return savedToken.isEmpty() ? null : BsonDocument.parse(savedToken);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Notification resume token not usable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private synchronized void saveToken() {
+        tokenSavedAt = System.currentTimeMillis();
+        BsonDocument token = resumeToken;
+        if (token == null || token.toJson().equals(savedToken)) {
+            return;
+        }
+        try {
+            Path file = tokenFile();
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(temp, token.toJson().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            savedToken = token.toJson();
+        } catch (IOException e) {
+            System.err.println("Could not save notification resume token: " + e.getMessage());
+        }
+    }
+
+    public String statistics() {
+        int subscribers = 0;
+        for (Set<Consumer<Document>> subscribed : listeners.values()) {
+            subscribers += subscribed.size();
+        }
+        return String.format("Notification feed: %s, %d subscribers, %d changes received, %d delivered, %d reconnects",
+                live ? "live" : "off", subscribers, received.get(), delivered.get(), reconnects.get());
+    }
+
+    /**
+     * A listener registered with {@link #subscribe}.
+     */
+    public final class Subscription implements AutoCloseable {
+        private final String username;
+        private final Consumer<Document> listener;
+
+        private Subscription(String username, Consumer<Document> listener) {
+            this.username = username;
+            this.listener = listener;
+        }
+
+        @Override
+        public void close() {
+            Set<Consumer<Document>> subscribed = listeners.get(username);
+            if (subscribed != null) {
+                subscribed.remove(listener);
+            }
+        }
+    }
+}
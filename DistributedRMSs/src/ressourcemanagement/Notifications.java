@@ -1,19 +1,44 @@
 package ressourcemanagement;
 
 import javafx.application.Platform;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
-import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Feedback viewer. Feedback is read in pages of PAGE_SIZE, newest first, keyed on (timestamp, _id)
+ * so every page is an index range scan however deep the user scrolls. Pages load as the table is
+ * scrolled to either end, and at most MAX_ROWS rows are held; rows scrolled far out of view are
+ * dropped and read again when the user scrolls back.
+ */
 public class Notifications {
+    private static final int PAGE_SIZE = 200;
+    private static final int MAX_ROWS = 5 * PAGE_SIZE;
+
+    private static final Bson FIELDS = Projections.include("full_name", "email", "comment", "request", "feedback_message", "timestamp");
+    private static final Bson NEWEST_FIRST = Sorts.descending("timestamp", "_id");
+    private static final Bson OLDEST_FIRST = Sorts.ascending("timestamp", "_id");
+
     private Conn conn; // MongoDB connection class
+    private TableView<NotificationItem> tableView;
+    private boolean loading;
+    private boolean moreBelow; // older feedback exists after the last row
+    private boolean moreAbove; // rows were dropped from the top of the window
 
     public Notifications() {
         this.conn = new Conn();
@@ -23,52 +48,37 @@ public class Notifications {
      * Fetch and display notifications from the feedback collection when the user clicks "View Notifications."
      */
     public void viewNotifications() {
-        try {
-            // Connect to MongoDB and fetch data
-            MongoDatabase database = conn.getDatabase();
-            TableView<NotificationItem> tableView = new TableView<>();
-            tableView.setPrefWidth(800);
-
-            // Define table columns
-            TableColumn<NotificationItem, String> typeColumn = new TableColumn<>("full_name");
-            typeColumn.setCellValueFactory(cell -> cell.getValue().typeProperty());
-
-            TableColumn<NotificationItem, String> messageColumn = new TableColumn<>("email");
-            messageColumn.setCellValueFactory(cell -> cell.getValue().messageProperty());
-            
-            TableColumn<NotificationItem, String> commentColumn = new TableColumn<>("comment");
-            commentColumn.setCellValueFactory(cell -> cell.getValue().messageProperty());
-            
-            TableColumn<NotificationItem, String> requestColumn = new TableColumn<>("request");
-            requestColumn.setCellValueFactory(cell -> cell.getValue().messageProperty());
-
-            TableColumn<NotificationItem, String> timestampColumn = new TableColumn<>("Timestamp");
-            timestampColumn.setCellValueFactory(cell -> cell.getValue().timestampProperty());
-
-            tableView.getColumns().addAll(typeColumn, messageColumn,commentColumn, requestColumn, timestampColumn);
-
-            // Fetch feedback from the "feedback" collection
-            MongoCollection<Document> feedbackCollection = database.getCollection("feedback");
-            Document feedbackQuery = new Document();
-
-            try (MongoCursor<Document> feedbackCursor = feedbackCollection.find(feedbackQuery).iterator()) {
-                while (feedbackCursor.hasNext()) {
-                    Document doc = feedbackCursor.next();
-                    String feedbackMessage = doc.getString("feedback_message");
-                    String timestamp = doc.getString("timestamp");
-
-                    if (feedbackMessage != null && timestamp != null) {
-                        tableView.getItems().add(new NotificationItem("User Feedback", feedbackMessage, timestamp));
-                    }
-                }
-            }
+        tableView = new TableView<>();
+        tableView.setPrefWidth(800);
 
-            // Display the table in a new window
-            if (tableView.getItems().isEmpty()) {
+        // Define table columns
+        TableColumn<NotificationItem, String> nameColumn = new TableColumn<>("full_name");
+        nameColumn.setCellValueFactory(cell -> cell.getValue().fullNameProperty());
+
+        TableColumn<NotificationItem, String> emailColumn = new TableColumn<>("email");
+        emailColumn.setCellValueFactory(cell -> cell.getValue().emailProperty());
+
+        TableColumn<NotificationItem, String> commentColumn = new TableColumn<>("comment");
+        commentColumn.setCellValueFactory(cell -> cell.getValue().commentProperty());
+
+        TableColumn<NotificationItem, String> requestColumn = new TableColumn<>("request");
+        requestColumn.setCellValueFactory(cell -> cell.getValue().requestProperty());
+
+        TableColumn<NotificationItem, String> timestampColumn = new TableColumn<>("Timestamp");
+        timestampColumn.setCellValueFactory(cell -> cell.getValue().timestampProperty());
+
+        tableView.getColumns().addAll(nameColumn, emailColumn, commentColumn, requestColumn, timestampColumn);
+
+        // Only the first page is read before the window opens
+        DatabaseExecutor.onFxThread(DatabaseExecutor.submit(() -> readPage(null, true)), page -> {
+            if (page.isEmpty()) {
                 showError("No Feedback", "You have no feedback at this time.");
                 return;
             }
+            tableView.getItems().addAll(page);
+            moreBelow = page.size() == PAGE_SIZE;
 
+            // Display the table in a new window
             VBox vbox = new VBox(tableView);
             vbox.setSpacing(10);
             Scene scene = new Scene(vbox);
@@ -77,10 +87,125 @@ public class Notifications {
             stage.setTitle("User Feedback");
             stage.show();
 
-        } catch (Exception e) {
-            e.printStackTrace();
+            // The scroll bar exists once the table has been laid out
+            Platform.runLater(this::watchScrolling);
+        }, error -> showError("Error", "Failed to fetch feedback. Please try again."));
+    }
+
+    private void watchScrolling() {
+        for (Node node : tableView.lookupAll(".scroll-bar")) {
+            if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                ScrollBar bar = (ScrollBar) node;
+                bar.valueProperty().addListener((observable, oldValue, value) -> {
+                    if (value.doubleValue() >= bar.getMax()) {
+                        loadOlder();
+                    } else if (value.doubleValue() <= bar.getMin()) {
+                        loadNewer();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Appends the next page below the last row, dropping rows from the top beyond MAX_ROWS.
+     */
+    private void loadOlder() {
+        if (loading || !moreBelow) {
+            return;
+        }
+        List<NotificationItem> items = tableView.getItems();
+        NotificationItem last = items.get(items.size() - 1);
+        loading = true;
+        DatabaseExecutor.onFxThread(DatabaseExecutor.submit(() -> readPage(last, true)), page -> {
+            loading = false;
+            moreBelow = page.size() == PAGE_SIZE;
+            int previousLast = items.size() - 1;
+            items.addAll(page);
+            int excess = items.size() - MAX_ROWS;
+            if (excess > 0) {
+                items.subList(0, excess).clear();
+                moreAbove = true;
+                // Keep the row the user was looking at in view
+                tableView.scrollTo(previousLast - excess);
+            }
+        }, error -> {
+            loading = false;
             showError("Error", "Failed to fetch feedback. Please try again.");
+        });
+    }
+
+    /**
+     * Reads back the page above the first row after rows were dropped, trimming the bottom instead.
+     */
+    private void loadNewer() {
+        if (loading || !moreAbove) {
+            return;
         }
+        List<NotificationItem> items = tableView.getItems();
+        NotificationItem first = items.get(0);
+        loading = true;
+        DatabaseExecutor.onFxThread(DatabaseExecutor.submit(() -> readPage(first, false)), page -> {
+            loading = false;
+            moreAbove = page.size() == PAGE_SIZE;
+            items.addAll(0, page);
+            int excess = items.size() - MAX_ROWS;
+            if (excess > 0) {
+                items.subList(items.size() - excess, items.size()).clear();
+                moreBelow = true;
+            }
+            tableView.scrollTo(page.size());
+        }, error -> {
+            loading = false;
+            showError("Error", "Failed to fetch feedback. Please try again.");
+        });
+    }
+
+    /**
+     * Reads up to PAGE_SIZE feedback documents next to the given row, in display order (newest first).
+     *
+     * @param from  the row to continue from, or null for the first page
+     * @param older read the rows after it rather than the rows before it
+     */
+    private List<NotificationItem> readPage(NotificationItem from, boolean older) {
+        MongoCollection<Document> feedbackCollection = conn.getDatabase().getCollection("feedback");
+        Bson filter = from == null ? new Document() : older ? after(from) : before(from);
+
+        List<NotificationItem> page = new ArrayList<>(PAGE_SIZE);
+        for (Document doc : feedbackCollection.find(filter).projection(FIELDS).sort(older ? NEWEST_FIRST : OLDEST_FIRST).limit(PAGE_SIZE)) {
+            page.add(new NotificationItem(doc));
+        }
+        if (!older) {
+            Collections.reverse(page);
+        }
+        return page;
+    }
+
+    /**
+     * Rows shown after the given one. Feedback saved without a timestamp sorts last.
+     */
+    private static Bson after(NotificationItem row) {
+        if (row.getTimestamp() == null) {
+            return Filters.and(Filters.eq("timestamp", null), Filters.lt("_id", row.getId()));
+        }
+        return Filters.or(
+                Filters.lt("timestamp", row.getTimestamp()),
+                Filters.and(Filters.eq("timestamp", row.getTimestamp()), Filters.lt("_id", row.getId())),
+                Filters.eq("timestamp", null));
+    }
+
+    /**
+     * Rows shown before the given one.
+     */
+    private static Bson before(NotificationItem row) {
+        if (row.getTimestamp() == null) {
+            return Filters.or(
+                    Filters.and(Filters.eq("timestamp", null), Filters.gt("_id", row.getId())),
+                    Filters.ne("timestamp", null));
+        }
+        return Filters.or(
+                Filters.gt("timestamp", row.getTimestamp()),
+                Filters.and(Filters.eq("timestamp", row.getTimestamp()), Filters.gt("_id", row.getId())));
     }
 
     /**
@@ -96,22 +221,47 @@ public class Notifications {
 }
 
 class NotificationItem {
-    private final StringProperty type;
-    private final StringProperty message;
+    private final Object id;
+    private final String rawTimestamp;
+    private final StringProperty fullName;
+    private final StringProperty email;
+    private final StringProperty comment;
+    private final StringProperty request;
     private final StringProperty timestamp;
 
-    public NotificationItem(String type, String message, String timestamp) {
-        this.type = new SimpleStringProperty(type);
-        this.message = new SimpleStringProperty(message);
-        this.timestamp = new SimpleStringProperty(timestamp);
+    public NotificationItem(Document doc) {
+        this.id = doc.get("_id");
+        this.rawTimestamp = doc.getString("timestamp");
+        this.fullName = new SimpleStringProperty(doc.getString("full_name"));
+        this.email = new SimpleStringProperty(doc.getString("email"));
+        // Older feedback stored its text as feedback_message
+        this.comment = new SimpleStringProperty(doc.getString(doc.containsKey("comment") ? "comment" : "feedback_message"));
+        this.request = new SimpleStringProperty(doc.getString("request"));
+        this.timestamp = new SimpleStringProperty(rawTimestamp);
+    }
+
+    public Object getId() {
+        return id;
+    }
+
+    public String getTimestamp() {
+        return rawTimestamp;
+    }
+
+    public StringProperty fullNameProperty() {
+        return fullName;
+    }
+
+    public StringProperty emailProperty() {
+        return email;
     }
 
-    public StringProperty typeProperty() {
-        return type;
+    public StringProperty commentProperty() {
+        return comment;
     }
 
-    public StringProperty messageProperty() {
-        return message;
+    public StringProperty requestProperty() {
+        return request;
     }
 
     public StringProperty timestampProperty() {
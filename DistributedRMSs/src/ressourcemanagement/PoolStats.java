@@ -0,0 +1,111 @@
+package ressourcemanagement;
+
+import com.mongodb.event.ConnectionAddedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import com.mongodb.event.ConnectionPoolOpenedEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import com.mongodb.event.ConnectionRemovedEvent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects connection pool statistics for the shared MongoClient in {@link Conn}.
+ */
+@SuppressWarnings("deprecation")
+public class PoolStats implements ConnectionPoolListener {
+
+    private final AtomicInteger checkedOut = new AtomicInteger();
+    private final AtomicInteger poolSize = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicLong totalCheckouts = new AtomicLong();
+    private final AtomicLong totalWaits = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    // The sync driver enters and leaves the wait queue on the calling thread
+    private final ThreadLocal<Long> waitStart = new ThreadLocal<>();
+
+    @Override
+    public void connectionPoolOpened(ConnectionPoolOpenedEvent event) {
+    }
+
+    @Override
+    public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        checkedOut.incrementAndGet();
+        totalCheckouts.incrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        checkedOut.decrementAndGet();
+    }
+
+    @Override
+    public void waitQueueEntered(ConnectionPoolWaitQueueEnteredEvent event) {
+        waiting.incrementAndGet();
+        waitStart.set(System.nanoTime());
+    }
+
+    @Override
+    public void waitQueueExited(ConnectionPoolWaitQueueExitedEvent event) {
+        waiting.decrementAndGet();
+        Long start = waitStart.get();
+        if (start != null) {
+            waitStart.remove();
+            long waited = System.nanoTime() - start;
+            totalWaits.incrementAndGet();
+            totalWaitNanos.addAndGet(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+    }
+
+    @Override
+    public void connectionAdded(ConnectionAddedEvent event) {
+        poolSize.incrementAndGet();
+    }
+
+    @Override
+    public void connectionRemoved(ConnectionRemovedEvent event) {
+        poolSize.decrementAndGet();
+    }
+
+    public int getCheckedOut() {
+        return checkedOut.get();
+    }
+
+    public int getPoolSize() {
+        return poolSize.get();
+    }
+
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    public long getTotalCheckouts() {
+        return totalCheckouts.get();
+    }
+
+    public double getAverageWaitMillis() {
+        long waits = totalWaits.get();
+        return waits == 0 ? 0.0 : totalWaitNanos.get() / (waits * 1_000_000.0);
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Pool: %d open, %d checked out, %d waiting, %d checkouts, avg wait %.2f ms, max wait %.2f ms",
+                getPoolSize(), getCheckedOut(), getWaiting(), getTotalCheckouts(), getAverageWaitMillis(), getMaxWaitMillis());
+    }
+}
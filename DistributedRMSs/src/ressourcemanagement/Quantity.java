@@ -0,0 +1,182 @@
+package ressourcemanagement;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * An immutable amount of storage: an exact byte count plus the unit it is shown in.
+ *
+ * All conversions go through the long byte count, so converting between KB, MB, GB, TB and PB
+ * never loses precision, and arithmetic that would overflow a long throws ArithmeticException.
+ * Hot paths that only need numbers can stay on primitives with {@link Unit#toBytes(long)} and
+ * {@link Unit#lookup(String)}, which do not allocate.
+ */
+public final class Quantity implements Comparable<Quantity> {
+
+    public enum Unit {
+        KB(1L << 10),
+        MB(1L << 20),
+        GB(1L << 30),
+        TB(1L << 40),
+        PB(1L << 50);
+
+        private static final Unit[] VALUES = values();
+
+        private final long bytes;
+
+        Unit(long bytes) {
+            this.bytes = bytes;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * Converts a whole number of this unit to bytes.
+         *
+         * @throws ArithmeticException if the result does not fit in a long
+         */
+        public long toBytes(long amount) {
+            return Math.multiplyExact(amount, bytes);
+        }
+
+        /**
+         * Case-insensitive lookup that returns null for an unknown unit instead of throwing.
+         */
+        public static Unit lookup(String text) {
+            if (text == null) {
+                return null;
+            }
+            String name = text.trim();
+            for (Unit unit : VALUES) {
+                if (unit.name().equalsIgnoreCase(name)) {
+                    return unit;
+                }
+            }
+            return null;
+        }
+
+        public static Unit parse(String text) {
+            Unit unit = lookup(text);
+            if (unit == null) {
+                throw new IllegalArgumentException("Unknown unit: " + text + " (use KB, MB, GB, TB or PB)");
+            }
+            return unit;
+        }
+    }
+
+    private final long bytes;
+    private final Unit unit;
+
+    private Quantity(long bytes, Unit unit) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Quantity cannot be negative: " + bytes);
+        }
+        this.bytes = bytes;
+        this.unit = unit;
+    }
+
+    public static Quantity ofBytes(long bytes, Unit unit) {
+        return new Quantity(bytes, unit);
+    }
+
+    public static Quantity of(long amount, Unit unit) {
+        return new Quantity(unit.toBytes(amount), unit);
+    }
+
+    /**
+     * Exact conversion of a decimal amount; fractions of a byte are rounded half up.
+     */
+    public static Quantity of(BigDecimal amount, Unit unit) {
+        BigDecimal bytes = amount.multiply(BigDecimal.valueOf(unit.bytes)).setScale(0, RoundingMode.HALF_UP);
+        return new Quantity(bytes.longValueExact(), unit);
+    }
+
+    /**
+     * Parses input such as "500 GB", "1.5tb" or "750 mb".
+     *
+     * @throws NumberFormatException if the amount is not a number
+     * @throws IllegalArgumentException if the unit is unknown or the amount negative
+     * @throws ArithmeticException if the amount does not fit in a long byte count
+     */
+    public static Quantity parse(String text) {
+        String value = text.trim();
+        int split = value.length();
+        while (split > 0 && Character.isLetter(value.charAt(split - 1))) {
+            split--;
+        }
+        return parse(value.substring(0, split), value.substring(split));
+    }
+
+    /**
+     * Parses an amount and a unit given separately, as in the request and resource forms.
+     */
+    public static Quantity parse(String amount, String unit) {
+        return of(new BigDecimal(amount.trim()), Unit.parse(unit));
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public Unit unit() {
+        return unit;
+    }
+
+    /**
+     * The same amount shown in another unit.
+     */
+    public Quantity to(Unit other) {
+        return other == unit ? this : new Quantity(bytes, other);
+    }
+
+    /**
+     * The exact amount in the given unit. Units are powers of two, so the division always terminates.
+     */
+    public BigDecimal amountIn(Unit other) {
+        return BigDecimal.valueOf(bytes).divide(BigDecimal.valueOf(other.bytes)).stripTrailingZeros();
+    }
+
+    public Quantity plus(Quantity other) {
+        return new Quantity(Math.addExact(bytes, other.bytes), unit);
+    }
+
+    public Quantity minus(Quantity other) {
+        return new Quantity(Math.subtractExact(bytes, other.bytes), unit);
+    }
+
+    /**
+     * The amount in the display unit as plain text, e.g. "500" or "1.5".
+     */
+    public String formatAmount() {
+        return amountIn(unit).toPlainString();
+    }
+
+    @Override
+    public int compareTo(Quantity other) {
+        return Long.compare(bytes, other.bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Quantity)) {
+            return false;
+        }
+        Quantity other = (Quantity) o;
+        return bytes == other.bytes && unit == other.unit;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(bytes) + unit.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return formatAmount() + " " + unit;
+    }
+}
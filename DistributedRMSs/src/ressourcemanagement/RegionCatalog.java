@@ -0,0 +1,199 @@
+package ressourcemanagement;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory list of the region resource collections (every collection named "&lt;region&gt;_resources").
+ *
+ * The names are discovered once with listCollectionNames() and then kept up to date by
+ * {@link #register(String)} (called when AddResource creates a branch collection), by an
+ * explicit {@link #refresh()}, or by a change stream watcher when the server supports one. The watcher
+ * reconnects with backoff when the stream breaks and re-reads the names after each reconnect.
+ */
+public class RegionCatalog {
+
+    public static final String SUFFIX = "_resources";
+
+    private static final long MAX_BACKOFF_MS = 30000;
+
+    private static RegionCatalog instance;
+
+    private final MongoDatabase database;
+    private volatile List<String> collections;
+    private Thread watcher;
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private RegionCatalog(MongoDatabase database) {
+        this.database = database;
+    }
+
+    public static synchronized RegionCatalog getInstance() {
+        if (instance == null) {
+            instance = new RegionCatalog(new Conn().getDatabase());
+        }
+        return instance;
+    }
+
+    /**
+     * All region collection names, sorted. The list is read-only and safe to iterate while the catalog changes.
+     */
+    public List<String> getRegionCollections() {
+        List<String> current = collections;
+        if (current == null) {
+            current = refresh();
+        }
+        return current;
+    }
+
+    /**
+     * Region collection names except the one belonging to the given region.
+     */
+    public List<String> getOtherRegionCollections(String region) {
+        String own = collectionFor(region);
+        List<String> others = new ArrayList<>();
+        for (String collectionName : getRegionCollections()) {
+            if (!collectionName.equals(own)) {
+                others.add(collectionName);
+            }
+        }
+        return others;
+    }
+
+    /**
+     * The collections probed for a resource: the region-specific one first, then the main resources
+     * collection, then the other regions.
+     */
+    public List<String> getProbeOrder(String region) {
+        List<String> order = new ArrayList<>();
+        order.add(collectionFor(region));
+        order.add("resources");
+        order.addAll(getOtherRegionCollections(region));
+        return order;
+    }
+
+    public static String collectionFor(String region) {
+        return region + SUFFIX;
+    }
+
+    public static String regionOf(String collectionName) {
+        return collectionName.substring(0, collectionName.length() - SUFFIX.length());
+    }
+
+    /**
+     * Re-reads the collection names from the database.
+     */
+    public synchronized List<String> refresh() {
+        TreeSet<String> names = new TreeSet<>();
+        for (String collectionName : database.listCollectionNames()) {
+            if (collectionName.endsWith(SUFFIX)) {
+                names.add(collectionName);
+            }
+        }
+        collections = Collections.unmodifiableList(new ArrayList<>(names));
+        return collections;
+    }
+
+    /**
+     * Adds a collection that was just created (for example a new branch in AddResource).
+     */
+    public synchronized void register(String collectionName) {
+        if (!collectionName.endsWith(SUFFIX)) {
+            return;
+        }
+        TreeSet<String> names = new TreeSet<>(getRegionCollections());
+        if (names.add(collectionName)) {
+            collections = Collections.unmodifiableList(new ArrayList<>(names));
+        }
+    }
+
+    public synchronized void unregister(String collectionName) {
+        TreeSet<String> names = new TreeSet<>(getRegionCollections());
+        if (names.remove(collectionName)) {
+            collections = Collections.unmodifiableList(new ArrayList<>(names));
+        }
+    }
+
+    /**
+     * Starts a daemon thread that follows inserts into new region collections and drops of existing ones.
+     * Change streams need a replica set; on a standalone server the catalog just relies on register/refresh.
+     */
+    public synchronized void startWatching() {
+        if (watcher != null) {
+            return;
+        }
+        watcher = new Thread(this::watch, "drms-region-catalog");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watch() {
+        List<Bson> pipeline = Arrays.asList(Aggregates.match(Filters.and(
+                Filters.regex("ns.coll", SUFFIX + "$"),
+                Filters.in("operationType", Arrays.asList("insert", "drop", "rename")))));
+
+        long backoffMs = 1000;
+        while (true) {
+            MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor;
+            try {
+                cursor = database.watch(pipeline).cursor();
+            } catch (MongoCommandException e) {
+                // The server refused the stream itself, e.g. a standalone server without an oplog
+                System.out.println("Region catalog change stream unavailable, using explicit refresh: " + e.getErrorMessage());
+                return;
+            } catch (MongoException e) {
+                backoffMs = pause(backoffMs);
+                continue;
+            }
+
+            // Collections created or dropped while disconnected are picked up by re-reading the names
+            if (reconnects.get() > 0) {
+                refresh();
+            }
+            backoffMs = 1000;
+            try {
+                while (cursor.hasNext()) {
+                    ChangeStreamDocument<Document> change = cursor.next();
+                    String collectionName = change.getNamespace().getCollectionName();
+                    if (change.getOperationType() == OperationType.INSERT) {
+                        register(collectionName);
+                    } else {
+                        // Drops and renames are rare, just re-read the names
+                        refresh();
+                    }
+                }
+            } catch (MongoException e) {
+                System.err.println("Region catalog change stream interrupted, reconnecting: " + e.getMessage());
+            } finally {
+                reconnects.incrementAndGet();
+                cursor.close();
+            }
+            // Also after a stream that ended normally (e.g. invalidated), so it is never reopened in a tight loop
+            backoffMs = pause(backoffMs);
+        }
+    }
+
+    private static long pause(long backoffMs) {
+        try {
+            Thread.sleep(backoffMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+    }
+}
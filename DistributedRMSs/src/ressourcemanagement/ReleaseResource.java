@@ -1,12 +1,13 @@
 package ressourcemanagement;
 
 import com.mongodb.MongoException;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.MongoIterable;
 import com.mongodb.client.result.UpdateResult;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -15,14 +16,29 @@ import javafx.scene.layout.*;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ReleaseResource {
 
+    // Set on a request while a release made without a transaction is giving its bytes back
+    static final String RELEASE_BATCH = "release_batch";
+
+    private static final AtomicLong releases = new AtomicLong();
+    private static final AtomicLong totalReleaseNanos = new AtomicLong();
+    private static final AtomicLong maxReleaseNanos = new AtomicLong();
+
     private Conn conn; // MongoDB connection
     private TextField usernameField, regionField;
+    private BusyIndicator busy = new BusyIndicator();
 
     public ReleaseResource() {
         conn = new Conn(); // Initialize the connection object
@@ -57,7 +73,7 @@ public class ReleaseResource {
         buttonBox.setAlignment(Pos.CENTER);
 
         // Main layout
-        VBox vBox = new VBox(10, grid, buttonBox);
+        VBox vBox = new VBox(10, grid, buttonBox, busy);
         vBox.setPadding(new Insets(20));
 
         // Show the dialog
@@ -79,7 +95,7 @@ public class ReleaseResource {
         }
 
         // Fetch the resources requested by this user
-        fetchUserRequestedResources(username, region);
+        busy.track("Loading your resources...", fetchUserRequestedResources(username, region), usernameField, regionField);
     }
 
     private void handleCancelAction() {
@@ -88,111 +104,78 @@ public class ReleaseResource {
         regionField.clear();
     }
 
-public void fetchUserRequestedResources(String username, String region) {
-    try {
+/**
+ * Looks up the user's requests on the database pool and opens the release dialog with them.
+ */
+public CompletableFuture<List<Document>> fetchUserRequestedResources(String username, String region) {
+    CompletableFuture<List<Document>> lookup = DatabaseExecutor.submit(() -> {
         MongoDatabase database = conn.getDatabase();
         if (database == null) {
-            showAlert(Alert.AlertType.ERROR, "Database Error", "Database connection is not initialized.");
-            return;
+            throw new IllegalStateException("Database connection is not initialized.");
         }
 
         // Access the "resource_requests" collection directly
         MongoCollection<Document> resourceRequestsCollection = database.getCollection("resource_requests");
 
-        // Fetch the user-specific resources based on both username and region
-        List<Document> userResources = resourceRequestsCollection.find(
-                new Document("username", username).append("region", region)
+        // Fetch the user-specific resources based on both username and region; only allocated requests hold capacity
+        return resourceRequestsCollection.find(
+                new Document("username", username).append("region", region).append("status", "allocated")
         ).into(new ArrayList<>());
-
-        // Check if no resources were found for the user
-        if (userResources.isEmpty()) {
-            showAlert(Alert.AlertType.WARNING, "No Resources", "No resources found for the user in the specified region.");
-            return;
+    });
+    DatabaseExecutor.onFxThread(lookup, userResources -> showUserRequestedResources(userResources, region), error -> {
+        if (error instanceof MongoException) {
+            showAlert(Alert.AlertType.ERROR, "Database Error", "MongoDB error: " + error.getMessage());
+        } else {
+            showAlert(Alert.AlertType.ERROR, "Error", "An error occurred while fetching user resources: " + error.getMessage());
         }
+    });
+    return lookup;
+}
 
-        // Prepare a list to display resources with the correct size and unit
-        List<String> formattedResources = new ArrayList<>();
-
-        // Loop through each resource and format the output to include size and unit
-        for (Document resource : userResources) {
-            String resourceName = resource.getString("resource_name");
-            Object sizeObj = resource.get("size");
-            Object unitObj = resource.get("type");
-
-            // Ensure both size and unit exist
-            if (sizeObj != null && unitObj != null) {
-                String size = sizeObj.toString();
-                String unit = unitObj.toString();
+private void showUserRequestedResources(List<Document> userResources, String region) {
+    // Check if no resources were found for the user
+    if (userResources.isEmpty()) {
+        showAlert(Alert.AlertType.WARNING, "No Resources", "No allocated resources found for the user in the specified region.");
+        return;
+    }
 
-                // Create a formatted string for each resource with name, size, and unit
-                formattedResources.add(resourceName + " - " + size + " " + unit);
-            }
-        }
+    // Prepare a list to display resources with the correct size and unit
+    List<String> formattedResources = new ArrayList<>();
 
-        // Show the resources in the dialog for release confirmation
-        showReleaseConfirmationDialog(formattedResources, region, userResources);
+    // Loop through each resource and format the output to include size and unit
+    for (Document resource : userResources) {
+        String resourceName = resource.getString("resource_name");
+        String unit = resource.getString("type");
 
-    } catch (MongoException e) {
-        showAlert(Alert.AlertType.ERROR, "Database Error", "MongoDB error: " + e.getMessage());
-        e.printStackTrace();
-    } catch (Exception e) {
-        showAlert(Alert.AlertType.ERROR, "Error", "An error occurred while fetching user resources: " + e.getMessage());
-        e.printStackTrace();
+        // Create a formatted string for each resource with name, size, and unit
+        formattedResources.add(resourceName + " - " + Capacity.format(Capacity.requestBytes(resource), unit) + " " + unit);
     }
+
+    // Show the resources in the dialog for release confirmation
+    showReleaseConfirmationDialog(formattedResources, region, userResources);
 }
 
 
 public void showReleaseConfirmationDialog(List<String> formattedResources, String region, List<Document> userResources) {
     // Create the list view to display the resources
     ListView<String> resourcesListView = new ListView<>();
-    List<String> resourceNames = new ArrayList<>();
 
-    // Adding resources with their name, size, and unit to the list
-    for (Document resource : userResources) {
-        String resourceName = resource.getString("resource_name");
-        String sizeStr = resource.getString("size");
-        String unit = resource.getString("type");
-
-        // Parse size to double to handle conversion
-        double size = Double.parseDouble(sizeStr);
-
-        // Format the resource name, size, and unit
-        resourceNames.add(resourceName + " - " + size + " " + unit);
-    }
-
-    resourcesListView.getItems().addAll(resourceNames);
+    // Adding resources with their name, size, and unit to the list (same order as userResources)
+    resourcesListView.getItems().addAll(formattedResources);
 
     // Button to confirm release
     Button releaseButton = new Button("Release Selected Resource");
     Button cancelButton = new Button("Cancel");
+    BusyIndicator releaseBusy = new BusyIndicator();
 
     // Action to handle release confirmation
     releaseButton.setOnAction(e -> {
-        String selectedResource = resourcesListView.getSelectionModel().getSelectedItem();
-        if (selectedResource != null) {
-            // Extract resource details from the selected resource string
-            String[] parts = selectedResource.split(" - ");
-            String resourceName = parts[0];
-            double requestedSize = Double.parseDouble(parts[1].split(" ")[0]);
-            String requestedUnit = parts[1].split(" ")[1];
-
-            // Now we need to check if the selected unit is the same as the requested unit
-            // Convert the requested size to the unit of the resource if necessary
-            for (Document resource : userResources) {
-                if (resource.getString("resource_name").equals(resourceName)) {
-                    double availableSize = Double.parseDouble(resource.getString("size"));
-                    String availableUnit = resource.getString("type");
-
-                    // If the units are different, convert the requested size to match the available unit
-                    if (!requestedUnit.equals(availableUnit)) {
-                        requestedSize = convertSize(requestedSize, requestedUnit, availableUnit);
-                    }
-
-                    // Proceed with releasing the resource
-                    handleReleaseResource(resource, requestedSize, availableUnit, region);
-                    break;
-                }
-            }
+        int selectedIndex = resourcesListView.getSelectionModel().getSelectedIndex();
+        if (selectedIndex >= 0) {
+            // The request document already carries its size in bytes, no parsing or unit conversion needed
+            Document resource = userResources.get(selectedIndex);
+            releaseBusy.trackWrite("Releasing...", handleReleaseResource(resource, Capacity.requestBytes(resource), resource.getString("type"), region),
+                    releaseButton, resourcesListView);
         }
     });
 
@@ -200,7 +183,7 @@ public void showReleaseConfirmationDialog(List<String> formattedResources, Strin
     cancelButton.setOnAction(e -> handleCancelAction());
 
     // Layout for the confirmation dialog
-    VBox dialogLayout = new VBox(10, resourcesListView, releaseButton, cancelButton);
+    VBox dialogLayout = new VBox(10, resourcesListView, releaseButton, cancelButton, releaseBusy);
     dialogLayout.setPadding(new Insets(20));
 
     // Show the confirmation dialog
@@ -212,250 +195,380 @@ public void showReleaseConfirmationDialog(List<String> formattedResources, Strin
     dialogStage.showAndWait();  // Show dialog and wait for user action
 }
 
-private double convertSize(double size, String fromUnit, String toUnit) {
-    if (fromUnit.equals("GB") && toUnit.equals("TB")) {
-        return size / 1024;  // GB to TB (divide by 1024)
-    } else if (fromUnit.equals("TB") && toUnit.equals("GB")) {
-        return size * 1024;  // TB to GB (multiply by 1024)
-    }
-    return size; // If units are the same, no conversion needed
+/**
+ * Runs the release on the database pool and shows its summary when it is done.
+ */
+public CompletableFuture<Boolean> handleReleaseResource(Document resource, long bytesToRelease, String unit, String region) {
+    // Outcome messages are collected and shown in one alert at the end instead of one per collection
+    List<String> summary = Collections.synchronizedList(new ArrayList<>());
+    CompletableFuture<Boolean> release = DatabaseExecutor.submit(() -> releaseResource(resource, bytesToRelease, unit, region, summary));
+    DatabaseExecutor.onFxThread(release, releaseSuccessful -> {
+        if (releaseSuccessful) {
+            showAlert(Alert.AlertType.INFORMATION, "Success", String.join("\n", summary));
+        } else {
+            showAlert(Alert.AlertType.ERROR, "Error", "Failed to release resource.\n" + String.join("\n", summary));
+        }
+    }, error -> showAlert(Alert.AlertType.ERROR, "Error", "Failed to release resource: " + error.getMessage()));
+    return release;
 }
 
-public void handleReleaseResource(Document resource, double sizeToRelease, String unit, String region) {
-    // Start releasing the resource from the region-specific collections first
-    boolean releaseSuccessful = releaseResourceFromRegion(region, resource.getString("resource_name"), sizeToRelease, unit);
+private boolean releaseResource(Document resource, long bytesToRelease, String unit, String region, List<String> summary) {
+    long start = System.nanoTime();
+    List<AllocationJournal.Event> events = new ArrayList<>();
+
+    boolean releaseSuccessful;
+    if (AllocationLedger.isEnabled()) {
+        // The ledger decides in memory, outside any transaction; the release batch lets startup finish it
+        releaseSuccessful = claimAndRelease(null, resource, region, bytesToRelease, unit, new ObjectId(), summary, events);
+    } else {
+        releaseSuccessful = new TransactionRunner(conn).run(session -> {
+            // A retried transaction starts over
+            summary.clear();
+            events.clear();
+            return claimAndRelease(session, resource, region, bytesToRelease, unit,
+                    session == null ? new ObjectId() : null, summary, events);
+        });
+    }
 
-    // Release from other collections if the release was successful in the region
     if (releaseSuccessful) {
-        releaseResourceFromOtherCollections(resource.getString("resource_name"), sizeToRelease, unit);
-        
-        // After successfully releasing the resource, update the status in resource_requests collection
-        MongoDatabase database = conn.getDatabase();
-        MongoCollection<Document> requestCollection = database.getCollection("resource_requests");
-        requestCollection.updateOne(
-                new Document("resource_name", resource.getString("resource_name")),
-                new Document("$set", new Document("status", "released"))
-        );
+        // A released request no longer needs to expire
+        ExpiryScheduler.getInstance().cancel(resource.get("_id"));
+        for (AllocationJournal.Event event : events) {
+            AllocationJournal.getInstance().record(event);
+        }
+    }
 
-        showAlert(Alert.AlertType.INFORMATION, "Success", "Resource has been released and status updated.");
-    } else {
-        // If release fails, update the status as "not released"
-        MongoDatabase database = conn.getDatabase();
-        MongoCollection<Document> requestCollection = database.getCollection("resource_requests");
-        requestCollection.updateOne(
-                new Document("resource_name", resource.getString("resource_name")),
-                new Document("$set", new Document("status", "not released"))
-        );
+    long elapsedMs = recordRelease(start);
+    summary.add("Completed in " + elapsedMs + " ms.");
+    return releaseSuccessful;
+}
+
+/**
+ * Claims the request and gives its bytes back. In a transaction both commit together. Without one
+ * the claim carries a release batch until the bytes are back, so {@link #recoverReleases()} can
+ * finish a release that stopped in between, and the batch id on the resource document keeps it
+ * from giving the bytes back twice.
+ *
+ * @param batch the release batch, or null inside a transaction
+ */
+private boolean claimAndRelease(ClientSession session, Document request, String region, long bytesToRelease, String unit,
+                                ObjectId batch, List<String> summary, List<AllocationJournal.Event> events) {
+    // Claim the request before touching capacity, so a request that was expired, removed or released
+    // in the meantime is never released again
+    if (!claimRequest(session, request, batch, summary)) {
+        return false;
+    }
+    return finishRelease(session, request, region, bytesToRelease, unit, batch, summary, events);
+}
+
+private boolean finishRelease(ClientSession session, Document request, String region, long bytesToRelease, String unit,
+                              ObjectId batch, List<String> summary, List<AllocationJournal.Event> events) {
+    boolean released = releaseResourceFromRegion(session, request, region, request.getString("resource_name"),
+            bytesToRelease, unit, batch == null ? null : batch.toHexString(), summary, events);
+    if (!released) {
+        unclaimRequest(session, request, summary);
+    } else if (batch != null) {
+        // The bytes are back; nothing is left to recover
+        conn.getDatabase().getCollection("resource_requests").updateOne(
+                new Document("_id", request.get("_id")), new Document("$unset", new Document(RELEASE_BATCH, "")));
+    }
+    return released;
+}
 
-        showAlert(Alert.AlertType.ERROR, "Error", "Failed to release resource.");
+/**
+ * Finishes releases that were claimed but stopped before they were unmarked, e.g. because the
+ * application stopped in between. Run at startup, after the allocation ledger has been loaded.
+ * Releases claimed after this process started are still running and are left alone.
+ *
+ * @return the number of releases finished
+ */
+public int recoverReleases() {
+    MongoDatabase database = conn.getDatabase();
+    List<Document> claimed = database.getCollection("resource_requests")
+            .find(new Document(RELEASE_BATCH, new Document("$exists", true))).into(new ArrayList<>());
+    int recovered = 0;
+    for (Document request : claimed) {
+        ObjectId batch = request.getObjectId(RELEASE_BATCH);
+        if (!RemoveGrant.claimedBeforeStart(batch)) {
+            System.out.println("Skipped release batch " + batch + ": claimed by a running release");
+            continue;
+        }
+        List<String> summary = new ArrayList<>();
+        List<AllocationJournal.Event> events = new ArrayList<>();
+        boolean released;
+        if (alreadyReleased(database, request, batch.toHexString())) {
+            database.getCollection("resource_requests").updateOne(
+                    new Document("_id", request.get("_id")), new Document("$unset", new Document(RELEASE_BATCH, "")));
+            summary.add("The bytes had already been given back.");
+            released = true;
+        } else {
+            released = finishRelease(null, request, request.getString("region"), Capacity.requestBytes(request),
+                    request.getString("type"), batch, summary, events);
+        }
+        if (released) {
+            ExpiryScheduler.getInstance().cancel(request.get("_id"));
+            for (AllocationJournal.Event event : events) {
+                AllocationJournal.getInstance().record(event);
+            }
+        }
+        System.out.println("Recovered release of request " + request.get("_id") + ": " + String.join(" ", summary));
+        recovered++;
     }
+    return recovered;
 }
 
-private boolean releaseResourceFromRegion(String region, String resourceName, double sizeToRelease, String unit) {
+/**
+ * True if a resource document the request could have been released from lists the batch.
+ */
+private boolean alreadyReleased(MongoDatabase database, Document request, String batch) {
+    String allocatedFrom = request.getString("allocated_from");
+    Document allocatedKey = request.get("allocated_key", Document.class);
+    Map<String, Document> candidates = new LinkedHashMap<>();
+    if (allocatedFrom != null && allocatedKey != null) {
+        candidates.put(allocatedFrom, allocatedKey);
+    } else {
+        Document key = new Document("resource_name", request.getString("resource_name"));
+        for (String collectionName : RegionCatalog.getInstance().getProbeOrder(request.getString("region"))) {
+            candidates.put(collectionName, key);
+        }
+        if (UnifiedResourceStore.isEnabled()) {
+            candidates.put(UnifiedResourceStore.COLLECTION, key);
+        }
+    }
+    for (Map.Entry<String, Document> candidate : candidates.entrySet()) {
+        Document filter = new Document(candidate.getValue()).append(AllocationLedger.APPLIED_BATCHES_FIELD, batch);
+        if (database.getCollection(candidate.getKey()).find(filter).first() != null) {
+            return true;
+        }
+    }
+    return false;
+}
+
+private boolean releaseResourceFromRegion(ClientSession session, Document request, String region, String resourceName,
+                                          long bytesToRelease, String unit, String batch, List<String> summary,
+                                          List<AllocationJournal.Event> events) {
     try {
         // Validate input
         if (resourceName == null || resourceName.isEmpty()) {
-            showAlert(Alert.AlertType.ERROR, "Input Error", "Resource name cannot be empty.");
+            summary.add("Resource name cannot be empty.");
             return false;
         }
-        if (sizeToRelease <= 0) {
-            showAlert(Alert.AlertType.ERROR, "Input Error", "Size to release must be greater than 0.");
+        if (bytesToRelease <= 0) {
+            summary.add("Size to release must be greater than 0.");
             return false;
         }
 
         MongoDatabase database = conn.getDatabase();
         if (database == null) {
-            showAlert(Alert.AlertType.ERROR, "Database Error", "Database connection is not initialized.");
+            summary.add("Database connection is not initialized.");
             return false;
         }
 
-        // Convert the release size to a consistent unit (e.g., TB)
-        double remainingToRelease = convertSize(sizeToRelease, unit, "TB");
+        String released = Capacity.format(bytesToRelease, unit) + " " + unit;
+        Release release = new Release(session, bytesToRelease, batch, events);
 
-        // Check in the specified region collection
-        MongoCollection<Document> regionResourceCollection = database.getCollection(region + "_resources");
-        if (regionResourceCollection == null) {
-            showAlert(Alert.AlertType.ERROR, "Database Error", "Region resource collection does not exist.");
+        // Allocations record the document their bytes came from
+        String allocatedFrom = request.getString("allocated_from");
+        Document allocatedKey = request.get("allocated_key", Document.class);
+        if (allocatedFrom != null && allocatedKey != null) {
+            if (releaseFrom(database.getCollection(allocatedFrom), allocatedKey, release)) {
+                summary.add("Released " + released + " of resource: " + resourceName + " from " + allocatedFrom + ".");
+                return true;
+            }
+            summary.add("Less than the requested size is allocated in " + allocatedFrom + "; nothing was released.");
             return false;
         }
 
-        Document resource = regionResourceCollection.find(new Document("resource_name", resourceName)).first();
-        if (resource != null) {
-            double allocatedSize = resource.getDouble("allocated_size");
-
-            // If the region collection has enough resources to fulfill the request, release directly
-            if (allocatedSize >= remainingToRelease) {
-                double newAllocatedSize = allocatedSize - remainingToRelease;
-
-                // Update region collection
-                regionResourceCollection.updateOne(
-                        new Document("resource_name", resourceName),
-                        new Document("$set", new Document("allocated_size", newAllocatedSize))
-                );
+        // Requests from before allocated_from was recorded are released in probe order
+        if (UnifiedResourceStore.isEnabled()) {
+            return releaseFromUnifiedStore(database, region, resourceName, release, released, summary);
+        }
 
-                updateResourceRequestStatus(resourceName, "released");
-                showAlert(Alert.AlertType.INFORMATION, "Success", 
-                          "Released " + remainingToRelease + " TB of resource: " + resourceName + " from region: " + region);
-                return true;
-            }
+        // Check in the specified region collection
+        MongoCollection<Document> regionResourceCollection = database.getCollection(RegionCatalog.collectionFor(region));
+        if (releaseFrom(regionResourceCollection, new Document("resource_name", resourceName), release)) {
+            summary.add("Released " + released + " of resource: " + resourceName + " from region: " + region);
+            return true;
         }
 
         // If not enough in the region collection, check the global collection
         MongoCollection<Document> globalResourcesCollection = database.getCollection("resources");
-        if (globalResourcesCollection != null) {
-            resource = globalResourcesCollection.find(new Document("resource_name", resourceName)).first();
-            if (resource != null) {
-                double allocatedSize = resource.getDouble("allocated_size");
-
-                if (allocatedSize >= remainingToRelease) {
-                    double newAllocatedSize = allocatedSize - remainingToRelease;
-
-                    // Update global collection
-                    globalResourcesCollection.updateOne(
-                            new Document("resource_name", resourceName),
-                            new Document("$set", new Document("allocated_size", newAllocatedSize))
-                    );
-
-                    updateResourceRequestStatus(resourceName, "released");
-                    showAlert(Alert.AlertType.INFORMATION, "Success", 
-                              "Released " + remainingToRelease + " TB of resource: " + resourceName + " from global resources.");
-                    return true;
-                }
-            }
+        if (releaseFrom(globalResourcesCollection, new Document("resource_name", resourceName), release)) {
+            summary.add("Released " + released + " of resource: " + resourceName + " from global resources.");
+            return true;
         }
 
         // If not enough in the region and global collections, check other region collections
-        MongoIterable<String> collections = database.listCollectionNames();
-        List<String> otherRegionCollections = new ArrayList<>();
-        for (String collectionName : collections) {
-            if (collectionName.endsWith("_resources") && !collectionName.equals(region + "_resources")) {
-                otherRegionCollections.add(collectionName);
-            }
-        }
+        List<String> otherRegionCollections = RegionCatalog.getInstance().getOtherRegionCollections(region);
 
         for (String otherRegionCollection : otherRegionCollections) {
             MongoCollection<Document> collection = database.getCollection(otherRegionCollection);
-            Document resourceInOtherRegion = collection.find(new Document("resource_name", resourceName)).first();
-
-            if (resourceInOtherRegion != null) {
-                double allocatedSize = resourceInOtherRegion.getDouble("allocated_size");
-
-                if (allocatedSize >= remainingToRelease) {
-                    double newAllocatedSize = allocatedSize - remainingToRelease;
-
-                    // Update the other region collection
-                    collection.updateOne(
-                            new Document("resource_name", resourceName),
-                            new Document("$set", new Document("allocated_size", newAllocatedSize))
-                    );
-
-                    updateResourceRequestStatus(resourceName, "released");
-                    showAlert(Alert.AlertType.INFORMATION, "Success", 
-                              "Released " + remainingToRelease + " TB of resource: " + resourceName + " from " + otherRegionCollection + ".");
-                    return true;
-                }
+            if (releaseFrom(collection, new Document("resource_name", resourceName), release)) {
+                summary.add("Released " + released + " of resource: " + resourceName + " from " + otherRegionCollection + ".");
+                return true;
             }
         }
 
-        // If none of the collections can fulfill the request, show an error
-        showAlert(Alert.AlertType.ERROR, "Release Error", 
-                  "Not enough resources available to release the requested size from any collection.");
+        // If none of the collections can fulfill the request, report it
+        summary.add("Not enough resources available to release the requested size from any collection.");
         return false;
 
     } catch (Exception e) {
-        showAlert(Alert.AlertType.ERROR, "Error", "An error occurred while releasing the resource: " + e.getMessage());
+        if (session != null && e instanceof MongoException) {
+            // The transaction is aborted and, if the error is transient, retried as a whole
+            throw (MongoException) e;
+        }
+        summary.add("An error occurred while releasing the resource: " + e.getMessage());
         e.printStackTrace();
         return false;
     }
 }
 
-private void updateResourceRequestStatus(String resourceName, String status) {
-    try {
-        MongoDatabase database = conn.getDatabase();
-        MongoCollection<Document> resourceRequestsCollection = database.getCollection("resource_requests");
-
-        // Update the resource request status
-        UpdateResult requestResult = resourceRequestsCollection.updateOne(
-                new Document("resource_name", resourceName).append("status", "allocated"),
-                new Document("$set", new Document("status", status))
-        );
-
-        if (requestResult.getModifiedCount() == 0) {
-            showAlert(Alert.AlertType.WARNING, "Update Warning", "Could not update resource request status.");
+/**
+ * Decrements allocated_bytes by the given amount if at least that much is allocated, in one update.
+ */
+private boolean releaseFrom(MongoCollection<Document> collection, Document key, Release release) {
+    String collectionName = collection.getNamespace().getCollectionName();
+    long bytesToRelease = release.bytes;
+    boolean released;
+    if (AllocationLedger.isEnabled()) {
+        // Decided in memory; the write-behind queue carries the decrement to MongoDB
+        released = AllocationLedger.getInstance().tryRelease(collectionName, key, bytesToRelease, release.batch);
+    } else {
+        Document filter = new Document(key).append(Capacity.ALLOCATED_BYTES, new Document("$gte", bytesToRelease));
+        Document update = new Document("$inc", new Document(Capacity.ALLOCATED_BYTES, -bytesToRelease));
+        if (release.batch != null) {
+            // Never given back twice for the same claim
+            filter.append(AllocationLedger.APPLIED_BATCHES_FIELD, new Document("$ne", release.batch));
+            update.append("$push", new Document(AllocationLedger.APPLIED_BATCHES_FIELD,
+                    new Document("$each", Collections.singletonList(release.batch))
+                            .append("$slice", -AllocationLedger.MAX_APPLIED_BATCHES)));
         }
-    } catch (Exception e) {
-        showAlert(Alert.AlertType.ERROR, "Error", "An error occurred while updating resource request status: " + e.getMessage());
-        e.printStackTrace();
+        released = release.update(collection, filter, update)
+                || retryAfterUpgrade(collection, key, filter, update, release);
+    }
+
+    if (released) {
+        release.events.add(AllocationJournal.Event.of(AllocationJournal.EventType.RELEASE, collectionName, key, bytesToRelease));
     }
+    return released;
 }
 
-public void releaseResourceFromOtherCollections(String resourceName, double sizeToRelease, String unit) {
-    try {
-        MongoDatabase database = conn.getDatabase();
-        if (database == null) {
-            showAlert(Alert.AlertType.ERROR, "Database Error", "Database connection is not initialized.");
-            return;
-        }
+/**
+ * Documents still in the legacy layout are rewritten once, then the release is retried.
+ * Skipped entirely once the background migration has finished, saving the extra lookup.
+ */
+private boolean retryAfterUpgrade(MongoCollection<Document> collection, Document key, Document filter, Document update,
+                                  Release release) {
+    return !CapacityMigration.isComplete()
+            && CapacityMigration.upgradeResource(collection, key)
+            && release.update(collection, filter, update);
+}
 
-        MongoIterable<String> collections = database.listCollectionNames();
-        List<String> resourceCollections = new ArrayList<>();
-        
-        for (String collectionName : collections) {
-            if (collectionName.endsWith("_resources")) {
-                resourceCollections.add(collectionName);
+private boolean releaseFromUnifiedStore(MongoDatabase database, String region, String resourceName, Release release,
+                                        String released, List<String> summary) {
+    UnifiedResourceStore store = new UnifiedResourceStore(database);
+
+    if (AllocationLedger.isEnabled()) {
+        for (String candidateRegion : UnifiedResourceStore.candidateRegions(region)) {
+            if (releaseFrom(store.getCollection(), UnifiedResourceStore.key(resourceName, candidateRegion), release)) {
+                summary.add("Released " + released + " of resource: " + resourceName + " from region: " + candidateRegion);
+                return true;
             }
         }
+        summary.add("Not enough resources available to release the requested size from any collection.");
+        return false;
+    }
 
-        // Loop through each collection and release resources accordingly
-        for (String resourceCollection : resourceCollections) {
-            MongoCollection<Document> collection = database.getCollection(resourceCollection);
-            Document resourceDoc = collection.find(new Document("resource_name", resourceName)).first();
-
-            if (resourceDoc != null) {
-                // Check if allocated_size exists and is a valid number
-                if (!resourceDoc.containsKey("allocated_size")) {
-                    System.err.println("Error: 'allocated_size' field is missing in resource document.");
-                    continue;
-                }
-
-                Object allocatedSizeObj = resourceDoc.get("allocated_size");
-                if (allocatedSizeObj == null) {
-                    System.err.println("Error: 'allocated_size' is null.");
-                    continue;
-                }
-
-                double allocatedSize = 0;
-                try {
-                    allocatedSize = Double.parseDouble(allocatedSizeObj.toString());
-                } catch (NumberFormatException ex) {
-                    System.err.println("Error: 'allocated_size' is not a valid number.");
-                    continue;
-                }
-
-                // Convert the release size to a consistent unit (e.g., TB)
-                double convertedSize = convertSize(sizeToRelease, unit, "TB");
-
-                if (allocatedSize >= convertedSize) {
-                    double newAllocatedSize = allocatedSize - convertedSize;
-                    collection.updateOne(
-                            new Document("resource_name", resourceName),
-                            new Document("$set", new Document("allocated_size", newAllocatedSize))
-                    );
-
-                    showAlert(Alert.AlertType.INFORMATION, "Success", "Resource released from " + resourceCollection + ".");
-                }
-            } else {
-                System.err.println("Error: Resource not found in collection: " + resourceCollection);
-            }
+    // One indexed query finds every region holding the resource, own region first
+    for (Document candidate : store.findCandidates(resourceName, region)) {
+        // Skip entries that cannot cover the release without a round trip
+        if (Capacity.allocatedBytes(candidate) < release.bytes) {
+            continue;
+        }
+        String candidateRegion = candidate.getString("region");
+        if (releaseFrom(store.getCollection(), UnifiedResourceStore.key(resourceName, candidateRegion), release)) {
+            summary.add("Released " + released + " of resource: " + resourceName + " from region: " + candidateRegion);
+            return true;
+        }
+    }
+
+    summary.add("Not enough resources available to release the requested size from any collection.");
+    return false;
+}
+
+/**
+ * Moves the request from allocated to released, matching on both _id and status so only one of a
+ * concurrent release and expiry wins.
+ *
+ * @return false if the request was no longer allocated
+ */
+private boolean claimRequest(ClientSession session, Document request, ObjectId batch, List<String> summary) {
+    Document filter = new Document("_id", request.get("_id")).append("status", "allocated");
+    Document claim = new Document("status", "released");
+    if (batch != null) {
+        claim.append(RELEASE_BATCH, batch);
+    }
+    MongoCollection<Document> requests = conn.getDatabase().getCollection("resource_requests");
+    UpdateResult result = session == null
+            ? requests.updateOne(filter, new Document("$set", claim))
+            : requests.updateOne(session, filter, new Document("$set", claim));
+    if (result.getMatchedCount() == 0) {
+        summary.add("This request is no longer allocated; nothing was released.");
+        return false;
+    }
+    return true;
+}
+
+/**
+ * Hands a claimed request back when its bytes could not be released, so it can be released again
+ * later and still expires at its release time.
+ */
+private void unclaimRequest(ClientSession session, Document request, List<String> summary) {
+    try {
+        Document filter = new Document("_id", request.get("_id")).append("status", "released");
+        Document update = new Document("$set", new Document("status", "allocated"))
+                .append("$unset", new Document(RELEASE_BATCH, ""));
+        MongoCollection<Document> requests = conn.getDatabase().getCollection("resource_requests");
+        if (session == null) {
+            requests.updateOne(filter, update);
+        } else {
+            requests.updateOne(session, filter, update);
         }
+        summary.add("The request is still allocated.");
     } catch (Exception e) {
-        showAlert(Alert.AlertType.ERROR, "Error", "An error occurred while releasing resource from other collections: " + e.getMessage());
+        if (session != null && e instanceof MongoException) {
+            throw (MongoException) e;
+        }
+        summary.add("An error occurred while updating resource request status: " + e.getMessage());
         e.printStackTrace();
     }
 }
 
+private static long recordRelease(long startNanos) {
+    long elapsed = System.nanoTime() - startNanos;
+    releases.incrementAndGet();
+    totalReleaseNanos.addAndGet(elapsed);
+    long max;
+    while (elapsed > (max = maxReleaseNanos.get()) && !maxReleaseNanos.compareAndSet(max, elapsed)) {
+        // retry until the maximum is recorded
+    }
+    return TimeUnit.NANOSECONDS.toMillis(elapsed);
+}
+
+public static String statistics() {
+    long count = releases.get();
+    long averageMs = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalReleaseNanos.get() / count);
+    return String.format("Releases: %d, avg %d ms, max %d ms",
+            count, averageMs, TimeUnit.NANOSECONDS.toMillis(maxReleaseNanos.get()));
+}
 
 private void showAlert(Alert.AlertType alertType, String title, String message) {
+    // Alerts can only be shown on the FX thread
+    if (!Platform.isFxApplicationThread()) {
+        Platform.runLater(() -> showAlert(alertType, title, message));
+        return;
+    }
     Alert alert = new Alert(alertType);
     alert.setTitle(title);
     alert.setHeaderText(null);
@@ -463,4 +576,28 @@ private void showAlert(Alert.AlertType alertType, String title, String message)
     alert.showAndWait();
 }
 
+/**
+ * One release in progress: its session, size and batch, and the journal events recorded once it is done.
+ */
+private static final class Release {
+    private final ClientSession session;
+    private final long bytes;
+    private final String batch;
+    private final List<AllocationJournal.Event> events;
+
+    Release(ClientSession session, long bytes, String batch, List<AllocationJournal.Event> events) {
+        this.session = session;
+        this.bytes = bytes;
+        this.batch = batch;
+        this.events = events;
+    }
+
+    boolean update(MongoCollection<Document> collection, Document filter, Document update) {
+        UpdateResult result = session == null
+                ? collection.updateOne(filter, update)
+                : collection.updateOne(session, filter, update);
+        return result.getModifiedCount() > 0;
+    }
+}
+
 }
@@ -1,13 +1,33 @@
 package ressourcemanagement;
 
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import javafx.scene.control.Alert;
+import javafx.scene.control.ButtonType;
 import org.bson.Document;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
+import java.lang.management.ManagementFactory;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static com.mongodb.client.model.Filters.*;
 
@@ -19,86 +39,322 @@ public class RemoveGrant {
     }
 
     void showGrantDialog() {
-        
-        try {
-            MongoDatabase database = conn.getDatabase();
-            if (database == null) {
-                System.err.println("Database connection is not initialized.");
+        // Preview first: the dry run reports what would change without writing anything
+        CompletableFuture<ExpiryReport> preview = DatabaseExecutor.submit(() -> expireGrants(true));
+        DatabaseExecutor.onFxThread(preview, report -> {
+            if (report.getRequests() == 0) {
+                showAlert(Alert.AlertType.INFORMATION, "Remove Grants", "No grants have passed their release time.");
                 return;
             }
+            Alert confirmation = new Alert(Alert.AlertType.CONFIRMATION, report + "\n\nRemove these grants?", ButtonType.YES, ButtonType.NO);
+            confirmation.setTitle("Remove Grants");
+            confirmation.setHeaderText(null);
+            confirmation.showAndWait().ifPresent(response -> {
+                if (response == ButtonType.YES) {
+                    DatabaseExecutor.onFxThread(DatabaseExecutor.submit(() -> expireGrants(false)),
+                            done -> showAlert(Alert.AlertType.INFORMATION, "Remove Grants", done.toString()),
+                            error -> showAlert(Alert.AlertType.ERROR, "Remove Grants", "Failed to remove grants: " + error.getMessage()));
+                }
+            });
+        }, error -> showAlert(Alert.AlertType.ERROR, "Remove Grants", "Failed to find expired grants: " + error.getMessage()));
+    }
+
+    /**
+     * Removes every grant whose release time has passed, giving back exactly the bytes each one held.
+     *
+     * @param dryRun only report what would change
+     */
+    public ExpiryReport expireGrants(boolean dryRun) {
+        // release_time is stored as "yyyy-MM-dd HH:mm:ss", which sorts in time order
+        String now = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
+        return expire(and(eq("status", "allocated"), lt("release_time", now)), dryRun);
+    }
+
+    /**
+     * Revokes the grants in one expiry batch. Requests that are no longer allocated are left alone.
+     */
+    void revoke(List<Object> requestIds) {
+        expire(and(in("_id", requestIds), eq("status", "allocated")), false);
+    }
+
+    /**
+     * Expires the selected requests in a fixed number of round trips however many there are:
+     * one updateMany claims them into a batch, one aggregation sums their bytes per resource document
+     * and one bulk write per collection subtracts the sums. Claiming first means a request released
+     * at the same time is either released or expired, never both.
+     *
+     * Claim and decrement commit together in one transaction. When the allocation ledger owns
+     * allocated_bytes, or the server has no transactions, the decrement cannot be part of it; the
+     * batch stays marked until it has been applied and {@link #recoverBatches()} finishes it after a
+     * crash. Each decrement records the batch id on the resource document, so a batch is never given
+     * back twice.
+     */
+    private ExpiryReport expire(Bson selection, boolean dryRun) {
+        long start = System.currentTimeMillis();
+        MongoDatabase database = conn.getDatabase();
+        MongoCollection<Document> requests = database.getCollection("resource_requests");
+
+        ExpiryReport report;
+        if (dryRun) {
+            report = new ExpiryReport(true);
+            collect(null, requests, selection, report);
+        } else {
+            ObjectId batch = new ObjectId();
+            Bson claim = Updates.combine(Updates.set("status", "removed"), Updates.set("expiry_batch", batch));
+            if (AllocationLedger.isEnabled()) {
+                requests.updateMany(selection, claim);
+                report = applyBatch(null, database, batch, false);
+            } else {
+                report = new TransactionRunner(conn).run(session -> {
+                    if (session == null) {
+                        requests.updateMany(selection, claim);
+                    } else {
+                        requests.updateMany(session, selection, claim);
+                    }
+                    return applyBatch(session, database, batch, false);
+                });
+            }
+            afterCommit(report);
+        }
+
+        report.elapsedMs = System.currentTimeMillis() - start;
+        if (!dryRun) {
+            System.out.println(report);
+        }
+        return report;
+    }
 
-            // Step 1: Check resource_requests collection for unreleased resources
-            MongoCollection<Document> resourceRequestsCollection = database.getCollection("resource_requests");
-            for (Document request : resourceRequestsCollection.find(eq("status", "allocated"))) {
-                String resourceName = request.getString("resource_name");
-                String username = request.getString("username");
-                LocalDateTime releaseTime = LocalDateTime.parse(
-                        request.getString("release_time"),
-                        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
-                );
-
-                // Step 2: Check if the release time has passed
-                if (releaseTime.isBefore(LocalDateTime.now())) {
-                    System.out.println("Release time exceeded for resource: " + resourceName);
-
-                    // Step 3: Remove grant and release resource
-                    removeGrantFromUser(database, resourceName, username);
-
-                    // Step 4: Update resource collections
-                    updateResourceAllocatedSize(database, resourceName);
-
-                    // Step 5: Update resource request status to "removed"
-                    resourceRequestsCollection.updateOne(
-                            eq("_id", request.getObjectId("_id")),
-                            Updates.set("status", "removed")
-                    );
-
-                    System.out.println("Grant removed and resource released for: " + resourceName);
+    /**
+     * Finishes expiry batches that were claimed but never applied, e.g. because the application
+     * stopped in between. Run at startup, after the allocation ledger has been loaded.
+     *
+     * Only batches claimed before this process started are finished: a younger one belongs to an
+     * expiry that is still running and will unmark it itself.
+     *
+     * @return the number of batches finished
+     */
+    public int recoverBatches() {
+        MongoDatabase database = conn.getDatabase();
+        List<ObjectId> batches = database.getCollection("resource_requests")
+                .distinct("expiry_batch", exists("expiry_batch"), ObjectId.class).into(new ArrayList<>());
+        int recovered = 0;
+        for (ObjectId batch : batches) {
+            if (!claimedBeforeStart(batch)) {
+                System.out.println("Skipped expiry batch " + batch + ": claimed by a running expiry");
+                continue;
+            }
+            ExpiryReport report = AllocationLedger.isEnabled()
+                    ? applyBatch(null, database, batch, true)
+                    : new TransactionRunner(conn).run(session -> applyBatch(session, database, batch, true));
+            afterCommit(report);
+            System.out.println("Recovered expiry batch " + batch + ": " + report);
+            recovered++;
+        }
+        return recovered;
+    }
+
+    /**
+     * True if the batch was claimed before this process started, so no running expiry or release owns it.
+     */
+    static boolean claimedBeforeStart(ObjectId batch) {
+        // ObjectId times are in whole seconds; one from the second the process started is left for the next start
+        return (batch.getTimestamp() + 1L) * 1000L <= ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    /**
+     * Gives back the bytes of a claimed batch, pulls the grants from the users and unmarks the batch.
+     *
+     * @param recovering the batch may have been partly applied by a run that stopped
+     */
+    private ExpiryReport applyBatch(ClientSession session, MongoDatabase database, ObjectId batch, boolean recovering) {
+        MongoCollection<Document> requests = database.getCollection("resource_requests");
+        ExpiryReport report = new ExpiryReport(false);
+        Bson claimed = eq("expiry_batch", batch);
+        collect(session, requests, claimed, report);
+
+        Map<String, List<WriteModel<Document>>> decrements = new LinkedHashMap<>();
+        for (ExpiryReport.Line line : report.lines) {
+            if (line.bytes > 0) {
+                WriteModel<Document> write = decrement(database, line.collectionName, line.key, line.bytes,
+                        batch.toHexString(), recovering);
+                if (write != null) {
+                    decrements.computeIfAbsent(line.collectionName, c -> new ArrayList<>()).add(write);
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+
+        BulkWriteOptions unordered = new BulkWriteOptions().ordered(false);
+        if (!report.userUpdates.isEmpty()) {
+            MongoCollection<Document> users = database.getCollection("users");
+            if (session == null) {
+                users.bulkWrite(report.userUpdates, unordered);
+            } else {
+                users.bulkWrite(session, report.userUpdates, unordered);
+            }
+        }
+        for (Map.Entry<String, List<WriteModel<Document>>> entry : decrements.entrySet()) {
+            MongoCollection<Document> collection = database.getCollection(entry.getKey());
+            if (session == null) {
+                collection.bulkWrite(entry.getValue(), unordered);
+            } else {
+                collection.bulkWrite(session, entry.getValue(), unordered);
+            }
+        }
+
+        // The batch is done; nothing is left to recover
+        Bson done = Updates.unset("expiry_batch");
+        if (session == null) {
+            requests.updateMany(claimed, done);
+        } else {
+            requests.updateMany(session, claimed, done);
+        }
+        return report;
     }
 
-    private void removeGrantFromUser(MongoDatabase database, String resourceName, String username) {
-        try {
-            // Assuming there is a user collection to track user-resource grants
-            MongoCollection<Document> userCollection = database.getCollection("users");
+    /**
+     * Sums the bytes of the selected requests per resource document into the report.
+     */
+    private void collect(ClientSession session, MongoCollection<Document> requests, Bson selection, ExpiryReport report) {
+        // Requests from before allocated_from was recorded took their bytes from their own region's collection
+        Document target = new Document("collection", new Document("$ifNull", Arrays.asList("$allocated_from",
+                new Document("$concat", Arrays.asList("$region", RegionCatalog.SUFFIX)))))
+                .append("key", new Document("$ifNull", Arrays.asList("$allocated_key",
+                        new Document("resource_name", "$resource_name"))));
+        List<Bson> pipeline = Arrays.asList(
+                Aggregates.match(selection),
+                Aggregates.group(target,
+                        Accumulators.sum("bytes", "$" + Capacity.SIZE_BYTES),
+                        Accumulators.push("grants", new Document("id", "$_id").append("username", "$username"))));
 
-            // Remove the resource grant from the user's record
-            userCollection.updateOne(
-                    eq("username", username),
-                    Updates.pull("granted_resources", resourceName)
-            );
+        Set<String> pulled = new HashSet<>();
+        try (MongoCursor<Document> cursor = (session == null ? requests.aggregate(pipeline) : requests.aggregate(session, pipeline)).iterator()) {
+            while (cursor.hasNext()) {
+                Document group = cursor.next();
+                Document id = (Document) group.get("_id");
+                Document key = (Document) id.get("key");
+                String resourceName = key.getString("resource_name");
+                List<?> grants = group.get("grants", List.class);
 
-            System.out.println("Grant removed from user: " + username);
-        } catch (Exception e) {
-            System.err.println("Error while removing grant from user: " + e.getMessage());
+                report.add(id.getString("collection"), key, ((Number) group.get("bytes")).longValue(), grants.size());
+                for (Object grant : grants) {
+                    Document requestGrant = (Document) grant;
+                    report.requestIds.add(requestGrant.get("id"));
+                    String username = requestGrant.getString("username");
+                    // One pull per user and resource, even when the user held several grants of it
+                    if (pulled.add(username + "/" + resourceName)) {
+                        report.userUpdates.add(new UpdateOneModel<>(eq("username", username), Updates.pull("granted_resources", resourceName)));
+                    }
+                }
+            }
         }
     }
 
-    private void updateResourceAllocatedSize(MongoDatabase database, String resourceName) {
-        try {
-            // Fetch all collections that might contain resource allocation
-            for (String collectionName : database.listCollectionNames()) {
-                if (collectionName.endsWith("_resources")) {
-                    MongoCollection<Document> resourceCollection = database.getCollection(collectionName);
+    /**
+     * Journal events and scheduler cancellations, once the batch has been applied.
+     */
+    private void afterCommit(ExpiryReport report) {
+        for (Object requestId : report.requestIds) {
+            ExpiryScheduler.getInstance().cancel(requestId);
+        }
+        for (ExpiryReport.Line line : report.lines) {
+            AllocationJournal.getInstance().record(AllocationJournal.EventType.EXPIRE, line.collectionName, line.key, line.bytes);
+        }
+    }
 
-                    Document resource = resourceCollection.find(eq("resource_name", resourceName)).first();
-                    if (resource != null) {
-                        double allocatedSize = resource.getDouble("allocated_size");
+    /**
+     * The write that gives the bytes back to one resource document, or null when the allocation
+     * ledger owns allocated_bytes and applies the change through its write-behind queue. Either way
+     * the batch id ends up in the document's applied batches, and a document that already lists it
+     * is left alone.
+     */
+    private WriteModel<Document> decrement(MongoDatabase database, String collectionName, Document key, long bytes,
+                                           String batch, boolean recovering) {
+        if (AllocationLedger.isEnabled()) {
+            // The ledger replayed its journal at startup, so every release it made for the batch is in the document
+            if (recovering && database.getCollection(collectionName)
+                    .find(and(key, eq(AllocationLedger.APPLIED_BATCHES_FIELD, batch))).first() != null) {
+                return null;
+            }
+            AllocationLedger ledger = AllocationLedger.getInstance();
+            if (!ledger.tryRelease(collectionName, key, bytes, batch)) {
+                // Less than the expired grants is allocated; give back what there is
+                ledger.resetAllocated(collectionName, key, batch);
+            }
+            return null;
+        }
+        if (!CapacityMigration.isComplete()) {
+            CapacityMigration.upgradeResource(database.getCollection(collectionName), key);
+        }
 
-                        // Reset allocated size to 0 for the resource
-                        Bson update = Updates.set("allocated_size", 0.0);
-                        resourceCollection.updateOne(eq("resource_name", resourceName), update);
+        // allocated_bytes - bytes, never below zero if the document is out of step with its requests
+        Document subtracted = new Document("$max", Arrays.asList(0L, new Document("$subtract", Arrays.asList(
+                new Document("$ifNull", Arrays.asList("$" + Capacity.ALLOCATED_BYTES, 0L)), bytes))));
+        Document applied = new Document("$slice", Arrays.asList(new Document("$concatArrays", Arrays.asList(
+                new Document("$ifNull", Arrays.asList("$" + AllocationLedger.APPLIED_BATCHES_FIELD, Collections.emptyList())),
+                Collections.singletonList(batch))), -AllocationLedger.MAX_APPLIED_BATCHES));
+        return new UpdateOneModel<>(and(key, ne(AllocationLedger.APPLIED_BATCHES_FIELD, batch)),
+                Collections.singletonList(new Document("$set", new Document(Capacity.ALLOCATED_BYTES, subtracted)
+                        .append(AllocationLedger.APPLIED_BATCHES_FIELD, applied))));
+    }
 
-                        System.out.println("Allocated size reset for resource: " + resourceName + " in collection: " + collectionName);
-                    }
+    private void showAlert(Alert.AlertType alertType, String title, String message) {
+        Alert alert = new Alert(alertType);
+        alert.setTitle(title);
+        alert.setHeaderText(null);
+        alert.setContentText(message);
+        alert.showAndWait();
+    }
+
+    /**
+     * What an expiry run changed, or would change in a dry run.
+     */
+    public static class ExpiryReport {
+        private final boolean dryRun;
+        private final List<Line> lines = new ArrayList<>();
+        private final List<Object> requestIds = new ArrayList<>();
+        private final List<WriteModel<Document>> userUpdates = new ArrayList<>();
+        private long elapsedMs;
+
+        ExpiryReport(boolean dryRun) {
+            this.dryRun = dryRun;
+        }
+
+        void add(String collectionName, Document key, long bytes, int requests) {
+            lines.add(new Line(collectionName, key, bytes, requests));
+        }
+
+        public int getRequests() {
+            return requestIds.size();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder()
+                    .append(dryRun ? "Would remove " : "Removed ").append(requestIds.size())
+                    .append(" expired grants (").append(elapsedMs).append(" ms)");
+            for (Line line : lines) {
+                text.append("\n").append(line.key.getString("resource_name"));
+                if (line.key.containsKey("region")) {
+                    text.append(" [").append(line.key.getString("region")).append("]");
                 }
+                text.append(" in ").append(line.collectionName).append(": -").append(line.bytes)
+                        .append(" bytes from ").append(line.requests).append(" requests");
+            }
+            return text.toString();
+        }
+
+        private static final class Line {
+            private final String collectionName;
+            private final Document key;
+            private final long bytes;
+            private final int requests;
+
+            Line(String collectionName, Document key, long bytes, int requests) {
+                this.collectionName = collectionName;
+                this.key = key;
+                this.bytes = bytes;
+                this.requests = requests;
             }
-        } catch (Exception e) {
-            System.err.println("Error while updating resource allocated size: " + e.getMessage());
         }
     }
 }
@@ -1,5 +1,6 @@
 package ressourcemanagement;
 
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.control.*;
@@ -9,9 +10,9 @@ import javafx.stage.Modality;
 import javafx.stage.Stage;
 
 import org.bson.Document;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.MongoIterable;
 import com.mongodb.client.result.UpdateResult;
 
 import java.time.format.DateTimeFormatter;
@@ -19,11 +20,18 @@ import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class RequestResource {
 
+    // How many matches the type-ahead list shows
+    private static final int MAX_MATCHES = 50;
+
      private TextField usernameField, resourceNameField, sizeField, typeField, fullNameField, regionField;
     private ComboBox<String> hourComboBox, minuteComboBox, resourceNameComboBox;
+    private Button sendButton;
+    private BusyIndicator busy;
     private Conn conn; // MongoDB connection
 
     public RequestResource() {
@@ -51,7 +59,11 @@ public class RequestResource {
         minuteComboBox.setValue("00");
         
       resourceNameComboBox = new ComboBox<>();
-    resourceNameComboBox.setPromptText("Select Resource");
+    resourceNameComboBox.setPromptText("Loading resources...");
+    // Typing searches the name index; the list shows the first matches of what was typed
+    resourceNameComboBox.setEditable(true);
+    resourceNameComboBox.getEditor().textProperty().addListener((observable, oldText, newText) -> showMatches(newText));
+    busy = new BusyIndicator();
     populateResourceNames();
 
         GridPane formGrid = new GridPane();
@@ -72,7 +84,7 @@ public class RequestResource {
         formGrid.add(new Label("Time:"), 0, 6);
         formGrid.add(new HBox(10, hourComboBox, new Label(":"), minuteComboBox), 1, 6);
 
-        Button sendButton = new Button("Send Request");
+        sendButton = new Button("Send Request");
         Button cancelButton = new Button("Cancel");
 
         sendButton.setOnAction(e -> handleSendRequestAction());
@@ -81,7 +93,7 @@ public class RequestResource {
         HBox buttonBox = new HBox(10, sendButton, cancelButton);
         buttonBox.setAlignment(Pos.CENTER);
 
-        VBox formBox = new VBox(10, formGrid, buttonBox);
+        VBox formBox = new VBox(10, formGrid, buttonBox, busy);
         formBox.setPadding(new Insets(20));
         formBox.setStyle("-fx-background-color: lightgray;");
 
@@ -100,102 +112,68 @@ public class RequestResource {
         dialogStage.showAndWait(); 
     }
 private void populateResourceNames() {
-    try {
-        MongoDatabase database = conn.getDatabase();
-        MongoCollection<Document> resourceCollection = database.getCollection("resources");
-
-        // Clear any existing items in the ComboBox
-        resourceNameComboBox.getItems().clear();
-
-        // Query the database to fetch resource names
-        for (Document document : resourceCollection.find()) {
-            String resourceName = document.getString("resource_name");
-            if (resourceName != null && !resourceName.isEmpty()) {
-                resourceNameComboBox.getItems().add(resourceName);
-            }
-        }
+    // The index is read once (a projection of resource_name only) and shared by every dialog
+    CompletableFuture<Void> names = busy.track("Loading resources...", DatabaseExecutor.submit(() -> {
+        ResourceNameIndex.getInstance().ensureLoaded(conn.getDatabase());
+        return null;
+    }), resourceNameComboBox);
 
+    DatabaseExecutor.onFxThread(names, loaded -> {
         // Check if no resources were found
-        if (resourceNameComboBox.getItems().isEmpty()) {
-            resourceNameComboBox.setPromptText("No Resources Available");
-        }
-    } catch (Exception e) {
-        e.printStackTrace();
-        showAlert(Alert.AlertType.ERROR, "Error", "Failed to load resource names.");
+        resourceNameComboBox.setPromptText(ResourceNameIndex.getInstance().isEmpty() ? "No Resources Available" : "Type to search resources");
+        showMatches(resourceNameComboBox.getEditor().getText());
+    }, error -> showAlert(Alert.AlertType.ERROR, "Error", "Failed to load resource names."));
+}
+
+private void showMatches(String text) {
+    // Picking a match puts its name in the editor; the list stays as it is
+    if (text != null && text.equals(resourceNameComboBox.getValue())) {
+        return;
+    }
+    List<String> matches = ResourceNameIndex.getInstance().search(text, MAX_MATCHES);
+    resourceNameComboBox.getItems().setAll(matches);
+    if (!matches.isEmpty() && resourceNameComboBox.getEditor().isFocused()) {
+        resourceNameComboBox.show();
+    } else {
+        resourceNameComboBox.hide();
     }
 }
    private void handleSendRequestAction() {
     String username = usernameField.getText();
     String fullName = fullNameField.getText();
     String region = regionField.getText();
-    String resourceName = resourceNameComboBox.getValue(); // Use ComboBox value
+    String resourceName = resourceNameComboBox.getEditor().getText().trim(); // Typed or picked name
     String size = sizeField.getText();
     String type = typeField.getText();
     String time = hourComboBox.getValue() + ":" + minuteComboBox.getValue();
 
-    // Check user role
-    String role = checkUserRole(username);
-
-    // If the role is null or undefined, assign 'user' as default
-    if (role == null) {
-        role = "user";
-    }
+    // The role lookup and the allocation run on the database pool; the result is the role, or null on failure
+    CompletableFuture<String> request = busy.trackWrite("Sending request...", DatabaseExecutor.submit(() -> {
+        // Check user role
+        String role = checkUserRole(username);
 
-    // Request resource and check if it was successful
-    if (requestResource(resourceName, size, type, time, username, role, fullName, region)) {
-        showAlert(Alert.AlertType.INFORMATION,
-                  "Resource Requested",
-                  "Resource Request Sent!\nResource: " + resourceName + 
-                  "\nSize: " + size + "\nType: " + type + "\nTime: " + time);
-        navigateToDashboard(role, username); // Pass username to dashboard
-    } else {
-        // Alert if there was an issue with the resource request
-        showAlert(Alert.AlertType.ERROR, "Request Error", "Failed to request resource.");
-    }
+        // If the role is null or undefined, assign 'user' as default
+        if (role == null) {
+            role = "user";
+        }
+        return requestResource(resourceName, size, type, time, username, role, fullName, region) ? role : null;
+    }), sendButton);
+
+    DatabaseExecutor.onFxThread(request, role -> {
+        // Request resource and check if it was successful
+        if (role != null) {
+            showAlert(Alert.AlertType.INFORMATION,
+                      "Resource Requested",
+                      "Resource Request Sent!\nResource: " + resourceName +
+                      "\nSize: " + size + "\nType: " + type + "\nTime: " + time);
+            navigateToDashboard(role, username); // Pass username to dashboard
+        } else {
+            // Alert if there was an issue with the resource request
+            showAlert(Alert.AlertType.ERROR, "Request Error", "Failed to request resource.");
+        }
+    }, error -> showAlert(Alert.AlertType.ERROR, "Request Error", "Failed to request resource: " + error.getMessage()));
 }
    
-private double convertSizeToResourceType(double size, String type, String targetType) {
-    double convertedSize = -1;
-    
-    // Handle invalid type upfront
-    if (type == null || targetType == null) {
-        return -1;  // Invalid type
-    }
-
-    // Normalize input types to uppercase for consistency
-    type = type.toUpperCase();
-    targetType = targetType.toUpperCase();
-
-    switch (type) {
-        case "KB":
-            if (targetType.equals("TB")) {
-                convertedSize = size / (1024 * 1024 * 1024); // Convert KB to TB
-            }
-            break;
-        case "MB":
-            if (targetType.equals("TB")) {
-                convertedSize = size / (1024 * 1024); // Convert MB to TB
-            }
-            break;
-        case "GB":
-            if (targetType.equals("TB")) {
-                convertedSize = size / 1024; // Convert GB to TB
-            }
-            break;
-        case "TB":
-            if (targetType.equals("TB")) {
-                convertedSize = size; // No conversion needed if the type is already TB
-            }
-            break;
-        default:
-            System.out.println("Invalid resource type: " + type);
-            return -1; // Invalid type
-    }
-    
-    // If we still have an invalid result after the conversion, return -1
-    return convertedSize >= 0 ? convertedSize : -1;
-}
-
 private boolean requestResource(String resourceName, String size, String type, String time, 
                                 String username, String role, String fullName, String region) {
     try {
@@ -210,19 +188,26 @@ private boolean requestResource(String resourceName, String size, String type, S
             return false;
         }
 
-        // Validate size input
-        double requestedSize;
+        // Validate size input; capacity is accounted in exact bytes
+        Quantity requested;
         try {
-            requestedSize = Double.parseDouble(size);
+            requested = Quantity.parse(size, type);
         } catch (NumberFormatException e) {
             showAlert(Alert.AlertType.ERROR, "Input Error", "Invalid size value. Please enter a valid number.");
             return false;
+        } catch (ArithmeticException e) {
+            showAlert(Alert.AlertType.ERROR, "Input Error", "Size is too large.");
+            return false;
+        } catch (IllegalArgumentException e) {
+            showAlert(Alert.AlertType.ERROR, "Size Conversion Error", e.getMessage());
+            return false;
         }
 
-        if (requestedSize <= 0) {
+        if (requested.bytes() <= 0) {
             showAlert(Alert.AlertType.ERROR, "Input Error", "Size must be greater than 0.");
             return false;
         }
+        long requestedBytes = requested.bytes();
 
         // Validate time input
         String[] timeParts = time.split(":");
@@ -264,67 +249,61 @@ private boolean requestResource(String resourceName, String size, String type, S
         LocalDateTime releaseTime = currentTime.plusHours(requestedHour).plusMinutes(requestedMinute);
         String formattedReleaseTime = releaseTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
 
-        // Create the resource request document
+        // Create the resource request document; it stays pending until the allocation is decided
         Document requestDoc = new Document("username", username)
                 .append("full_name", fullName) // Store full name
                 .append("region", region) // Store region
                 .append("resource_name", resourceName)
-                .append("size", size)
+                .append(Capacity.SIZE_BYTES, requestedBytes)
                 .append("type", type)
                 .append("time", time)
                 .append("role", role)
                 .append("release_time", formattedReleaseTime)
                 .append("request_date", LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")))
-                .append("status", "allocated");  // Add status field
-
-        // Insert the request document
-        collection.insertOne(requestDoc);
-        System.out.println("Resource request inserted into database.");
-
-        // First, check the region-specific resources collection
-        MongoCollection<Document> regionResourceCollection = database.getCollection(region + "_resources");
-        boolean resourceFulfilled = checkAndUpdateResource(regionResourceCollection, resourceName, requestedSize, type);
+                .append("status", "pending");  // Add status field
 
-        if (!resourceFulfilled) {
-            // If region resources are not sufficient, check the main resources collection
-            resourceFulfilled = checkAndUpdateResource(resourceCollection, resourceName, requestedSize, type);
+        if (AllocationLedger.isEnabled()) {
+            return requestFromLedger(collection, requestDoc, resourceName, requestedBytes, region);
+        }
+        if (AllocationPipeline.isEnabled() && !UnifiedResourceStore.isEnabled()) {
+            return requestFromPipeline(database, collection, requestDoc, resourceName, requestedBytes, region);
         }
 
-        if (!resourceFulfilled) {
-            // If neither region-specific nor main resources fulfill, check other region collections dynamically
-            MongoIterable<String> collectionsIterable = database.listCollectionNames();
-            List<String> collections = new ArrayList<>();
-            for (String collectionName : collectionsIterable) {
-                collections.add(collectionName);
+        // Request creation, capacity decrement and status finalization commit or roll back together
+        AllocationJournal.Event allocation = new TransactionRunner(conn).run(session -> {
+            // A retried attempt must insert a fresh document
+            Document attemptDoc = new Document(requestDoc);
+            attemptDoc.remove("_id");
+            if (session == null) {
+                collection.insertOne(attemptDoc);
+            } else {
+                collection.insertOne(session, attemptDoc);
             }
 
-            List<String> resourceCollections = new ArrayList<>();
-            for (String collectionName : collections) {
-                if (collectionName.endsWith("_resources") && !collectionName.equals(region + "_resources")) {
-                    resourceCollections.add(collectionName);
-                }
-            }
+            AllocationJournal.Event allocated = allocate(session, database, resourceName, requestedBytes, region);
 
-            // Check other region resources
-            for (String otherRegion : resourceCollections) {
-                MongoCollection<Document> otherRegionCollection = database.getCollection(otherRegion);
-                resourceFulfilled = checkAndUpdateResource(otherRegionCollection, resourceName, requestedSize, type);
-                if (resourceFulfilled) {
-                    break;
-                }
+            // Finalize exactly this request, by its _id
+            Document filter = new Document("_id", attemptDoc.get("_id"));
+            Document update = new Document("$set", allocated == null ? decision(null, null)
+                    : decision(allocated.getCollection(), allocated.getKey()));
+            if (session == null) {
+                collection.updateOne(filter, update);
+            } else {
+                collection.updateOne(session, filter, update);
             }
-        }
+            requestDoc.put("_id", attemptDoc.get("_id"));
+            return allocated == null ? null : allocated.forRequest(username, attemptDoc.get("_id"));
+        });
+        System.out.println("Resource request recorded in database.");
 
-        if (!resourceFulfilled) {
+        if (allocation == null) {
             showAlert(Alert.AlertType.ERROR, "Resource Allocation Error", "Resource request could not be fulfilled.");
             return false;
         }
 
-        // Update the resource allocation status to "allocated" in the request
-        collection.updateOne(new Document("username", username)
-            .append("resource_name", resourceName),
-            new Document("$set", new Document("status", "allocated")));
-
+        // Only committed allocations reach the journal and the expiry scheduler
+        AllocationJournal.getInstance().record(allocation);
+        ExpiryScheduler.getInstance().schedule(requestDoc);
         return true;
 
     } catch (Exception e) {
@@ -335,56 +314,165 @@ private boolean requestResource(String resourceName, String size, String type, S
 }
 
 
-private boolean checkAndUpdateResource(MongoCollection<Document> collection, String resourceName, double requestedSize, String type) {
-    Document resourceDoc = collection.find(new Document("resource_name", resourceName)).first();
+private boolean requestFromLedger(MongoCollection<Document> requests, Document requestDoc, String resourceName,
+                                  long requestedBytes, String region) {
+    // Admission is decided in memory; the capacity change reaches MongoDB through the write-behind queue
+    AllocationLedger.Reservation reservation = reserveFromLedger(resourceName, requestedBytes, region);
+    requestDoc.putAll(reservation == null ? decision(null, null) : decision(reservation.getCollection(), reservation.getKey()));
+    try {
+        requests.insertOne(requestDoc);
+    } catch (RuntimeException e) {
+        // Without a recorded request nobody could release the reservation later
+        if (reservation != null) {
+            reservation.cancel();
+        }
+        throw e;
+    } finally {
+        if (reservation != null) {
+            reservation.settle();
+        }
+    }
 
-    if (resourceDoc != null) {
-        // Get the available size and allocated size from the document
-        double availableSize = getResourceSize(resourceDoc, "size");
-        double allocatedSize = getResourceSize(resourceDoc, "allocated_size");
+    if (reservation == null) {
+        showAlert(Alert.AlertType.ERROR, "Resource Allocation Error", "Resource request could not be fulfilled.");
+        return false;
+    }
+    System.out.println("Resource reserved in " + reservation.getCollection() + " through the allocation ledger.");
+    AllocationJournal.getInstance().record(AllocationJournal.Event.of(AllocationJournal.EventType.ALLOCATE,
+            reservation.getCollection(), reservation.getKey(), requestedBytes).forRequest(requestDoc.getString("username"), requestDoc.get("_id")));
+    ExpiryScheduler.getInstance().schedule(requestDoc);
+    return true;
+}
 
-        // Convert requested size to TB
-        double requestedSizeInTB = convertSizeToResourceType(requestedSize, type, "TB");
-        if (requestedSizeInTB == -1) {
-            showAlert(Alert.AlertType.ERROR, "Size Conversion Error", "Invalid size conversion.");
-            return false;
+private boolean requestFromPipeline(MongoDatabase database, MongoCollection<Document> requests, Document requestDoc,
+                                    String resourceName, long requestedBytes, String region) {
+    // The request stays pending while the candidate regions are probed concurrently
+    requests.insertOne(requestDoc);
+    Document filter = new Document("_id", requestDoc.get("_id"));
+
+    // This dialog waits for the outcome; server callers compose the future instead
+    CompletableFuture<AllocationJournal.Event> decided = AllocationPipeline.getInstance()
+            .allocate(database, allocationOrder(region), new Document("resource_name", resourceName), requestedBytes)
+            .handle((allocated, error) -> {
+                if (error != null) {
+                    // Nothing was allocated (e.g. the pipeline was full or a probe failed); the request must not stay pending
+                    requests.updateOne(new Document(filter).append("status", "pending"), new Document("$set", decision(null, null)));
+                    throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+                }
+                requests.updateOne(filter, new Document("$set", allocated == null ? decision(null, null)
+                        : decision(allocated.getCollection(), allocated.getKey())));
+                return allocated;
+            });
+
+    AllocationJournal.Event allocation;
+    try {
+        allocation = decided.join();
+    } catch (CompletionException e) {
+        Throwable cause = e.getCause() == null ? e : e.getCause();
+        showAlert(Alert.AlertType.ERROR, "Resource Allocation Error", "Resource request could not be processed: " + cause.getMessage());
+        return false;
+    }
+
+    if (allocation == null) {
+        showAlert(Alert.AlertType.ERROR, "Resource Allocation Error", "Resource request could not be fulfilled.");
+        return false;
+    }
+    System.out.println("Resource allocated in " + allocation.getCollection() + " through the allocation pipeline.");
+    AllocationJournal.getInstance().record(allocation.forRequest(requestDoc.getString("username"), requestDoc.get("_id")));
+    ExpiryScheduler.getInstance().schedule(requestDoc);
+    return true;
+}
+
+private AllocationLedger.Reservation reserveFromLedger(String resourceName, long requestedBytes, String region) {
+    AllocationLedger ledger = AllocationLedger.getInstance();
+    if (UnifiedResourceStore.isEnabled()) {
+        for (String candidateRegion : UnifiedResourceStore.candidateRegions(region)) {
+            AllocationLedger.Reservation reservation = ledger.tryReserve(UnifiedResourceStore.COLLECTION,
+                    UnifiedResourceStore.key(resourceName, candidateRegion), requestedBytes);
+            if (reservation != null) {
+                return reservation;
+            }
         }
+        return null;
+    }
+
+    Document key = new Document("resource_name", resourceName);
+    for (String collectionName : allocationOrder(region)) {
+        AllocationLedger.Reservation reservation = ledger.tryReserve(collectionName, key, requestedBytes);
+        if (reservation != null) {
+            return reservation;
+        }
+    }
+    return null;
+}
+
+/**
+ * The status fields of a decided request. An allocated request also records the document its bytes
+ * came from, so expiry can give them back to exactly that document.
+ *
+ * @param collectionName null for a rejected request
+ */
+private static Document decision(String collectionName, Document key) {
+    if (collectionName == null) {
+        return new Document("status", "rejected");
+    }
+    return new Document("status", "allocated")
+            .append("allocated_from", collectionName)
+            .append("allocated_key", key);
+}
+
+/**
+ * The collections probed for a resource: the region-specific one first, then the main resources
+ * collection, then the other regions.
+ */
+private List<String> allocationOrder(String region) {
+    return RegionCatalog.getInstance().getProbeOrder(region);
+}
 
-        double availableSizeInTB = convertSizeToResourceType(availableSize, resourceDoc.getString("type"), "TB");
+/**
+ * @return the allocation that was made, or null if no collection could fulfil the request
+ */
+private AllocationJournal.Event allocate(ClientSession session, MongoDatabase database, String resourceName, long requestedBytes, String region) {
+    if (UnifiedResourceStore.isEnabled()) {
+        // One indexed query returns every region holding the resource, in probe order
+        return allocateFromUnifiedStore(session, database, resourceName, requestedBytes, region);
+    }
 
-        // Check if there is enough available space
-        if (allocatedSize + requestedSizeInTB <= availableSizeInTB) {
-            // Update the allocated size
-            double newAllocatedSize = allocatedSize + requestedSizeInTB;
-            collection.updateOne(new Document("resource_name", resourceName),
-                    new Document("$set", new Document("allocated_size", newAllocatedSize)));
-            System.out.println("Resource allocated size updated.");
-            return true;
+    Document key = new Document("resource_name", resourceName);
+    for (String collectionName : allocationOrder(region)) {
+        if (checkAndUpdateResource(session, database.getCollection(collectionName), key, requestedBytes)) {
+            return AllocationJournal.Event.of(AllocationJournal.EventType.ALLOCATE, collectionName, key, requestedBytes);
         }
     }
-    return false;
+    return null;
 }
 
-private double getResourceSize(Document resourceDoc, String field) {
-    Object sizeObj = resourceDoc.get(field);
-    if (sizeObj instanceof Double) {
-        return (Double) sizeObj;
-    } else if (sizeObj instanceof String) {
-        try {
-            return Double.parseDouble((String) sizeObj);
-        } catch (NumberFormatException e) {
-            showAlert(Alert.AlertType.ERROR, "Invalid Data", field + " is not a valid number.");
+private AllocationJournal.Event allocateFromUnifiedStore(ClientSession session, MongoDatabase database, String resourceName, long requestedBytes, String region) {
+    UnifiedResourceStore store = new UnifiedResourceStore(database);
+    for (Document candidate : store.findCandidates(resourceName, region)) {
+        Document key = UnifiedResourceStore.key(resourceName, candidate.getString("region"));
+        if (checkAndUpdateResource(session, store.getCollection(), key, requestedBytes)) {
+            return AllocationJournal.Event.of(AllocationJournal.EventType.ALLOCATE, UnifiedResourceStore.COLLECTION, key, requestedBytes);
         }
     }
-    return 0.0;
+    return null;
 }
 
+private boolean checkAndUpdateResource(ClientSession session, MongoCollection<Document> collection, Document key, long requestedBytes) {
+    // Check capacity and increment the allocated size in one atomic update on the server
+    ResourceAllocator.Result result = ResourceAllocator.allocate(session, collection, key, requestedBytes);
+    if (result.isAllocated()) {
+        System.out.println("Resource allocated size updated to " + result.getAllocatedBytes() + " bytes in "
+                + collection.getNamespace().getCollectionName() + " (retries: " + result.getRetries() + ").");
+        return true;
+    }
+    return false;
+}
 
     private String checkUserRole(String username) {
         try {
-            MongoDatabase database = conn.getDatabase();
-            MongoCollection<Document> userCollection = database.getCollection("users");
-            Document userDoc = userCollection.find(new Document("username", username)).first();
+            // Roles rarely change, so the profile usually comes from the cache
+            Document userDoc = UserProfileCache.getInstance().get(conn.getDatabase(), username);
 
             if (userDoc != null) {
                 return userDoc.getString("role");
@@ -443,6 +531,11 @@ private double getResourceSize(Document resourceDoc, String field) {
     }
 
     private void showAlert(Alert.AlertType alertType, String title, String message) {
+        // Database work runs on the pool threads, but alerts can only be shown on the FX thread
+        if (!Platform.isFxApplicationThread()) {
+            Platform.runLater(() -> showAlert(alertType, title, message));
+            return;
+        }
         Alert alert = new Alert(alertType);
         alert.setTitle(title);
         alert.setHeaderText(null);
@@ -0,0 +1,135 @@
+package ressourcemanagement;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates capacity from a resource document with a single conditional findOneAndUpdate.
+ *
+ * The capacity check and the increment of allocated_bytes run on the server in one
+ * atomic step, so concurrent requesters can no longer both pass the check and overwrite
+ * each other's allocation.
+ */
+public class ResourceAllocator {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int WRITE_CONFLICT = 112;
+
+    private static final AtomicLong attempts = new AtomicLong();
+    private static final AtomicLong allocations = new AtomicLong();
+    private static final AtomicLong rejections = new AtomicLong();
+    private static final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Allocates the given number of bytes from the resource in this collection.
+     *
+     * @return the post-allocation state, or a rejected result when the resource does not exist
+     *         or does not have enough free capacity
+     */
+    public static Result allocate(MongoCollection<Document> collection, String resourceName, long requestedBytes) {
+        return allocate(collection, new Document("resource_name", resourceName), requestedBytes);
+    }
+
+    /**
+     * Same as {@link #allocate(MongoCollection, String, long)} for a document selected by an
+     * arbitrary key, e.g. (resource_name, region) in the unified store.
+     */
+    public static Result allocate(MongoCollection<Document> collection, Document key, long requestedBytes) {
+        return allocate(null, collection, key, requestedBytes);
+    }
+
+    /**
+     * Allocates inside the given session's transaction. Transient errors are not retried here,
+     * because the whole transaction has to be retried (see {@link TransactionRunner}).
+     * A null session behaves like {@link #allocate(MongoCollection, Document, long)}.
+     */
+    public static Result allocate(ClientSession session, MongoCollection<Document> collection, Document key, long requestedBytes) {
+        Document filter = new Document(key)
+                .append("$expr", new Document("$lte", Arrays.asList(
+                        new Document("$add", Arrays.asList(
+                                new Document("$ifNull", Arrays.asList("$" + Capacity.ALLOCATED_BYTES, 0L)), requestedBytes)),
+                        "$" + Capacity.CAPACITY_BYTES)));
+        Document update = new Document("$inc", new Document(Capacity.ALLOCATED_BYTES, requestedBytes));
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER);
+
+        int retryCount = 0;
+        boolean upgraded = false;
+        while (true) {
+            attempts.incrementAndGet();
+            try {
+                Document updated = session == null
+                        ? collection.findOneAndUpdate(filter, update, options)
+                        : collection.findOneAndUpdate(session, filter, update, options);
+                if (updated == null) {
+                    // A document still in the legacy string layout cannot match; rewrite it once and retry
+                    if (!upgraded && CapacityMigration.upgradeResource(session, collection, key)) {
+                        upgraded = true;
+                        continue;
+                    }
+                    rejections.incrementAndGet();
+                    return new Result(false, 0, 0, retryCount);
+                }
+                allocations.incrementAndGet();
+                return new Result(true, Capacity.allocatedBytes(updated), Capacity.capacityBytes(updated), retryCount);
+            } catch (MongoException e) {
+                if (session != null || retryCount + 1 >= MAX_ATTEMPTS || !isTransient(e)) {
+                    throw e;
+                }
+                retryCount++;
+                retries.incrementAndGet();
+                System.out.println("Retrying allocation of " + key + " after write conflict (" + retryCount + ")");
+            }
+        }
+    }
+
+    private static boolean isTransient(MongoException e) {
+        return e.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)
+                || (e instanceof MongoCommandException && ((MongoCommandException) e).getErrorCode() == WRITE_CONFLICT);
+    }
+
+    public static String statistics() {
+        return String.format("Allocations: %d attempts, %d granted, %d rejected, %d retries",
+                attempts.get(), allocations.get(), rejections.get(), retries.get());
+    }
+
+    /**
+     * Outcome of one allocation attempt.
+     */
+    public static class Result {
+        private final boolean allocated;
+        private final long allocatedBytes;
+        private final long capacityBytes;
+        private final int retries;
+
+        Result(boolean allocated, long allocatedBytes, long capacityBytes, int retries) {
+            this.allocated = allocated;
+            this.allocatedBytes = allocatedBytes;
+            this.capacityBytes = capacityBytes;
+            this.retries = retries;
+        }
+
+        public boolean isAllocated() {
+            return allocated;
+        }
+
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public long getCapacityBytes() {
+            return capacityBytes;
+        }
+
+        public int getRetries() {
+            return retries;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ressourcemanagement;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copies the "resources" and "&lt;region&gt;_resources" collections into the unified
+ * {@link UnifiedResourceStore} collection.
+ *
+ * The copy is done with upserts in batches, so it can run while the application is in use
+ * and can be re-run to pick up changes made in the old collections in the meantime. Allocation
+ * counters are only copied into entries the store does not have yet: once the unified store is in
+ * use it owns them, and a re-run must not overwrite live counts with the stale ones left in the old
+ * collections.
+ * Run it with: java -cp ... ressourcemanagement.ResourceMigration
+ */
+public class ResourceMigration {
+
+    private static final int BATCH_SIZE = 500;
+    // Changed by allocations and expiries; descriptive fields such as capacity and type are still copied on every run
+    private static final List<String> COUNTERS = Arrays.asList(Capacity.ALLOCATED_BYTES, Capacity.LEGACY_ALLOCATED_SIZE,
+            AllocationLedger.SEQUENCE_FIELD, AllocationLedger.APPLIED_BATCHES_FIELD);
+
+    private final MongoDatabase database;
+    private final UnifiedResourceStore store;
+
+    public ResourceMigration(MongoDatabase database) {
+        this.database = database;
+        this.store = new UnifiedResourceStore(database);
+    }
+
+    /**
+     * @return the number of documents copied
+     */
+    public long migrate() {
+        store.ensureIndexes();
+
+        List<String> sources = new ArrayList<>();
+        sources.add("resources");
+        sources.addAll(RegionCatalog.getInstance().refresh());
+
+        long copied = 0;
+        for (String source : sources) {
+            copied += migrateCollection(source);
+        }
+        return copied;
+    }
+
+    private long migrateCollection(String collectionName) {
+        String region = UnifiedResourceStore.regionForCollection(collectionName);
+        MongoCollection<Document> source = database.getCollection(collectionName);
+        List<WriteModel<Document>> batch = new ArrayList<>(BATCH_SIZE);
+        long copied = 0;
+
+        try (MongoCursor<Document> cursor = source.find().batchSize(BATCH_SIZE).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                String resourceName = doc.getString("resource_name");
+                if (resourceName == null || resourceName.isEmpty()) {
+                    continue;
+                }
+
+                Document fields = new Document(doc);
+                fields.remove("_id");
+                fields.put("region", region);
+                Document counters = new Document();
+                for (String counter : COUNTERS) {
+                    if (fields.containsKey(counter)) {
+                        counters.put(counter, fields.remove(counter));
+                    }
+                }
+
+                Document update = new Document("$set", fields);
+                if (!counters.isEmpty()) {
+                    update.append("$setOnInsert", counters);
+                }
+                batch.add(new UpdateOneModel<Document>(
+                        UnifiedResourceStore.key(resourceName, region),
+                        update,
+                        new UpdateOptions().upsert(true)));
+
+                if (batch.size() == BATCH_SIZE) {
+                    copied += flush(batch);
+                }
+            }
+        }
+        copied += flush(batch);
+
+        System.out.println("Migrated " + copied + " documents from " + collectionName + " (region " + region + ")");
+        return copied;
+    }
+
+    private long flush(List<WriteModel<Document>> batch) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        int size = batch.size();
+        store.getCollection().bulkWrite(batch, new BulkWriteOptions().ordered(false));
+        batch.clear();
+        return size;
+    }
+
+    public static void main(String[] args) {
+        long start = System.currentTimeMillis();
+        long copied = new ResourceMigration(new Conn().getDatabase()).migrate();
+        System.out.println("Migration finished: " + copied + " documents in " + (System.currentTimeMillis() - start) + " ms");
+        Conn.shutdown();
+    }
+}
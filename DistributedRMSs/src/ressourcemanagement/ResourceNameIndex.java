@@ -0,0 +1,173 @@
+package ressourcemanagement;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory, prefix-searchable list of the resource names in the resources collection, for the
+ * type-ahead in {@link RequestResource}.
+ *
+ * The names are kept as a sorted array of lower-case keys next to the names as written, so a prefix
+ * search is one binary search plus a scan of the matches. The array is replaced, never changed in
+ * place, so searches need no lock. It is read once with a projected query, kept current by
+ * AddResource and DeleteResource, and read again after drms.names.refreshSec seconds (default 300)
+ * to pick up resources added from other clients.
+ */
+public class ResourceNameIndex {
+
+    private static ResourceNameIndex instance;
+
+    private volatile Entries entries;
+
+    private ResourceNameIndex() {
+    }
+
+    public static synchronized ResourceNameIndex getInstance() {
+        if (instance == null) {
+            instance = new ResourceNameIndex();
+        }
+        return instance;
+    }
+
+    /**
+     * Reads the names if they were never read or are older than the refresh interval. Blocks on MongoDB
+     * when it reads, so call it off the JavaFX Application Thread.
+     */
+    public void ensureLoaded(MongoDatabase database) {
+        Entries current = entries;
+        long maxAgeMs = TimeUnit.SECONDS.toMillis(Long.getLong("drms.names.refreshSec", 300L));
+        if (current != null && System.currentTimeMillis() - current.loadedAt < maxAgeMs) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        List<String> names = new ArrayList<>();
+        for (Document doc : database.getCollection("resources").find()
+                .projection(Projections.fields(Projections.include("resource_name"), Projections.excludeId()))) {
+            String name = doc.getString("resource_name");
+            if (name != null && !name.isEmpty()) {
+                names.add(name);
+            }
+        }
+        entries = Entries.of(names);
+        System.out.println("Resource name index loaded " + names.size() + " names in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    public boolean isEmpty() {
+        Entries current = entries;
+        return current == null || current.names.length == 0;
+    }
+
+    /**
+     * The first names, in alphabetical order, that start with the prefix (ignoring case).
+     */
+    public List<String> search(String prefix, int limit) {
+        Entries current = entries;
+        List<String> matches = new ArrayList<>();
+        if (current == null) {
+            return matches;
+        }
+        String key = prefix == null ? "" : prefix.toLowerCase(Locale.ROOT);
+        for (int i = current.lowerBound(key); i < current.keys.length && matches.size() < limit
+                && current.keys[i].startsWith(key); i++) {
+            matches.add(current.names[i]);
+        }
+        return matches;
+    }
+
+    /**
+     * Adds a name created by AddResource. Does nothing before the names have been read.
+     */
+    public synchronized void add(String name) {
+        Entries current = entries;
+        if (current == null || name == null || name.isEmpty() || current.indexOf(name) >= 0) {
+            return;
+        }
+        List<String> names = new ArrayList<>(Arrays.asList(current.names));
+        names.add(name);
+        entries = Entries.of(names, current.loadedAt);
+    }
+
+    /**
+     * Removes a name deleted by DeleteResource.
+     */
+    public synchronized void remove(String name) {
+        Entries current = entries;
+        int index = current == null ? -1 : current.indexOf(name);
+        if (index < 0) {
+            return;
+        }
+        List<String> names = new ArrayList<>(Arrays.asList(current.names));
+        names.remove(index);
+        entries = Entries.of(names, current.loadedAt);
+    }
+
+    /**
+     * One immutable generation of the index.
+     */
+    private static final class Entries {
+        private final String[] keys;
+        private final String[] names;
+        private final long loadedAt;
+
+        private Entries(String[] keys, String[] names, long loadedAt) {
+            this.keys = keys;
+            this.names = names;
+            this.loadedAt = loadedAt;
+        }
+
+        static Entries of(List<String> names) {
+            return of(names, System.currentTimeMillis());
+        }
+
+        static Entries of(List<String> names, long loadedAt) {
+            // Sort by lower-case key, then by the name itself so equal keys have a fixed order
+            names.sort((a, b) -> {
+                int byKey = a.toLowerCase(Locale.ROOT).compareTo(b.toLowerCase(Locale.ROOT));
+                return byKey != 0 ? byKey : a.compareTo(b);
+            });
+            String[] keys = new String[names.size()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = names.get(i).toLowerCase(Locale.ROOT);
+            }
+            return new Entries(keys, names.toArray(new String[0]), loadedAt);
+        }
+
+        /**
+         * The first position whose key is not less than the given key.
+         */
+        int lowerBound(String key) {
+            int low = 0;
+            int high = keys.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle].compareTo(key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        int indexOf(String name) {
+            if (name == null) {
+                return -1;
+            }
+            String key = name.toLowerCase(Locale.ROOT);
+            for (int i = lowerBound(key); i < keys.length && keys[i].equals(key); i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
+import javafx.scene.control.Label;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
 import javafx.scene.layout.VBox;
@@ -14,6 +15,7 @@ import com.mongodb.client.MongoDatabase;
 import org.bson.Document;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 
 public class ResourceStatus {
 
@@ -31,82 +33,159 @@ public class ResourceStatus {
         TableView<Map<String, String>> tableView = new TableView<>();
         tableView.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
 
+        // The cells are collected on the database pool and the columns are added when they arrive
+        BusyIndicator busy = new BusyIndicator();
+        CompletableFuture<StatusTable> load = busy.track("Loading resource status...", DatabaseExecutor.submit(this::loadStatus));
+        DatabaseExecutor.onFxThread(load, status -> fillTable(tableView, status),
+                error -> tableView.setPlaceholder(new Label("Failed to load resource status: " + error.getMessage())));
+
+        // Layout and scene setup
+        VBox layout = new VBox(10, busy, tableView);
+        layout.setPadding(new Insets(20));
+
+        Scene scene = new Scene(layout, 1200, 800);
+        dialogStage.setScene(scene);
+        // Closing the window stops a load that is still running
+        dialogStage.setOnHidden(e -> load.cancel(true));
+        dialogStage.show();
+    }
+
+    private StatusTable loadStatus() {
+        // The materialized summary already holds the table, one read in resource order
+        if (ResourceSummary.getInstance().isReady()) {
+            return fromSummary(ResourceSummary.getInstance().read());
+        }
+
         // Create a list to store all unique resource names
         Set<String> resourceNames = new TreeSet<>();
         Map<String, Map<String, String>> resourceData = new HashMap<>();
 
         // Fetch all region collections and their resources
-        try {
-            MongoDatabase database = conn.getDatabase();
-
-            // Identify all region collections dynamically
-            List<String> regionCollections = new ArrayList<>();
-            for (String collectionName : database.listCollectionNames()) {
-                if (collectionName.endsWith("_resources")) {
-                    regionCollections.add(collectionName);
+        MongoDatabase database = conn.getDatabase();
+
+        List<String> regionCollections;
+        if (UnifiedResourceStore.isEnabled()) {
+            // A single query over the unified store returns every (resource, region) cell
+            Set<String> regions = new TreeSet<>();
+            CapacityState state = CapacityState.getInstance();
+            List<Document> resources = state.isLive()
+                    ? state.getResources(UnifiedResourceStore.COLLECTION)
+                    : new UnifiedResourceStore(database).findAll();
+            for (Document resource : resources) {
+                String regionName = resource.getString("region");
+                if (UnifiedResourceStore.GLOBAL_REGION.equals(regionName)) {
+                    continue;
                 }
+                regions.add(RegionCatalog.collectionFor(regionName));
+                addCell(resourceNames, resourceData, regionName, resource);
             }
+            regionCollections = new ArrayList<>(regions);
+        } else {
+            // Region collections come from the shared catalog
+            regionCollections = RegionCatalog.getInstance().getRegionCollections();
 
             // Populate resource data for each region
             for (String regionCollection : regionCollections) {
                 String regionName = regionCollection.replace("_resources", "");
                 MongoCollection<Document> collection = database.getCollection(regionCollection);
+                Iterable<Document> resources = CapacityState.getInstance().isLive()
+                        ? CapacityState.getInstance().getResources(regionCollection)
+                        : collection.find();
 
-                for (Document resource : collection.find()) {
-                    String resourceName = resource.getString("resource_name");
-                    String status = resource.getString("status");
-                    double allocatedSize = resource.getDouble("allocated_size");
-                    String unit = resource.getString("type");
-
-                    resourceNames.add(resourceName);
-
-                    // Create or update the resource's region-specific details
-                    resourceData
-                        .computeIfAbsent(resourceName, k -> new HashMap<>())
-                        .put(regionName, String.format("Status: %s, Size: %.2f %s", status, allocatedSize, unit));
+                for (Document resource : resources) {
+                    addCell(resourceNames, resourceData, regionName, resource);
                 }
             }
+        }
+
+        // Populate the table data
+        List<Map<String, String>> rows = new ArrayList<>();
 
-            // Add columns to the table
-            TableColumn<Map<String, String>, String> resourceColumn = new TableColumn<>("Resource Name");
-            resourceColumn.setCellValueFactory(data -> new SimpleStringProperty(data.getValue().get("Resource Name")));
-            tableView.getColumns().add(resourceColumn);
+        for (String resourceName : resourceNames) {
+            Map<String, String> row = new HashMap<>();
+            row.put("Resource Name", resourceName);
 
             for (String region : regionCollections) {
                 String regionName = region.replace("_resources", "");
-
-                TableColumn<Map<String, String>, String> regionColumn = new TableColumn<>(regionName);
-                regionColumn.setCellValueFactory(data -> new SimpleStringProperty(data.getValue().getOrDefault(regionName, "N/A")));
-                tableView.getColumns().add(regionColumn);
+                row.put(regionName, resourceData.getOrDefault(resourceName, new HashMap<>()).getOrDefault(regionName, "N/A"));
             }
 
-            // Populate the table data
-            ObservableList<Map<String, String>> tableData = FXCollections.observableArrayList();
+            rows.add(row);
+        }
+        return new StatusTable(regionCollections, rows);
+    }
 
-            for (String resourceName : resourceNames) {
-                Map<String, String> row = new HashMap<>();
-                row.put("Resource Name", resourceName);
+    private StatusTable fromSummary(List<Document> summaryRows) {
+        List<String> regionCollections = new ArrayList<>();
+        if (UnifiedResourceStore.isEnabled()) {
+            for (String regionName : ResourceSummary.regionsOf(summaryRows)) {
+                regionCollections.add(RegionCatalog.collectionFor(regionName));
+            }
+        } else {
+            regionCollections.addAll(RegionCatalog.getInstance().getRegionCollections());
+        }
 
-                for (String region : regionCollections) {
-                    String regionName = region.replace("_resources", "");
-                    row.put(regionName, resourceData.getOrDefault(resourceName, new HashMap<>()).getOrDefault(regionName, "N/A"));
+        List<Map<String, String>> rows = new ArrayList<>(summaryRows.size());
+        for (Document summaryRow : summaryRows) {
+            Map<String, String> row = new HashMap<>();
+            row.put("Resource Name", summaryRow.getString("_id"));
+            Document cells = summaryRow.get("regions", Document.class);
+            if (cells != null) {
+                for (String regionName : cells.keySet()) {
+                    row.put(regionName, cellText(cells.get(regionName, Document.class)));
                 }
-
-                tableData.add(row);
             }
+            rows.add(row);
+        }
+        return new StatusTable(regionCollections, rows);
+    }
+
+    private void fillTable(TableView<Map<String, String>> tableView, StatusTable status) {
+        // Add columns to the table
+        TableColumn<Map<String, String>, String> resourceColumn = new TableColumn<>("Resource Name");
+        resourceColumn.setCellValueFactory(data -> new SimpleStringProperty(data.getValue().get("Resource Name")));
+        tableView.getColumns().add(resourceColumn);
 
-            tableView.setItems(tableData);
+        for (String region : status.regionCollections) {
+            String regionName = region.replace("_resources", "");
 
-        } catch (Exception e) {
-            e.printStackTrace();
+            TableColumn<Map<String, String>, String> regionColumn = new TableColumn<>(regionName);
+            regionColumn.setCellValueFactory(data -> new SimpleStringProperty(data.getValue().getOrDefault(regionName, "N/A")));
+            tableView.getColumns().add(regionColumn);
         }
 
-        // Layout and scene setup
-        VBox layout = new VBox(10, tableView);
-        layout.setPadding(new Insets(20));
+        ObservableList<Map<String, String>> tableData = FXCollections.observableArrayList(status.rows);
+        tableView.setItems(tableData);
+    }
 
-        Scene scene = new Scene(layout, 1200, 800);
-        dialogStage.setScene(scene);
-        dialogStage.show();
+    private void addCell(Set<String> resourceNames, Map<String, Map<String, String>> resourceData, String regionName, Document resource) {
+        String resourceName = resource.getString("resource_name");
+
+        resourceNames.add(resourceName);
+
+        // Create or update the resource's region-specific details
+        resourceData
+            .computeIfAbsent(resourceName, k -> new HashMap<>())
+            .put(regionName, cellText(resource));
+    }
+
+    private static String cellText(Document resource) {
+        String status = resource.getString("status");
+        String unit = resource.getString("type");
+        String allocatedSize = Capacity.format(Capacity.allocatedBytes(resource), unit);
+        return String.format("Status: %s, Size: %s %s", status, allocatedSize, unit);
+    }
+
+    /**
+     * Region columns and rows read from the database, ready to be put in the table.
+     */
+    private static final class StatusTable {
+        private final List<String> regionCollections;
+        private final List<Map<String, String>> rows;
+
+        StatusTable(List<String> regionCollections, List<Map<String, String>> rows) {
+            this.regionCollections = regionCollections;
+            this.rows = rows;
+        }
     }
 }
@@ -0,0 +1,260 @@
+package ressourcemanagement;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * The resource x region table of {@link ResourceStatus}, kept as a collection so the status view is
+ * one read of resource_status_summary in _id order.
+ *
+ * Each summary document is {_id: resource_name, regions: {region: {status, type, allocated_bytes}}}.
+ * The whole collection is computed by one $unionWith/$group aggregation over the region collections
+ * (or the unified store) at startup and every drms.summary.rebuildMin minutes (default 60), which
+ * also corrects any drift. In between, every allocation event recorded in the {@link AllocationJournal}
+ * recomputes the row of its resource with the same aggregation. A row is read from the resource
+ * documents rather than adjusted by the event's bytes, so an event that a rebuild already counted is
+ * not counted again, and events for a resource still waiting for its refresh share that one refresh.
+ * Updates run in order on one background thread. Needs MongoDB 4.4; until the first build succeeds, the view reads the resource
+ * collections as before. Disabled with -Ddrms.summary=false.
+ */
+public class ResourceSummary {
+
+    public static final String COLLECTION = "resource_status_summary";
+
+    private static ResourceSummary instance;
+
+    private final Consumer<AllocationJournal.Event> listener = this::onEvent;
+    private MongoDatabase database;
+    private ExecutorService updates;
+    private ScheduledExecutorService rebuilds;
+    private volatile boolean ready;
+
+    // Resources whose row refresh is queued but has not started
+    private final Set<String> pendingRows = ConcurrentHashMap.newKeySet();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong rebuildCount = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastRebuildMs = -1;
+
+    private ResourceSummary() {
+    }
+
+    public static synchronized ResourceSummary getInstance() {
+        if (instance == null) {
+            instance = new ResourceSummary();
+        }
+        return instance;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(System.getProperty("drms.summary", "true"));
+    }
+
+    /**
+     * True once the summary has been built and can be read instead of the resource collections.
+     */
+    public boolean isReady() {
+        return ready;
+    }
+
+    public synchronized void start(MongoDatabase database) {
+        if (updates != null || !isEnabled()) {
+            return;
+        }
+        this.database = database;
+        updates = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "drms-resource-summary");
+            thread.setDaemon(true);
+            return thread;
+        });
+        rebuilds = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "drms-resource-summary-rebuild");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Long.getLong("drms.summary.rebuildMin", 60L);
+        // The rebuild itself runs on the update thread, so it never interleaves with an increment
+        rebuilds.scheduleWithFixedDelay(() -> submit(this::rebuild), 0, interval, TimeUnit.MINUTES);
+        AllocationJournal.getInstance().addListener(listener);
+    }
+
+    public synchronized void shutdown() {
+        AllocationJournal.getInstance().removeListener(listener);
+        if (rebuilds != null) {
+            rebuilds.shutdownNow();
+            rebuilds = null;
+        }
+        if (updates != null) {
+            updates.shutdown();
+            updates = null;
+        }
+        ready = false;
+    }
+
+    /**
+     * Rows of the summary, ordered by resource name.
+     */
+    public List<Document> read() {
+        return database.getCollection(COLLECTION).find().sort(Sorts.ascending("_id")).into(new ArrayList<>());
+    }
+
+    /**
+     * Applies an allocation event to the summary; registered with the journal by {@link #start}.
+     */
+    private void onEvent(AllocationJournal.Event event) {
+        if (!ready) {
+            return;
+        }
+        String resourceName = event.getKey().getString("resource_name");
+        if (resourceName == null) {
+            return;
+        }
+        if (!pendingRows.add(resourceName)) {
+            // The queued refresh has not read the row yet, so it will see this change too
+            coalesced.incrementAndGet();
+            return;
+        }
+        submit(() -> {
+            pendingRows.remove(resourceName);
+            refresh(resourceName);
+        });
+    }
+
+    private void submit(Runnable update) {
+        ExecutorService target;
+        synchronized (this) {
+            target = updates;
+        }
+        if (target == null) {
+            return;
+        }
+        target.execute(() -> {
+            try {
+                update.run();
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                System.err.println("Could not update the resource status summary: " + e.getMessage());
+            }
+        });
+    }
+
+    private void refresh(String resourceName) {
+        List<String> sources = sources();
+        MongoCollection<Document> summary = database.getCollection(COLLECTION);
+        Document row = sources.isEmpty() ? null : database.getCollection(sources.get(0))
+                .aggregate(pivot(Filters.eq("resource_name", resourceName), sources)).first();
+        // The row is replaced whole; a resource removed from every region loses its row
+        if (row == null) {
+            summary.deleteOne(Filters.eq("_id", resourceName));
+        } else {
+            summary.replaceOne(Filters.eq("_id", resourceName), row, new ReplaceOptions().upsert(true));
+        }
+        refreshes.incrementAndGet();
+    }
+
+    private void rebuild() {
+        long start = System.currentTimeMillis();
+        List<String> sources = sources();
+        if (sources.isEmpty()) {
+            database.getCollection(COLLECTION).deleteMany(new Document());
+        } else {
+            List<Bson> pipeline = pivot(new Document(), sources);
+            pipeline.add(new Document("$out", COLLECTION));
+            try {
+                // $out only runs when the aggregation is executed
+                database.getCollection(sources.get(0)).aggregate(pipeline).allowDiskUse(true).toCollection();
+            } catch (RuntimeException e) {
+                // Most likely a server older than 4.4; the view keeps reading the collections
+                System.out.println("Resource status summary unavailable: " + e.getMessage());
+                ready = false;
+                return;
+            }
+        }
+        lastRebuildMs = System.currentTimeMillis() - start;
+        rebuildCount.incrementAndGet();
+        ready = true;
+    }
+
+    /**
+     * The collections the table is computed from; the aggregation runs on the first.
+     */
+    private static List<String> sources() {
+        if (UnifiedResourceStore.isEnabled()) {
+            return Collections.singletonList(UnifiedResourceStore.COLLECTION);
+        }
+        return RegionCatalog.getInstance().getRegionCollections();
+    }
+
+    /**
+     * The aggregation computing summary rows for the resources matching the filter, without an output stage.
+     */
+    private static List<Bson> pivot(Bson filter, List<String> sources) {
+        List<Bson> pipeline = new ArrayList<>();
+        if (UnifiedResourceStore.isEnabled()) {
+            pipeline.add(new Document("$match", Filters.and(filter, Filters.ne("region", UnifiedResourceStore.GLOBAL_REGION))));
+            pipeline.add(cell("$region"));
+        } else {
+            pipeline.add(new Document("$match", filter));
+            pipeline.add(cell(new Document("$literal", RegionCatalog.regionOf(sources.get(0)))));
+            for (String collectionName : sources.subList(1, sources.size())) {
+                pipeline.add(new Document("$unionWith", new Document("coll", collectionName).append("pipeline", Arrays.asList(
+                        new Document("$match", filter),
+                        cell(new Document("$literal", RegionCatalog.regionOf(collectionName)))))));
+            }
+        }
+        pipeline.add(new Document("$group", new Document("_id", "$resource_name")
+                .append("cells", new Document("$push", new Document("k", "$region").append("v", new Document("status", "$status")
+                        .append("type", "$type")
+                        .append(Capacity.ALLOCATED_BYTES, "$" + Capacity.ALLOCATED_BYTES)
+                        .append(Capacity.LEGACY_ALLOCATED_SIZE, "$" + Capacity.LEGACY_ALLOCATED_SIZE))))));
+        pipeline.add(new Document("$project", new Document("regions", new Document("$arrayToObject", "$cells"))));
+        return pipeline;
+    }
+
+    private static Document cell(Object region) {
+        return new Document("$project", new Document("resource_name", 1).append("status", 1).append("type", 1)
+                .append(Capacity.ALLOCATED_BYTES, 1).append(Capacity.LEGACY_ALLOCATED_SIZE, 1).append("region", region));
+    }
+
+    public String statistics() {
+        if (!ready) {
+            return "Resource status summary: off";
+        }
+        return String.format("Resource status summary: %d row refreshes (%d events coalesced), %d rebuilds (last %d ms), %d failures",
+                refreshes.get(), coalesced.get(), rebuildCount.get(), lastRebuildMs, failures.get());
+    }
+
+    /**
+     * Every region that has a cell in the rows, sorted.
+     */
+    static Set<String> regionsOf(List<Document> rows) {
+        Set<String> regions = new TreeSet<>();
+        for (Document row : rows) {
+            Document cells = row.get("regions", Document.class);
+            if (cells != null) {
+                regions.addAll(cells.keySet());
+            }
+        }
+        return regions;
+    }
+}
@@ -0,0 +1,340 @@
+package ressourcemanagement;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log stored in fixed-size, memory-mapped segment files.
+ *
+ * Appending copies the record into the mapped segment under a short lock and returns its sequence
+ * number; nothing is flushed at that point. A single commit thread forces the segment to disk and
+ * wakes every appender waiting in {@link #awaitDurable(long)} up to that point, so many concurrent
+ * appends share one flush (group commit). When a record does not fit, the segment is flushed and a
+ * new one is started; segment files are named after the first sequence number they hold.
+ *
+ * Record layout: int payload length, long sequence, int CRC32 of the payload, payload. A zero length
+ * marks the end of a segment. A record whose checksum does not match (torn by a crash) ends the log.
+ */
+public class SegmentedJournal {
+
+    private static final int HEADER_BYTES = 4 + 8 + 4;
+    private static final String SUFFIX = ".seg";
+
+    /**
+     * Receives records in sequence order during {@link #read}.
+     */
+    public interface RecordHandler {
+        void accept(long sequence, ByteBuffer payload) throws IOException;
+    }
+
+    private final Path directory;
+    private final String prefix;
+    private final int segmentBytes;
+
+    private final Object lock = new Object();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long lastSequence;
+    private long durableSequence;
+    private boolean running;
+    private boolean closed;
+    private Thread committer;
+
+    private final AtomicLong appends = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong segmentsCreated = new AtomicLong();
+
+    public SegmentedJournal(Path directory, String prefix, int segmentBytes) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Opens the newest segment for appending after its last valid record.
+     *
+     * @param minimumSequence sequence numbers continue above this even if all segments were deleted
+     */
+    public void open(long minimumSequence) throws IOException {
+        Files.createDirectories(directory);
+        synchronized (lock) {
+            lastSequence = minimumSequence;
+            List<Path> segments = listSegments();
+            if (segments.isEmpty()) {
+                startSegment(lastSequence + 1);
+            } else {
+                Path newest = segments.get(segments.size() - 1);
+                channel = FileChannel.open(newest, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentBytes));
+                lastSequence = Math.max(lastSequence, firstSequenceOf(newest) - 1);
+                long end = scan(segment, null, Long.MIN_VALUE);
+                if (end >= 0) {
+                    lastSequence = Math.max(lastSequence, end);
+                }
+                // Leftovers of a torn record (pages flush in any order) are never written over
+                if (segment.remaining() < HEADER_BYTES * 2 || segment.getInt(segment.position()) != 0) {
+                    startSegment(lastSequence + 1);
+                }
+            }
+            durableSequence = lastSequence;
+            running = true;
+        }
+        committer = new Thread(this::commitLoop, "drms-journal-" + prefix);
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Copies the payload into the log. The record is durable once {@link #awaitDurable} returns for it.
+     *
+     * @return the record's sequence number
+     */
+    public long append(byte[] payload) throws IOException {
+        if (payload.length + HEADER_BYTES * 2 > segmentBytes) {
+            throw new IOException("Journal record of " + payload.length + " bytes does not fit a segment");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        synchronized (lock) {
+            if (!running) {
+                throw new IOException("Journal " + prefix + " is closed");
+            }
+            // Keep room for the end marker after the record
+            if (segment.remaining() < payload.length + HEADER_BYTES * 2) {
+                segment.putInt(0);
+                segment.force();
+                durableSequence = lastSequence;
+                startSegment(lastSequence + 1);
+            }
+            long sequence = ++lastSequence;
+            segment.putInt(payload.length);
+            segment.putLong(sequence);
+            segment.putInt((int) crc.getValue());
+            segment.put(payload);
+            appends.incrementAndGet();
+            lock.notifyAll();
+            return sequence;
+        }
+    }
+
+    /**
+     * Blocks until the record with the given sequence number has been forced to disk.
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        synchronized (lock) {
+            while (durableSequence < sequence) {
+                if (closed) {
+                    throw new IOException("Journal " + prefix + " closed before record " + sequence + " was committed");
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for journal commit", e);
+                }
+            }
+        }
+    }
+
+    public long appendDurable(byte[] payload) throws IOException {
+        long sequence = append(payload);
+        awaitDurable(sequence);
+        return sequence;
+    }
+
+    private void commitLoop() {
+        while (true) {
+            MappedByteBuffer toForce;
+            long target;
+            synchronized (lock) {
+                while (running && durableSequence == lastSequence) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running && durableSequence == lastSequence) {
+                    return;
+                }
+                toForce = segment;
+                target = lastSequence;
+            }
+
+            // Everything appended while this flush runs joins the next one
+            toForce.force();
+            commits.incrementAndGet();
+
+            synchronized (lock) {
+                durableSequence = Math.max(durableSequence, target);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Passes every valid record with a sequence number above afterSequence to the handler, oldest first.
+     */
+    public void read(long afterSequence, RecordHandler handler) throws IOException {
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size(); i++) {
+            // Skip segments that end before the requested position
+            if (i + 1 < segments.size() && firstSequenceOf(segments.get(i + 1)) <= afterSequence + 1) {
+                continue;
+            }
+            try (FileChannel file = FileChannel.open(segments.get(i), StandardOpenOption.READ)) {
+                scan(file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()), handler, afterSequence);
+            }
+        }
+    }
+
+    /**
+     * Deletes whole segments whose records all have a sequence number up to the given one.
+     */
+    public void deleteThrough(long sequence) throws IOException {
+        List<Path> segments = listSegments();
+        // The newest segment is the one being appended to and is never deleted
+        for (int i = 0; i + 1 < segments.size(); i++) {
+            if (firstSequenceOf(segments.get(i + 1)) - 1 <= sequence) {
+                Files.deleteIfExists(segments.get(i));
+            }
+        }
+    }
+
+    public void close() {
+        Thread thread;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            lock.notifyAll();
+            thread = committer;
+        }
+        try {
+            // The committer flushes what is left before it stops
+            thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (lock) {
+            try {
+                segment.force();
+                durableSequence = lastSequence;
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close journal " + prefix + ": " + e.getMessage());
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    public long getLastSequence() {
+        synchronized (lock) {
+            return lastSequence;
+        }
+    }
+
+    public String statistics() {
+        long appended = appends.get();
+        long flushed = commits.get();
+        return String.format("%d records, %d commits (%.1f records per commit), %d new segments",
+                appended, flushed, flushed == 0 ? 0.0 : (double) appended / flushed, segmentsCreated.get());
+    }
+
+    /**
+     * A stream over a record's payload, for payloads written with a DataOutputStream.
+     */
+    public static DataInputStream stream(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private void startSegment(long firstSequence) throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        Path file = directory.resolve(String.format("%s-%020d%s", prefix, firstSequence, SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segmentsCreated.incrementAndGet();
+    }
+
+    /**
+     * Walks the records of a segment from the start, leaving the buffer positioned after the last
+     * valid one.
+     *
+     * @return the sequence number of the last valid record, or -1 if there is none
+     */
+    private static long scan(ByteBuffer buffer, RecordHandler handler, long afterSequence) throws IOException {
+        long last = -1;
+        buffer.position(0);
+        while (buffer.remaining() >= HEADER_BYTES) {
+            int start = buffer.position();
+            try {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() - 12) {
+                    buffer.position(start);
+                    break;
+                }
+                long sequence = buffer.getLong();
+                int checksum = buffer.getInt();
+                ByteBuffer payload = buffer.slice();
+                payload.limit(length);
+
+                CRC32 crc = new CRC32();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    buffer.position(start);
+                    break;
+                }
+                buffer.position(buffer.position() + length);
+                last = sequence;
+                if (handler != null && sequence > afterSequence) {
+                    handler.accept(sequence, payload);
+                }
+            } catch (BufferUnderflowException e) {
+                buffer.position(start);
+                break;
+            }
+        }
+        return last;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "-*" + SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        // Zero-padded sequence numbers sort by name
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private long firstSequenceOf(Path segmentFile) {
+        String name = segmentFile.getFileName().toString();
+        return Long.parseLong(name.substring(prefix.length() + 1, name.length() - SUFFIX.length()));
+    }
+}
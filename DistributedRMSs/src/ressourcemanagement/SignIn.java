@@ -11,10 +11,14 @@ import org.bson.Document;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 
+import java.util.concurrent.CompletableFuture;
+
 public class SignIn {
 
     private TextField usernameField;
     private PasswordField passwordField;
+    private Button signInButton;
+    private BusyIndicator busy;
     private Conn conn; // MongoDB connection class
 
     public SignIn() {
@@ -38,7 +42,7 @@ public class SignIn {
         formGrid.add(passwordField, 1, 1);
 
         // Buttons
-        Button signInButton = new Button("Sign-In");
+        signInButton = new Button("Sign-In");
         Button cancelButton = new Button("Cancel");
 
         signInButton.setOnAction(e -> handleSignInAction());
@@ -47,7 +51,8 @@ public class SignIn {
         HBox buttonBox = new HBox(10, signInButton, cancelButton);
         buttonBox.setAlignment(Pos.CENTER);
 
-        VBox formBox = new VBox(10, formGrid, buttonBox);
+        busy = new BusyIndicator();
+        VBox formBox = new VBox(10, formGrid, buttonBox, busy);
         formBox.setPadding(new Insets(20));
         formBox.setStyle("-fx-background-color: lightgray;");
 
@@ -74,12 +79,18 @@ public class SignIn {
         if (username.isEmpty() || password.isEmpty()) {
             showAlert(Alert.AlertType.ERROR, "Error", "Both fields are required!");
         } else {
-            if (authenticateUser(username, password)) {
-                showAlert(Alert.AlertType.INFORMATION, "Success", "Sign-In Successful! Welcome, " + username);
-                // Optionally, close the dialog or redirect based on the role
-            } else {
-                showAlert(Alert.AlertType.ERROR, "Error", "Invalid username or password!");
-            }
+            // Only the lookup runs on the database pool; the dashboards are opened back on the FX thread
+            CompletableFuture<String> authentication = busy.track("Signing in...",
+                    DatabaseExecutor.submit(() -> authenticateUser(username, password)), signInButton);
+            DatabaseExecutor.onFxThread(authentication, role -> {
+                if (role != null) {
+                    openDashboard(username, role);
+                    showAlert(Alert.AlertType.INFORMATION, "Success", "Sign-In Successful! Welcome, " + username);
+                    // Optionally, close the dialog or redirect based on the role
+                } else {
+                    showAlert(Alert.AlertType.ERROR, "Error", "Invalid username or password!");
+                }
+            }, error -> showAlert(Alert.AlertType.ERROR, "Error", "Invalid username or password!"));
         }
     }
 
@@ -88,7 +99,10 @@ public class SignIn {
         passwordField.clear();
     }
 
-    private boolean authenticateUser(String username, String password) {
+    /**
+     * @return the user's role, or null if the username and password do not match
+     */
+    private String authenticateUser(String username, String password) {
     try {
         MongoDatabase database = conn.getDatabase(); // Get the database from the Conn class
         MongoCollection<Document> collection = database.getCollection("users"); // Get the "users" collection
@@ -98,29 +112,30 @@ public class SignIn {
         Document user = collection.find(query).first();
 
         if (user != null) {
-            String role = user.getString("role");
-
-            // Store the username in UserSession
-            UserSession.getInstance().setLoggedInUsername(username);
-
-            // Redirect based on user role
-            if (role.equalsIgnoreCase("Customer")) {
-                showAlert(Alert.AlertType.INFORMATION, "Customer Dashboard", "Welcome, Customer!");
-                showCustomerDashboard(); // Open the Customer Dashboard
-            } else if (role.equalsIgnoreCase("Admin")) {
-                showAlert(Alert.AlertType.INFORMATION, "Admin Dashboard", "Welcome, Admin!");
-                showAdminDashboard(); // Show the Admin Dashboard after successful login
-            }
-            return true; // Successful authentication
+            return user.getString("role"); // Successful authentication
         } else {
-            return false; // User not found or incorrect password
+            return null; // User not found or incorrect password
         }
     } catch (Exception e) {
         e.printStackTrace();
-        return false;
+        return null;
     }
 }
 
+    private void openDashboard(String username, String role) {
+        // Store the username in UserSession
+        UserSession.getInstance().setLoggedInUsername(username);
+
+        // Redirect based on user role
+        if (role.equalsIgnoreCase("Customer")) {
+            showAlert(Alert.AlertType.INFORMATION, "Customer Dashboard", "Welcome, Customer!");
+            showCustomerDashboard(); // Open the Customer Dashboard
+        } else if (role.equalsIgnoreCase("Admin")) {
+            showAlert(Alert.AlertType.INFORMATION, "Admin Dashboard", "Welcome, Admin!");
+            showAdminDashboard(); // Show the Admin Dashboard after successful login
+        }
+    }
+
 
     private void showAlert(Alert.AlertType alertType, String title, String message) {
         Alert alert = new Alert(alertType);
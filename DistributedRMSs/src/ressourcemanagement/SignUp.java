@@ -11,10 +11,14 @@ import org.bson.Document;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 
+import java.util.concurrent.CompletableFuture;
+
 public class SignUp {
 
     private TextField nameField, usernameField, regionField;
     private PasswordField passwordField, confirmPasswordField;
+    private Button signUpButton;
+    private BusyIndicator busy;
     private Conn conn; // Assuming the Conn class provides the MongoDB connection
 
     public SignUp() {
@@ -47,7 +51,7 @@ public class SignUp {
         formGrid.add(confirmPasswordField, 1, 4);
 
         // Buttons
-        Button signUpButton = new Button("Sign-Up");
+        signUpButton = new Button("Sign-Up");
         Button cancelButton = new Button("Cancel");
 
         signUpButton.setOnAction(e -> handleSignUpAction());
@@ -56,7 +60,8 @@ public class SignUp {
         HBox buttonBox = new HBox(10, signUpButton, cancelButton);
         buttonBox.setAlignment(Pos.CENTER);
 
-        VBox formBox = new VBox(10, formGrid, buttonBox);
+        busy = new BusyIndicator();
+        VBox formBox = new VBox(10, formGrid, buttonBox, busy);
         formBox.setPadding(new Insets(20));
         formBox.setStyle("-fx-background-color: lightgray;");
 
@@ -88,12 +93,17 @@ public class SignUp {
         } else if (!password.equals(confirmPassword)) {
             showAlert(Alert.AlertType.ERROR, "Error", "Passwords do not match!");
         } else {
-            if (registerUser(name, username, region, password)) {
-                showAlert(Alert.AlertType.INFORMATION, "Success", "Sign-Up Successful! Welcome, " + name);
-                // Optionally, close the dialog if needed
-            } else {
-                showAlert(Alert.AlertType.ERROR, "Error", "Username already exists!");
-            }
+            // The duplicate check and the insert run on the database pool
+            CompletableFuture<Boolean> registration = busy.trackWrite("Signing up...",
+                    DatabaseExecutor.submit(() -> registerUser(name, username, region, password)), signUpButton);
+            DatabaseExecutor.onFxThread(registration, registered -> {
+                if (registered) {
+                    showAlert(Alert.AlertType.INFORMATION, "Success", "Sign-Up Successful! Welcome, " + name);
+                    // Optionally, close the dialog if needed
+                } else {
+                    showAlert(Alert.AlertType.ERROR, "Error", "Username already exists!");
+                }
+            }, error -> showAlert(Alert.AlertType.ERROR, "Error", "Sign-Up failed: " + error.getMessage()));
         }
     }
 
@@ -125,6 +135,7 @@ public class SignUp {
 
             // Insert the new user into the collection
             collection.insertOne(newUser);
+            UserProfileCache.getInstance().invalidate(username);
             return true; // User registered successfully
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,169 @@
+package ressourcemanagement;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces display-only field updates of resource_requests (such as time_remaining) by request _id.
+ *
+ * An update whose value equals the last one written, or the one already waiting, is dropped. The
+ * rest wait in a dirty map where a newer value replaces an older one, and the map is flushed as one
+ * unordered bulk write every drms.statusWrites.flushMs milliseconds (default 2000) and at shutdown.
+ * Writes that must be seen at once or that decide something, like a request's status on release,
+ * do not go through here.
+ */
+public class StatusWriteBuffer {
+
+    private static final String COLLECTION = "resource_requests";
+    // Last written values kept for deduplication; the oldest requests are forgotten first
+    private static final int MAX_REMEMBERED = 10000;
+
+    private static StatusWriteBuffer instance;
+
+    private final Object lock = new Object();
+    private Map<Object, Document> dirty = new LinkedHashMap<>();
+    private final Map<Object, Document> written = new LinkedHashMap<Object, Document>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Document> eldest) {
+            return size() > MAX_REMEMBERED;
+        }
+    };
+    private ScheduledExecutorService flusher;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong issued = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private StatusWriteBuffer() {
+    }
+
+    public static synchronized StatusWriteBuffer getInstance() {
+        if (instance == null) {
+            instance = new StatusWriteBuffer();
+        }
+        return instance;
+    }
+
+    /**
+     * Queues $set field = value on the request. Returns at once; the write happens with the next flush.
+     */
+    public void set(Object requestId, String field, Object value) {
+        if (requestId == null) {
+            return;
+        }
+        submitted.incrementAndGet();
+        synchronized (lock) {
+            Document pending = dirty.get(requestId);
+            if (pending != null && pending.containsKey(field)) {
+                if (Objects.equals(pending.get(field), value)) {
+                    unchanged.incrementAndGet();
+                } else {
+                    pending.put(field, value);
+                    coalesced.incrementAndGet();
+                }
+                return;
+            }
+            Document last = written.get(requestId);
+            if (last != null && last.containsKey(field) && Objects.equals(last.get(field), value)) {
+                unchanged.incrementAndGet();
+                return;
+            }
+            if (pending == null) {
+                dirty.put(requestId, new Document(field, value));
+            } else {
+                pending.put(field, value);
+            }
+        }
+        ensureFlusher();
+    }
+
+    private synchronized void ensureFlusher() {
+        if (flusher != null) {
+            return;
+        }
+        long interval = Long.getLong("drms.statusWrites.flushMs", 2000L);
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "drms-status-writes");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes every dirty request in one bulk write. Failed entries are queued again unless a newer value arrived.
+     */
+    public void flush() {
+        Map<Object, Document> batch;
+        synchronized (lock) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            batch = dirty;
+            dirty = new LinkedHashMap<>();
+        }
+
+        List<WriteModel<Document>> writes = new ArrayList<>(batch.size());
+        for (Map.Entry<Object, Document> entry : batch.entrySet()) {
+            writes.add(new UpdateOneModel<>(new Document("_id", entry.getKey()), new Document("$set", entry.getValue())));
+        }
+        try {
+            MongoDatabase database = new Conn().getDatabase();
+            database.getCollection(COLLECTION).bulkWrite(writes, new BulkWriteOptions().ordered(false));
+            issued.addAndGet(writes.size());
+            batches.incrementAndGet();
+            synchronized (lock) {
+                for (Map.Entry<Object, Document> entry : batch.entrySet()) {
+                    written.computeIfAbsent(entry.getKey(), id -> new Document()).putAll(entry.getValue());
+                }
+            }
+        } catch (Exception e) {
+            failed.addAndGet(writes.size());
+            System.err.println("Could not write " + writes.size() + " request updates, retrying: " + e.getMessage());
+            synchronized (lock) {
+                for (Map.Entry<Object, Document> entry : batch.entrySet()) {
+                    Document newer = dirty.get(entry.getKey());
+                    Document retry = new Document(entry.getValue());
+                    if (newer != null) {
+                        retry.putAll(newer);
+                    }
+                    dirty.put(entry.getKey(), retry);
+                }
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        flush();
+    }
+
+    public String statistics() {
+        long avoided = unchanged.get() + coalesced.get();
+        int pending;
+        synchronized (lock) {
+            pending = dirty.size();
+        }
+        return String.format("Request status writes: %d submitted, %d issued in %d batches, %d avoided (%d unchanged, %d coalesced), %d failed, %d pending",
+                submitted.get(), issued.get(), batches.get(), avoided, unchanged.get(), coalesced.get(), failed.get(), pending);
+    }
+}
@@ -0,0 +1,179 @@
+package ressourcemanagement;
+
+import com.mongodb.MongoException;
+import com.mongodb.ReadConcern;
+import com.mongodb.TransactionOptions;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a unit of work as one multi-document transaction.
+ *
+ * The work is retried as a whole when the server labels the failure a TransientTransactionError
+ * (e.g. a write conflict with a concurrent request), and the commit alone is retried on
+ * UnknownTransactionCommitResult, up to MAX_ATTEMPTS times with a growing pause. Transactions need a replica set; a single-node replica set is
+ * enough for local use (mongod --replSet rs0, then rs.initiate()). Against a standalone server
+ * the work runs without a session and without atomicity, and a warning is logged once.
+ */
+public class TransactionRunner {
+
+    private static final int MAX_ATTEMPTS = Integer.getInteger("drms.transactions.maxAttempts", 5);
+    private static final long COMMIT_RETRY_PAUSE_MS = 100;
+
+    private static final TransactionOptions OPTIONS = TransactionOptions.builder()
+            .readConcern(ReadConcern.SNAPSHOT)
+            .writeConcern(WriteConcern.MAJORITY)
+            .maxCommitTime(5L, TimeUnit.SECONDS)
+            .build();
+
+    private static final AtomicLong commits = new AtomicLong();
+    private static final AtomicLong aborts = new AtomicLong();
+    private static final AtomicLong commitRetries = new AtomicLong();
+    private static final AtomicLong totalCommitNanos = new AtomicLong();
+    private static final AtomicLong maxCommitNanos = new AtomicLong();
+
+    private static Boolean supported;
+
+    /**
+     * The body of a transaction. The session is null when the deployment has no transaction support.
+     */
+    public interface Work<T> {
+        T execute(ClientSession session);
+    }
+
+    private final Conn conn;
+
+    public TransactionRunner(Conn conn) {
+        this.conn = conn;
+    }
+
+    public <T> T run(Work<T> work) {
+        if (!isSupported(conn.getDatabase())) {
+            return work.execute(null);
+        }
+
+        MongoClient client = conn.getClient();
+        try (ClientSession session = client.startSession()) {
+            int attempt = 0;
+            while (true) {
+                attempt++;
+                session.startTransaction(OPTIONS);
+                T result;
+                try {
+                    result = work.execute(session);
+                } catch (RuntimeException e) {
+                    abort(session);
+                    if (isTransient(e) && attempt < MAX_ATTEMPTS) {
+                        System.out.println("Retrying transaction after transient error (" + attempt + "): " + e.getMessage());
+                        continue;
+                    }
+                    throw e;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    commit(session);
+                } catch (MongoException e) {
+                    aborts.incrementAndGet();
+                    if (isTransient(e) && attempt < MAX_ATTEMPTS) {
+                        System.out.println("Retrying transaction after failed commit (" + attempt + "): " + e.getMessage());
+                        continue;
+                    }
+                    throw e;
+                }
+                recordCommit(start);
+                return result;
+            }
+        }
+    }
+
+    private void commit(ClientSession session) {
+        int attempt = 0;
+        while (true) {
+            attempt++;
+            try {
+                session.commitTransaction();
+                return;
+            } catch (MongoException e) {
+                // The commit may or may not have been applied; committing again is safe
+                if (!e.hasErrorLabel(MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL) || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                commitRetries.incrementAndGet();
+                try {
+                    Thread.sleep(COMMIT_RETRY_PAUSE_MS * attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void abort(ClientSession session) {
+        aborts.incrementAndGet();
+        try {
+            if (session.hasActiveTransaction()) {
+                session.abortTransaction();
+            }
+        } catch (MongoException e) {
+            System.err.println("Failed to abort transaction: " + e.getMessage());
+        }
+    }
+
+    private static boolean isTransient(RuntimeException e) {
+        return e instanceof MongoException
+                && ((MongoException) e).hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+    }
+
+    /**
+     * Transactions are available on replica set members and mongos; checked once per process.
+     */
+    private static synchronized boolean isSupported(MongoDatabase database) {
+        if (supported == null) {
+            if (!Boolean.parseBoolean(System.getProperty("drms.transactions", "true"))) {
+                supported = false;
+            } else {
+                try {
+                    Document hello = database.runCommand(new Document("isMaster", 1));
+                    supported = hello.containsKey("setName") || "isdbgrid".equals(hello.getString("msg"));
+                } catch (MongoException e) {
+                    System.err.println("Could not determine transaction support: " + e.getMessage());
+                    return false;
+                }
+            }
+            if (!supported) {
+                System.err.println("MongoDB transactions are unavailable (standalone server or disabled); "
+                        + "request and allocation are written without a transaction.");
+            }
+        }
+        return supported;
+    }
+
+    private static void recordCommit(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        commits.incrementAndGet();
+        totalCommitNanos.addAndGet(elapsed);
+        long max;
+        while (elapsed > (max = maxCommitNanos.get()) && !maxCommitNanos.compareAndSet(max, elapsed)) {
+            // retry until the maximum is recorded
+        }
+    }
+
+    public static String statistics() {
+        long committed = commits.get();
+        long aborted = aborts.get();
+        long attempts = committed + aborted;
+        double abortRate = attempts == 0 ? 0 : 100.0 * aborted / attempts;
+        long averageMs = committed == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalCommitNanos.get() / committed);
+        return String.format("Transactions: %d committed, %d aborted (%.1f%%), %d commit retries, commit avg %d ms, max %d ms",
+                committed, aborted, abortRate, commitRetries.get(), averageMs,
+                TimeUnit.NANOSECONDS.toMillis(maxCommitNanos.get()));
+    }
+}
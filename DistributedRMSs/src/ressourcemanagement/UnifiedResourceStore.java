@@ -0,0 +1,121 @@
+package ressourcemanagement;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Alternative storage layout that keeps the capacity of every region in one collection,
+ * keyed by (resource_name, region), instead of one "&lt;region&gt;_resources" collection per region.
+ *
+ * Entries of the general "resources" collection are stored with region {@link #GLOBAL_REGION}.
+ * The layout is switched on with -Ddrms.storage.unified=true after running {@link ResourceMigration}.
+ */
+public class UnifiedResourceStore {
+
+    // Deliberately does not end in "_resources" so RegionCatalog never mistakes it for a region
+    public static final String COLLECTION = "resource_capacity";
+    public static final String GLOBAL_REGION = "global";
+
+    private final MongoCollection<Document> collection;
+
+    public UnifiedResourceStore(MongoDatabase database) {
+        this.collection = database.getCollection(COLLECTION);
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("drms.storage.unified");
+    }
+
+    public MongoCollection<Document> getCollection() {
+        return collection;
+    }
+
+    /**
+     * The compound key also serves "all regions of one resource" lookups through its prefix.
+     */
+    public void ensureIndexes() {
+        collection.createIndex(Indexes.ascending("resource_name", "region"), new IndexOptions().unique(true));
+        collection.createIndex(Indexes.ascending("region"));
+    }
+
+    /**
+     * Maps a collection of the old layout to its region key.
+     */
+    public static String regionForCollection(String collectionName) {
+        if (collectionName.endsWith(RegionCatalog.SUFFIX)) {
+            return RegionCatalog.regionOf(collectionName);
+        }
+        return GLOBAL_REGION;
+    }
+
+    public static Document key(String resourceName, String region) {
+        return new Document("resource_name", resourceName).append("region", region);
+    }
+
+    /**
+     * Every region holding the resource, in the order allocation and release probe them:
+     * the requester's region first, then the global entry, then the other regions by name.
+     * This is a single indexed query.
+     */
+    public List<Document> findCandidates(String resourceName, String preferredRegion) {
+        List<Document> all = collection.find(new Document("resource_name", resourceName))
+                .projection(Projections.include("resource_name", "region", "type",
+                        Capacity.CAPACITY_BYTES, Capacity.ALLOCATED_BYTES, Capacity.LEGACY_SIZE, Capacity.LEGACY_ALLOCATED_SIZE))
+                .sort(Sorts.ascending("region"))
+                .into(new ArrayList<>());
+
+        List<Document> ordered = new ArrayList<>(all.size());
+        for (Document doc : all) {
+            if (doc.getString("region").equals(preferredRegion)) {
+                ordered.add(doc);
+            }
+        }
+        for (Document doc : all) {
+            if (doc.getString("region").equals(GLOBAL_REGION) && !GLOBAL_REGION.equals(preferredRegion)) {
+                ordered.add(doc);
+            }
+        }
+        for (Document doc : all) {
+            String region = doc.getString("region");
+            if (!region.equals(preferredRegion) && !region.equals(GLOBAL_REGION)) {
+                ordered.add(doc);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * The regions to probe for a resource in the same order as {@link #findCandidates}, taken from
+     * the region catalog instead of a query. Used where the allocation ledger already holds the data.
+     */
+    public static List<String> candidateRegions(String preferredRegion) {
+        List<String> regions = new ArrayList<>();
+        regions.add(preferredRegion);
+        if (!GLOBAL_REGION.equals(preferredRegion)) {
+            regions.add(GLOBAL_REGION);
+        }
+        for (String collectionName : RegionCatalog.getInstance().getOtherRegionCollections(preferredRegion)) {
+            regions.add(RegionCatalog.regionOf(collectionName));
+        }
+        return regions;
+    }
+
+    /**
+     * All entries sorted by resource and region, for the status view.
+     */
+    public List<Document> findAll() {
+        return collection.find()
+                .projection(Projections.include("resource_name", "region", "status", "type",
+                        Capacity.ALLOCATED_BYTES, Capacity.LEGACY_ALLOCATED_SIZE))
+                .sort(Sorts.ascending("resource_name", "region"))
+                .into(new ArrayList<>());
+    }
+}
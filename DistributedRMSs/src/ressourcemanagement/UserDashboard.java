@@ -21,6 +21,7 @@ public class UserDashboard extends Application {
     public void start(Stage primaryStage) {
         primaryStage.setTitle("DISTRIBUTED RESOURCE MANAGEMENT SYSTEM - User Dashboard");
         notify = new Notification(username); // Initialize Notification with the username
+        primaryStage.setOnHidden(e -> notify.shutdown()); // Stop following the user's requests on logout
 
         // Create a menu bar
         MenuBar menuBar = new MenuBar();
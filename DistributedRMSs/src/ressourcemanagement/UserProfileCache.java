@@ -0,0 +1,146 @@
+package ressourcemanagement;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Role, branch and region of users, so requesting or adding a resource does not query users every time.
+ *
+ * Profiles are kept for drms.users.ttlSec seconds (default 300), at most drms.users.cacheSize of them
+ * (default 1000, least recently used dropped first). AddAdmin and SignUp invalidate the username they
+ * write; a change made from another client shows up once the entry expires. Users that were not found
+ * are not cached, so a new account is found at once. A lookup that raced an invalidation is returned
+ * but not cached. Passwords are never read into the cache.
+ */
+public class UserProfileCache {
+
+    private static final int MAX_SIZE = Integer.getInteger("drms.users.cacheSize", 1000);
+
+    private static UserProfileCache instance;
+
+    private final long ttlMs = TimeUnit.SECONDS.toMillis(Long.getLong("drms.users.ttlSec", 300L));
+    private final Map<String, CachedProfile> profiles = new LinkedHashMap<String, CachedProfile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedProfile> eldest) {
+            if (size() > MAX_SIZE) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    // Bumped by every invalidation, so a read that started before one does not cache what it read
+    private long generation;
+
+    private UserProfileCache() {
+    }
+
+    public static synchronized UserProfileCache getInstance() {
+        if (instance == null) {
+            instance = new UserProfileCache();
+        }
+        return instance;
+    }
+
+    /**
+     * The profile of the user (role, branch and region only), or null if there is no such user.
+     * Reads users on a miss, so call it off the JavaFX Application Thread.
+     */
+    public Document get(MongoDatabase database, String username) {
+        if (username == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        long readGeneration;
+        synchronized (profiles) {
+            readGeneration = generation;
+            CachedProfile entry = profiles.get(username);
+            if (entry != null) {
+                if (now - entry.loadedAt < ttlMs) {
+                    hits.incrementAndGet();
+                    return entry.profile;
+                }
+                profiles.remove(username);
+                expirations.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+
+        // Read outside the lock so a slow query does not hold up lookups of other users
+        Document profile = database.getCollection("users").find(new Document("username", username))
+                .projection(Projections.fields(Projections.include("role", "branch", "region"), Projections.excludeId()))
+                .first();
+        if (profile != null) {
+            synchronized (profiles) {
+                if (generation == readGeneration) {
+                    profiles.put(username, new CachedProfile(profile, now));
+                }
+            }
+        }
+        return profile;
+    }
+
+    public String getRole(MongoDatabase database, String username) {
+        Document profile = get(database, username);
+        return profile == null ? null : profile.getString("role");
+    }
+
+    public String getBranch(MongoDatabase database, String username) {
+        Document profile = get(database, username);
+        return profile == null ? null : profile.getString("branch");
+    }
+
+    /**
+     * Drops the cached profile after the user's document was written.
+     */
+    public void invalidate(String username) {
+        synchronized (profiles) {
+            generation++;
+            if (profiles.remove(username) != null) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public String statistics() {
+        int size;
+        synchronized (profiles) {
+            // Expired entries still in the map are dropped here so the size is current
+            long now = System.currentTimeMillis();
+            for (Iterator<CachedProfile> it = profiles.values().iterator(); it.hasNext(); ) {
+                if (now - it.next().loadedAt >= ttlMs) {
+                    it.remove();
+                    expirations.incrementAndGet();
+                }
+            }
+            size = profiles.size();
+        }
+        long lookups = hits.get() + misses.get();
+        return String.format("User profile cache: %d/%d profiles, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d expirations, %d invalidations",
+                size, MAX_SIZE, hits.get(), misses.get(), lookups == 0 ? 0.0 : 100.0 * hits.get() / lookups,
+                evictions.get(), expirations.get(), invalidations.get());
+    }
+
+    private static final class CachedProfile {
+        private final Document profile;
+        private final long loadedAt;
+
+        CachedProfile(Document profile, long loadedAt) {
+            this.profile = profile;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
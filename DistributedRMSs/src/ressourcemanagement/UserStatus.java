@@ -1,90 +1,167 @@
 package ressourcemanagement;
 
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
-import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import javafx.application.Platform;
+import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.Label;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
 import javafx.scene.control.cell.PropertyValueFactory;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * This class retrieves and displays user resource information from any collection.
+ * This class retrieves and displays the resource requests of all users.
+ *
+ * Only resource_requests is read, with one aggregation that filters by status and region, sorts
+ * and projects on the server. Rows are added to the table in chunks of CHUNK_SIZE as the cursor
+ * returns them, so the first rows appear after one batch whatever the size of the collection.
  */
 class UserStatus {
 
+    private static final int CHUNK_SIZE = 500;
+    private static final String ALL = "All";
+
     private final Conn conn;
+    private CompletableFuture<Integer> load;
+    // Changes with every load, so chunks still in flight from an older load are dropped
+    private int generation;
 
     public UserStatus() {
         conn = new Conn(); // Initialize the MongoDB connection
     }
 
     public void showUserStatusDialog() {
-        try {
-            // Use the Conn class to get the database
-            MongoDatabase database = conn.getDatabase();
-
-            // Get all collections in the database
-            List<String> collectionNames = new ArrayList<>();
-            for (String collectionName : database.listCollectionNames()) {
-                collectionNames.add(collectionName);
+        // The window opens at once; the rows are read on the database pool and streamed in as they arrive
+        BusyIndicator busy = new BusyIndicator();
+        TableView<UserResourceInfo> table = createTable();
+
+        ComboBox<String> statusBox = new ComboBox<>();
+        // The statuses a request moves through: pending until decided, then allocated or rejected,
+        // and an allocation ends released by its user or removed when it expires
+        statusBox.getItems().addAll(ALL, "pending", "allocated", "rejected", "released", "removed");
+        statusBox.setValue(ALL);
+        ComboBox<String> regionBox = new ComboBox<>();
+        regionBox.getItems().add(ALL);
+        for (String collectionName : RegionCatalog.getInstance().getRegionCollections()) {
+            regionBox.getItems().add(RegionCatalog.regionOf(collectionName));
+        }
+        regionBox.setValue(ALL);
+        Button applyButton = new Button("Apply");
+        Label countLabel = new Label();
+
+        HBox filters = new HBox(10, new Label("Status:"), statusBox, new Label("Region:"), regionBox, applyButton, countLabel);
+        filters.setPadding(new Insets(10));
+        applyButton.setOnAction(e -> load(table, busy, countLabel, statusBox.getValue(), regionBox.getValue(), applyButton));
+
+        // Create a layout and scene
+        VBox layout = new VBox(filters, busy, table);
+        Scene scene = new Scene(layout, 800, 600);
+
+        // Create and display the stage
+        Stage stage = new Stage();
+        stage.setTitle("User Status");
+        stage.setScene(scene);
+        // Closing the window stops a load that is still running
+        stage.setOnHidden(e -> {
+            if (load != null) {
+                load.cancel(true);
             }
+        });
+        stage.show();
+
+        load(table, busy, countLabel, ALL, ALL, applyButton);
+    }
 
-            List<UserResourceInfo> userInfoList = new ArrayList<>();
-
-            // Loop through all collections to fetch user data
-            for (String collectionName : collectionNames) {
-                MongoCollection<Document> collection = database.getCollection(collectionName);
-
-                try (MongoCursor<Document> cursor = collection.find().iterator()) {
-                    while (cursor.hasNext()) {
-                        Document doc = cursor.next();
-
-                        // Extract fields from the document
-                        String userName = doc.getString("username");
-                        String resourceName = doc.getString("resource_name");
-                        String resourceType = doc.getString("type");
-
-                        // Handle size as Double or String, and convert to Integer
-                        Integer resourceSize = null;
-                        Object sizeObject = doc.get("size");
-                        if (sizeObject instanceof Double) {
-                            resourceSize = ((Double) sizeObject).intValue();
-                        } else if (sizeObject instanceof String) {
-                            try {
-                                resourceSize = Integer.parseInt((String) sizeObject);
-                            } catch (NumberFormatException e) {
-                                resourceSize = 0;  // Default value or handle as needed
-                            }
-                        }
-                        String region = doc.getString("region");
-                        String status = doc.getString("status");
-
-                        // Ensure fields are not null or empty before adding to the list
-                        if (userName != null && !userName.isEmpty() && resourceName != null && !resourceName.isEmpty()) {
-                            userInfoList.add(new UserResourceInfo(userName, resourceName, resourceType, resourceSize, region, status));
-                        }
-                    }
+    private void load(TableView<UserResourceInfo> table, BusyIndicator busy, Label countLabel,
+                      String status, String region, Button applyButton) {
+        if (load != null) {
+            load.cancel(true);
+        }
+        table.getItems().clear();
+        countLabel.setText("");
+        int loadGeneration = ++generation;
+        CompletableFuture<Integer> current = DatabaseExecutor.submit(() -> streamUserResources(status, region, table, loadGeneration));
+        load = current;
+        busy.track("Loading user status...", current, applyButton);
+        DatabaseExecutor.onFxThread(current, count -> countLabel.setText(count + " requests"),
+                error -> showErrorDialog("Error fetching user data", error.getMessage()));
+    }
+
+    /**
+     * Runs the aggregation and hands the rows to the table a chunk at a time.
+     *
+     * @return the number of rows read
+     */
+    private int streamUserResources(String status, String region, TableView<UserResourceInfo> table, int loadGeneration) {
+        List<Bson> conditions = new ArrayList<>();
+        conditions.add(Filters.exists("username"));
+        conditions.add(Filters.exists("resource_name"));
+        if (!ALL.equals(status)) {
+            conditions.add(Filters.eq("status", status));
+        }
+        if (!ALL.equals(region)) {
+            conditions.add(Filters.eq("region", region));
+        }
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(Aggregates.match(Filters.and(conditions)));
+        pipeline.add(Aggregates.sort(Sorts.ascending("status", "region", "username")));
+        pipeline.add(Aggregates.project(Projections.include("username", "resource_name", "type", "region", "status",
+                Capacity.SIZE_BYTES, Capacity.LEGACY_SIZE)));
+
+        int count = 0;
+        List<UserResourceInfo> chunk = new ArrayList<>(CHUNK_SIZE);
+        try (MongoCursor<Document> cursor = conn.getDatabase().getCollection("resource_requests")
+                .aggregate(pipeline).batchSize(CHUNK_SIZE).iterator()) {
+            while (cursor.hasNext()) {
+                Document doc = cursor.next();
+                String resourceType = doc.getString("type");
+                // Sizes are stored in bytes; show them exactly in the unit they were requested in
+                String resourceSize = Capacity.format(Capacity.requestBytes(doc), resourceType);
+                chunk.add(new UserResourceInfo(doc.getString("username"), doc.getString("resource_name"),
+                        resourceType, resourceSize, doc.getString("status"), doc.getString("region")));
+                count++;
+                if (chunk.size() == CHUNK_SIZE) {
+                    publish(table, chunk, loadGeneration);
+                    chunk = new ArrayList<>(CHUNK_SIZE);
                 }
             }
+        }
+        publish(table, chunk, loadGeneration);
+        return count;
+    }
 
-            // Display the data in a TableView
-            displayUserStatusTable(userInfoList);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            showErrorDialog("Error fetching user data", e.getMessage());
+    private void publish(TableView<UserResourceInfo> table, List<UserResourceInfo> chunk, int loadGeneration) {
+        // A newer load or a closed window owns the table now
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException();
+        }
+        if (!chunk.isEmpty()) {
+            Platform.runLater(() -> {
+                if (loadGeneration == generation) {
+                    table.getItems().addAll(chunk);
+                }
+            });
         }
     }
 
-    private void displayUserStatusTable(List<UserResourceInfo> userInfoList) {
+    private TableView<UserResourceInfo> createTable() {
         // Create a TableView
         TableView<UserResourceInfo> table = new TableView<>();
 
@@ -98,7 +175,7 @@ class UserStatus {
         TableColumn<UserResourceInfo, String> typeColumn = new TableColumn<>("Resource Type");
         typeColumn.setCellValueFactory(new PropertyValueFactory<>("resourceType"));
 
-        TableColumn<UserResourceInfo, Integer> sizeColumn = new TableColumn<>("Resource Size");
+        TableColumn<UserResourceInfo, String> sizeColumn = new TableColumn<>("Resource Size");
         sizeColumn.setCellValueFactory(new PropertyValueFactory<>("resourceSize"));
         
          TableColumn<UserResourceInfo, Integer> regionColumn = new TableColumn<>("Region of User");
@@ -109,19 +186,7 @@ class UserStatus {
 
         // Add columns to the table
         table.getColumns().addAll(nameColumn, resourceColumn, typeColumn, sizeColumn, regionColumn, statusColumn);
-
-        // Add data to the table
-        table.getItems().addAll(userInfoList);
-
-        // Create a layout and scene
-        VBox layout = new VBox(table);
-        Scene scene = new Scene(layout, 800, 600);
-
-        // Create and display the stage
-        Stage stage = new Stage();
-        stage.setTitle("User Status");
-        stage.setScene(scene);
-        stage.show();
+        return table;
     }
 
     private void showErrorDialog(String title, String message) {
@@ -139,11 +204,11 @@ class UserStatus {
     private final String userName;
     private final String resourceName;
     private final String resourceType;
-    private final Integer resourceSize;
+    private final String resourceSize;
     private final String status;
     private final String region; // Add this field
 
-    public UserResourceInfo(String userName, String resourceName, String resourceType, Integer resourceSize, String status, String region) {
+    public UserResourceInfo(String userName, String resourceName, String resourceType, String resourceSize, String status, String region) {
         this.userName = userName;
         this.resourceName = resourceName;
         this.resourceType = resourceType;
@@ -164,7 +229,7 @@ class UserStatus {
         return resourceType;
     }
 
-    public Integer getResourceSize() {
+    public String getResourceSize() {
         return resourceSize;
     }
 
@@ -176,4 +241,4 @@ class UserStatus {
         return region; // Add this getter for region
     }
 }
-}
\ No newline at end of file
+}
\ No newline at end of file